@@ -0,0 +1,129 @@
+/**
+ *
+ */
+package bdv.render.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bdv.render.Http;
+import bdv.render.Parameters;
+import bdv.render.RenderMode;
+import bdv.render.RenderSource;
+import bdv.render.SliceLoader;
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileIntArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.ARGBType;
+
+/**
+ * Cells per second for single-section and z-averaged loads through
+ * {@link SliceLoader#load} against a {@link StubRenderWs}.
+ *
+ * Cells are loaded without a cell cache in scan order, so every invocation
+ * loads a cell, but the tile cache of {@link RenderMode#LOCAL} rendering
+ * warms up during the warmup iterations, i.e. LOCAL measures rendering from
+ * decoded tiles.  Run with <code>-prof gc</code> for allocation per cell.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class CellLoadBenchmark {
+
+	@Param({"LOCAL", "PNG", "RAW"})
+	public RenderMode renderMode;
+
+	/* 1 loads single sections, > 1 averages as many sections per cell */
+	@Param({"1", "8"})
+	public int sectionsPerCell;
+
+	@Param({"0", "2"})
+	public int level;
+
+	@Param({"256"})
+	public int cellSize;
+
+	protected StubRenderWs stub;
+	protected CacheLoader<Long, Cell<VolatileIntArray>> cellLoader;
+	protected long numCells;
+	protected long next = 0;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+
+		stub = new StubRenderWs(1024, 64, 8, 8, 16, Runtime.getRuntime().availableProcessors());
+		stub.start();
+
+		final Parameters p = new Parameters();
+		p.baseUrl = stub.getBaseUrl();
+		p.owner = StubRenderWs.owner;
+		p.project = StubRenderWs.project;
+		p.stack = StubRenderWs.stack;
+		p.renderMode = renderMode;
+		p.averageZ = sectionsPerCell > 1;
+		p.tileWidth = cellSize;
+		p.tileHeight = cellSize;
+		p.cacheDir = null;
+
+		Http.configure(p);
+
+		final SliceLoader<ARGBType> sliceLoader =
+				new SliceLoader<>(
+						p.averageZ,
+						new long[]{0, 0, 0},
+						level,
+						sectionsPerCell,
+						RenderSource.createSectionRenderer(p),
+						p.averageZ ? RenderSource.getSectionExecutor(p.sectionThreads) : null);
+
+		final CellGrid grid =
+				new CellGrid(
+						new long[]{
+								stub.getWidth() >> level,
+								stub.getHeight() >> level,
+								Math.max(1, stub.getSections() / sectionsPerCell)},
+						new int[]{cellSize, cellSize, 1});
+
+		numCells = 1;
+		for (final long d : grid.getGridDimensions())
+			numCells *= d;
+
+		cellLoader = LoadedCellCacheLoader.get(grid, sliceLoader, new ARGBType(), AccessFlags.setOf(AccessFlags.VOLATILE));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+
+		stub.stop();
+	}
+
+	@Benchmark
+	public Cell<VolatileIntArray> loadCell() throws Exception {
+
+		final long index = next;
+		next = (next + 1) % numCells;
+		return cellLoader.get(index);
+	}
+}
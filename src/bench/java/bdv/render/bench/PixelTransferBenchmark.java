@@ -0,0 +1,96 @@
+/**
+ *
+ */
+package bdv.render.bench;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.PixelGrabber;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bdv.render.ArgbPixels;
+
+/**
+ * Per-cell cost of transferring the pixels of a rendered or decoded
+ * {@link BufferedImage} into int[] cell storage: {@link PixelGrabber}, as
+ * the loaders used to do, {@link BufferedImage#getRGB}, the raster copy of
+ * {@link ArgbPixels#copy}, and painting into an image that
+ * {@link ArgbPixels#wrap wraps} the cell storage.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PixelTransferBenchmark {
+
+	@Param({"256", "1024"})
+	public int size;
+
+	/* TYPE_INT_ARGB as rendered, TYPE_INT_RGB and TYPE_BYTE_GRAY as decoded from JPEG and PNG */
+	@Param({"2", "1", "10"})
+	public int imageType;
+
+	protected BufferedImage image;
+	protected int[] data;
+
+	@Setup(Level.Trial)
+	public void setup() {
+
+		image = new BufferedImage(size, size, imageType);
+		final int[] pixels = new int[size * size];
+		for (int i = 0; i < pixels.length; ++i)
+			pixels[i] = 0xff000000 | (int)(i * 2654435761L) & 0xffffff;
+		image.setRGB(0, 0, size, size, pixels, 0, size);
+		data = new int[size * size];
+	}
+
+	@Benchmark
+	public int[] pixelGrabber() throws InterruptedException {
+
+		final PixelGrabber grabber = new PixelGrabber(image, 0, 0, size, size, data, 0, size);
+		grabber.grabPixels();
+		return data;
+	}
+
+	@Benchmark
+	public int[] getRGB() {
+
+		image.getRGB(0, 0, size, size, data, 0, size);
+		return data;
+	}
+
+	@Benchmark
+	public int[] rasterCopy() {
+
+		ArgbPixels.copy(image, data, size, size);
+		return data;
+	}
+
+	@Benchmark
+	public int[] drawIntoWrapped() {
+
+		final BufferedImage target = ArgbPixels.wrap(data, size, size);
+		final Graphics2D graphics = target.createGraphics();
+		graphics.drawImage(image, 0, 0, null);
+		graphics.dispose();
+		return data;
+	}
+}
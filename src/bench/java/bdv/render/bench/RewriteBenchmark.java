@@ -0,0 +1,71 @@
+/**
+ *
+ */
+package bdv.render.bench;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.alignment.RenderParameters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bdv.render.MipmapSourceRenderRewriter;
+
+/**
+ * Cost of {@link MipmapSourceRenderRewriter#rewrite} on a large list of tile
+ * specs with four mipmap levels and masks each, as built by
+ * {@link StubRenderWs} from its canned tile spec.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RewriteBenchmark {
+
+	@Param({"100", "10000"})
+	public int numTiles;
+
+	protected RenderParameters renderParameters;
+	protected MipmapSourceRenderRewriter rewriter;
+
+	@Setup(Level.Trial)
+	public void setup() {
+
+		final int columns = (int)Math.ceil(Math.sqrt(numTiles));
+		final int rows = (numTiles + columns - 1) / columns;
+		final StubRenderWs stub = new StubRenderWs(2048, 128, columns, rows, 1, 1);
+
+		renderParameters = RenderParameters.parseJson(
+				new StringReader(
+						stub.renderParameters(0, 0, 0, stub.getWidth(), stub.getHeight(), 1.0)));
+
+		rewriter = new MipmapSourceRenderRewriter(
+				"http://localhost/render-ws/v1",
+				StubRenderWs.owner,
+				StubRenderWs.project,
+				StubRenderWs.stack);
+	}
+
+	@Benchmark
+	public RenderParameters rewrite() {
+
+		rewriter.rewrite(renderParameters);
+		return renderParameters;
+	}
+}
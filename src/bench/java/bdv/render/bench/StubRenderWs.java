@@ -0,0 +1,569 @@
+/**
+ *
+ */
+package bdv.render.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal local stand-in for the render web service that serves one
+ * synthetic stack of a regular grid of overlapping tiles.
+ *
+ * Tile specs and render parameters are built from the canned JSON templates
+ * <code>tile-spec.json</code> and <code>render-parameters.json</code> in the
+ * resources of this package, tile and mask PNGs and box images are
+ * generated once per size and then served from memory, so the server adds
+ * as little as possible to the cost of the client code that is measured.
+ *
+ * To reproduce a remote service offline, each response can be delayed by a
+ * fixed latency, sent at a limited bandwidth per connection, and replaced
+ * by a server error at a given rate.  Each request is served by a thread of
+ * its own, so delayed responses do not hold back others, like on a remote
+ * service whose latency is in the network.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class StubRenderWs {
+
+	final static public String owner = "bench";
+	final static public String project = "bench";
+	final static public String stack = "bench";
+
+	final static private String prefix = "/render-ws/v1";
+
+	final static private Pattern stackListPattern = Pattern.compile("^/owner/([^/]+)/stacks$");
+	final static private Pattern stackPattern = Pattern.compile("^/owner/([^/]+)/project/([^/]+)/stack/([^/]+)(/.*)?$");
+	final static private Pattern boxPattern = Pattern.compile("^/z/(-?\\d+)/box/(-?\\d+),(-?\\d+),(\\d+),(\\d+),([^/]+)/([a-z-]+)$");
+	final static private Pattern tilePattern = Pattern.compile("^/tile/([^/]+?)(/mask)?/(png|jpeg|tiff)-image$");
+	final static private Pattern directPattern = Pattern.compile("^/(tiles|masks)/([^/]+)\\.png$");
+
+	protected final int tileSize;
+	protected final int overlap;
+	protected final int columns;
+	protected final int rows;
+	protected final int sections;
+	protected final int numThreads;
+
+	protected final String tileSpecTemplate;
+	protected final String renderParametersTemplate;
+
+	protected final Map<String, byte[]> images = new ConcurrentHashMap<>();
+	protected final AtomicLong requestCount = new AtomicLong();
+	protected final AtomicLong errorCount = new AtomicLong();
+
+	protected volatile long latency = 0;
+	protected volatile long bandwidth = 0;
+	protected volatile double errorRate = 0;
+
+	protected HttpServer server = null;
+	protected ExecutorService executor = null;
+
+	/**
+	 *
+	 * @param tileSize edge length of the square tiles
+	 * @param overlap overlap of adjacent tiles
+	 * @param columns number of tile columns
+	 * @param rows number of tile rows
+	 * @param sections number of sections
+	 * @param numThreads number of idle threads kept for serving requests,
+	 *     more are started for concurrent requests
+	 */
+	public StubRenderWs(
+			final int tileSize,
+			final int overlap,
+			final int columns,
+			final int rows,
+			final int sections,
+			final int numThreads) {
+
+		this.tileSize = tileSize;
+		this.overlap = overlap;
+		this.columns = columns;
+		this.rows = rows;
+		this.sections = sections;
+		this.numThreads = numThreads;
+
+		tileSpecTemplate = readResource("tile-spec.json");
+		renderParametersTemplate = readResource("render-parameters.json");
+	}
+
+	protected static String readResource(final String name) {
+
+		try (final InputStream in = StubRenderWs.class.getResourceAsStream(name)) {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[4096];
+			for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+				out.write(buffer, 0, n);
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Start serving on an ephemeral port of the loopback interface.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext(prefix, this::handle);
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(
+				numThreads,
+				Integer.MAX_VALUE,
+				60L,
+				TimeUnit.SECONDS,
+				new SynchronousQueue<>(),
+				r -> {
+					final Thread thread = new Thread(r, "stub-render-ws-" + threadCount.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public synchronized void stop() {
+
+		if (server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+			server = null;
+		}
+	}
+
+	public String getBaseUrl() {
+
+		return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + prefix;
+	}
+
+	/**
+	 * @return number of requests served so far
+	 */
+	public long getRequestCount() {
+
+		return requestCount.get();
+	}
+
+	/**
+	 * @return number of injected server errors so far
+	 */
+	public long getErrorCount() {
+
+		return errorCount.get();
+	}
+
+	/**
+	 * @param latency delay of each response in ms
+	 */
+	public void setLatency(final long latency) {
+
+		this.latency = Math.max(0, latency);
+	}
+
+	/**
+	 * @param bandwidth bytes per second and connection, unlimited if 0
+	 */
+	public void setBandwidth(final long bandwidth) {
+
+		this.bandwidth = Math.max(0, bandwidth);
+	}
+
+	/**
+	 * @param errorRate fraction of requests that fail with a 503 server
+	 *     error
+	 */
+	public void setErrorRate(final double errorRate) {
+
+		this.errorRate = Math.max(0, Math.min(1, errorRate));
+	}
+
+	public long getWidth() {
+
+		return (long)columns * (tileSize - overlap) + overlap;
+	}
+
+	public long getHeight() {
+
+		return (long)rows * (tileSize - overlap) + overlap;
+	}
+
+	public int getSections() {
+
+		return sections;
+	}
+
+	protected void handle(final HttpExchange exchange) throws IOException {
+
+		requestCount.incrementAndGet();
+		try {
+			if (latency > 0)
+				Thread.sleep(latency);
+
+			if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+				errorCount.incrementAndGet();
+				respond(exchange, 503, "text/plain", "injected error".getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+
+			final URI uri = exchange.getRequestURI();
+			final String path = uri.getPath().substring(prefix.length());
+			final double scale = getParameter(uri.getQuery(), "scale", 1.0);
+			final float quality = (float)getParameter(uri.getQuery(), "quality", 0.85);
+
+			Matcher matcher = directPattern.matcher(path);
+			if (matcher.matches()) {
+				respond(exchange, "image/png", tileImage(matcher.group(1).equals("masks"), scale, "png", quality));
+				return;
+			}
+
+			matcher = stackListPattern.matcher(path);
+			if (matcher.matches()) {
+				respond(exchange, "application/json", ("[" + stackInfo() + "]").getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+
+			matcher = stackPattern.matcher(path);
+			if (!matcher.matches() || !matcher.group(3).equals(stack)) {
+				respond(exchange, 404, "text/plain", "not found".getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+
+			final String resource = matcher.group(4) == null ? "" : matcher.group(4);
+			if (resource.isEmpty())
+				respond(exchange, "application/json", stackInfo().getBytes(StandardCharsets.UTF_8));
+			else if (resource.equals("/bounds"))
+				respond(exchange, "application/json", bounds().getBytes(StandardCharsets.UTF_8));
+			else if (resource.equals("/resolutionValues"))
+				respond(exchange, "application/json", "[4.0,4.0,35.0]".getBytes(StandardCharsets.UTF_8));
+			else if ((matcher = boxPattern.matcher(resource)).matches()) {
+				final long z = Long.parseLong(matcher.group(1));
+				final long x = Long.parseLong(matcher.group(2));
+				final long y = Long.parseLong(matcher.group(3));
+				final long w = Long.parseLong(matcher.group(4));
+				final long h = Long.parseLong(matcher.group(5));
+				final double boxScale = Double.parseDouble(matcher.group(6));
+				final int width = (int)Math.round(w * boxScale);
+				final int height = (int)Math.round(h * boxScale);
+				switch (matcher.group(7)) {
+				case "render-parameters":
+					respond(exchange, "application/json", renderParameters(x, y, z, w, h, boxScale).getBytes(StandardCharsets.UTF_8));
+					break;
+				case "png-image":
+					respond(exchange, "image/png", boxImage(width, height, "png", quality));
+					break;
+				case "jpeg-image":
+					respond(exchange, "image/jpeg", boxImage(width, height, "jpeg", quality));
+					break;
+				case "raw-image":
+					respond(exchange, "application/octet-stream", boxImage(width, height, "raw", quality));
+					break;
+				default:
+					respond(exchange, 404, "text/plain", "not found".getBytes(StandardCharsets.UTF_8));
+				}
+			} else if ((matcher = tilePattern.matcher(resource)).matches()) {
+				final String format = matcher.group(3);
+				respond(exchange, "image/" + format, tileImage(matcher.group(2) != null, scale, format, quality));
+			} else
+				respond(exchange, 404, "text/plain", "not found".getBytes(StandardCharsets.UTF_8));
+		} catch (final Exception e) {
+			respond(exchange, 500, "text/plain", String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	protected static double getParameter(final String query, final String name, final double defaultValue) {
+
+		if (query != null)
+			for (final String parameter : query.split("&"))
+				if (parameter.startsWith(name + "="))
+					return Double.parseDouble(parameter.substring(name.length() + 1));
+		return defaultValue;
+	}
+
+	protected void respond(final HttpExchange exchange, final String contentType, final byte[] body) throws IOException {
+
+		respond(exchange, 200, contentType, body);
+	}
+
+	protected void respond(final HttpExchange exchange, final int code, final String contentType, final byte[] body) throws IOException {
+
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(code, body.length);
+		try (final OutputStream out = exchange.getResponseBody()) {
+			final long bandwidth = this.bandwidth;
+			if (bandwidth == 0) {
+				out.write(body);
+				return;
+			}
+			/* chunks of about 10ms */
+			final int chunk = (int)Math.max(1024, Math.min(1 << 16, bandwidth / 100));
+			final long t0 = System.nanoTime();
+			for (int offset = 0; offset < body.length; offset += chunk) {
+				out.write(body, offset, Math.min(chunk, body.length - offset));
+				final long due = t0 + (long)((offset + chunk) * 1e9 / bandwidth);
+				final long wait = due - System.nanoTime();
+				if (wait > 0)
+					Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	protected String bounds() {
+
+		return String.format(
+				"{\"minX\":0.0,\"minY\":0.0,\"minZ\":0.0,\"maxX\":%d.0,\"maxY\":%d.0,\"maxZ\":%d.0}",
+				getWidth() - 1,
+				getHeight() - 1,
+				sections - 1);
+	}
+
+	protected String stackInfo() {
+
+		return String.format(
+				"{\"stackId\":{\"owner\":\"%s\",\"project\":\"%s\",\"stack\":\"%s\"},\"state\":\"COMPLETE\",\"currentVersionNumber\":1," +
+				"\"stats\":{\"stackBounds\":%s,\"sectionCount\":%d,\"tileCount\":%d,\"minTileWidth\":%d,\"maxTileWidth\":%d,\"minTileHeight\":%d,\"maxTileHeight\":%d}}",
+				owner,
+				project,
+				stack,
+				bounds(),
+				sections,
+				(long)columns * rows * sections,
+				tileSize,
+				tileSize,
+				tileSize,
+				tileSize);
+	}
+
+	/**
+	 * Tile spec of a tile from the canned template.
+	 */
+	public String tileSpec(final long column, final long row, final long z) {
+
+		final long minX = column * (tileSize - overlap);
+		final long minY = row * (tileSize - overlap);
+		return tileSpecTemplate
+				.replace("${baseUrl}", server == null ? "http://localhost" + prefix : getBaseUrl())
+				.replace("${tileId}", String.format("%d.%d.%d", z, row, column))
+				.replace("${z}", Long.toString(z))
+				.replace("${row}", Long.toString(row))
+				.replace("${column}", Long.toString(column))
+				.replace("${minX}", Long.toString(minX))
+				.replace("${minY}", Long.toString(minY))
+				.replace("${maxX}", Long.toString(minX + tileSize - 1))
+				.replace("${maxY}", Long.toString(minY + tileSize - 1))
+				.replace("${width}", Integer.toString(tileSize))
+				.replace("${height}", Integer.toString(tileSize));
+	}
+
+	/**
+	 * Render parameters with the tile specs of all tiles that intersect a
+	 * box from the canned template.
+	 */
+	public String renderParameters(final long x, final long y, final long z, final long w, final long h, final double scale) {
+
+		final StringBuilder tileSpecs = new StringBuilder();
+		if (z >= 0 && z < sections) {
+			final long stride = tileSize - overlap;
+			final long minColumn = Math.max(0, Math.floorDiv(x - tileSize + stride, stride));
+			final long minRow = Math.max(0, Math.floorDiv(y - tileSize + stride, stride));
+			final long maxColumn = Math.min(columns - 1, Math.floorDiv(x + w - 1, stride));
+			final long maxRow = Math.min(rows - 1, Math.floorDiv(y + h - 1, stride));
+			for (long row = minRow; row <= maxRow; ++row) {
+				for (long column = minColumn; column <= maxColumn; ++column) {
+					if (tileSpecs.length() > 0)
+						tileSpecs.append(",\n");
+					tileSpecs.append(tileSpec(column, row, z));
+				}
+			}
+		}
+		return renderParametersTemplate
+				.replace("${x}", Long.toString(x))
+				.replace("${y}", Long.toString(y))
+				.replace("${w}", Long.toString(w))
+				.replace("${h}", Long.toString(h))
+				.replace("${scale}", Double.toString(scale))
+				.replace("${tileSpecs}", tileSpecs.toString());
+	}
+
+	/**
+	 * 8-bit tile or mask image at a scale, all tiles share the same image.
+	 */
+	protected byte[] tileImage(final boolean mask, final double scale, final String format, final float quality) {
+
+		final int size = Math.max(1, (int)Math.round(tileSize * scale));
+		return images.computeIfAbsent(
+				(mask ? "mask-" : "tile-") + size + "." + format + (format.equals("jpeg") ? quality : ""),
+				key -> {
+					final BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_GRAY);
+					final byte[] pixels = new byte[size * size];
+					for (int y = 0, i = 0; y < size; ++y)
+						for (int x = 0; x < size; ++x, ++i)
+							pixels[i] = mask ? (byte)255 : (byte)pattern(x, y, scale);
+					if (format.equals("tiff"))
+						return encodeTiff(pixels, size, size);
+					image.getRaster().setDataElements(0, 0, size, size, pixels);
+					return encode(image, format, quality);
+				});
+	}
+
+	/**
+	 * ARGB box image, all boxes of the same size share the same image.
+	 */
+	protected byte[] boxImage(final int width, final int height, final String format, final float quality) {
+
+		return images.computeIfAbsent(
+				"box-" + width + "x" + height + "." + format + (format.equals("jpeg") ? quality : ""),
+				key -> {
+					final int[] pixels = new int[width * height];
+					for (int y = 0, i = 0; y < height; ++y)
+						for (int x = 0; x < width; ++x, ++i) {
+							final int v = pattern(x, y, 1.0);
+							pixels[i] = 0xff000000 | (v << 16) | (v << 8) | v;
+						}
+
+					if (format.equals("raw")) {
+						final ByteArrayOutputStream bytes = new ByteArrayOutputStream(pixels.length * Integer.BYTES);
+						try (final DataOutputStream out = new DataOutputStream(bytes)) {
+							for (final int pixel : pixels)
+								out.writeInt(pixel);
+						} catch (final IOException e) {
+							throw new UncheckedIOException(e);
+						}
+						return bytes.toByteArray();
+					}
+
+					final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+					image.setRGB(0, 0, width, height, pixels, 0, width);
+					return encode(image, format, quality);
+				});
+	}
+
+	/**
+	 * Deterministic texture with some structure and some noise, such that
+	 * PNG compression is neither trivial nor hopeless.
+	 */
+	protected static int pattern(final int x, final int y, final double scale) {
+
+		final double xs = x / scale;
+		final double ys = y / scale;
+		final int structure = (int)(64 * (Math.sin(xs * 0.05) + Math.cos(ys * 0.03)));
+		int hash = x * 73856093 ^ y * 19349663;
+		hash ^= hash >>> 13;
+		return Math.max(0, Math.min(255, 128 + structure + (hash & 0x1f) - 16));
+	}
+
+	protected static byte[] encode(final BufferedImage image, final String format, final float quality) {
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			if (format.equals("jpeg")) {
+				final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+				final ImageWriteParam param = writer.getDefaultWriteParam();
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionQuality(quality);
+				try (final ImageOutputStream imageOut = ImageIO.createImageOutputStream(out)) {
+					writer.setOutput(imageOut);
+					writer.write(null, new IIOImage(image, null, null), param);
+				} finally {
+					writer.dispose();
+				}
+			} else
+				ImageIO.write(image, format, out);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Uncompressed 8-bit gray baseline TIFF with a single strip, as served
+	 * for RAW tiles.
+	 */
+	protected static byte[] encodeTiff(final byte[] pixels, final int width, final int height) {
+
+		final short[][] entries = {
+				/* tag, type (3 short, 4 long) */
+				{256, 4}, {257, 4}, {258, 3}, {259, 3}, {262, 3}, {273, 4}, {277, 3}, {278, 4}, {279, 4}};
+		final long[] values = {width, height, 8, 1, 1, 0, 1, height, pixels.length};
+		final int ifdSize = 2 + entries.length * 12 + 4;
+		values[5] = 8 + ifdSize;
+
+		final ByteBuffer buffer = ByteBuffer.allocate(8 + ifdSize + pixels.length).order(ByteOrder.BIG_ENDIAN);
+		buffer.put((byte)'M').put((byte)'M').putShort((short)42).putInt(8);
+		buffer.putShort((short)entries.length);
+		for (int i = 0; i < entries.length; ++i) {
+			buffer.putShort(entries[i][0]).putShort(entries[i][1]).putInt(1);
+			if (entries[i][1] == 3)
+				buffer.putShort((short)values[i]).putShort((short)0);
+			else
+				buffer.putInt((int)values[i]);
+		}
+		buffer.putInt(0);
+		buffer.put(pixels);
+		return buffer.array();
+	}
+
+	/**
+	 * Run the stub until it is killed, e.g. to point the viewer at it.
+	 *
+	 * @param args tile size, overlap, columns, rows, sections, latency in ms,
+	 *     bandwidth in bytes/s, error rate
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void main(final String... args) throws IOException, InterruptedException {
+
+		final StubRenderWs stub = new StubRenderWs(
+				args.length > 0 ? Integer.parseInt(args[0]) : 2048,
+				args.length > 1 ? Integer.parseInt(args[1]) : 128,
+				args.length > 2 ? Integer.parseInt(args[2]) : 16,
+				args.length > 3 ? Integer.parseInt(args[3]) : 16,
+				args.length > 4 ? Integer.parseInt(args[4]) : 64,
+				Runtime.getRuntime().availableProcessors());
+		stub.setLatency(args.length > 5 ? Long.parseLong(args[5]) : 0);
+		stub.setBandwidth(args.length > 6 ? Long.parseLong(args[6]) : 0);
+		stub.setErrorRate(args.length > 7 ? Double.parseDouble(args[7]) : 0);
+		stub.start();
+		System.out.println("Serving owner " + owner + ", project " + project + ", stack " + stack + " at " + stub.getBaseUrl());
+		Thread.currentThread().join();
+	}
+}
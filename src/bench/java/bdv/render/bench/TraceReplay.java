@@ -0,0 +1,467 @@
+/**
+ *
+ */
+package bdv.render.bench;
+
+import java.io.BufferedReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.google.gson.Gson;
+
+import bdv.render.Http;
+import bdv.render.Metrics;
+import bdv.render.Parameters;
+import bdv.render.Prefetcher;
+import bdv.render.RenderSource;
+import bdv.viewer.Source;
+import bdv.viewer.ViewerPanel;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+/**
+ * Replays a trace of viewer transforms against a {@link RenderSource}, by
+ * default served by an in-process {@link StubRenderWs} with configurable
+ * latency, bandwidth, and error rate, such that loader changes can be
+ * compared offline.
+ *
+ * Each frame updates the load cancellation and the prefetcher of the source
+ * like a viewer would, and loads the missing cells of the best matching
+ * scale level that intersect the viewport on a pool of fetcher threads.
+ * Reported are the time from a frame until all of its cells are loaded, the
+ * latency of each cell load, and the number of requests per rendered cell.
+ * Both count the requests and cells of all loaders after the source is
+ * open, including the prefetcher.
+ * Frames whose cells are cancelled or fail are reported as incomplete.
+ *
+ * A trace has one frame per line: the time in ms since the first frame
+ * followed by the 12 row-packed values of the viewer transform, lines
+ * starting with <code>#</code> are ignored.  Traces can be recorded from a
+ * viewer with {@link #record(ViewerPanel, String)}.  Without a trace, a
+ * synthetic trace pans, zooms, steps through sections, and reslices.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class TraceReplay {
+
+	public static class ReplayParameters extends Parameters {
+
+		@Parameter(names = { "--trace" }, description = "viewer transform trace, synthetic if not set")
+		public String trace = null;
+
+		@Parameter(names = { "--width" }, description = "viewport width")
+		public int width = 1024;
+
+		@Parameter(names = { "--height" }, description = "viewport height")
+		public int height = 768;
+
+		@Parameter(names = { "--speed" }, description = "replay speed relative to the recorded time, 0 waits for each frame to complete before the next")
+		public double speed = 1.0;
+
+		@Parameter(names = { "--fetcher_threads" }, description = "number of threads loading the cells of frames, like BDV's fetcher threads if 0")
+		public int fetcherThreads = 0;
+
+		@Parameter(names = { "--remote" }, description = "replay against --base_url, --owner, --project, and --stack instead of a local stub")
+		public boolean remote = false;
+
+		@Parameter(names = { "--stub_latency" }, description = "delay of each stub response in ms")
+		public long stubLatency = 20;
+
+		@Parameter(names = { "--stub_bandwidth" }, description = "stub bandwidth per connection in bytes/s, unlimited if 0")
+		public long stubBandwidth = 0;
+
+		@Parameter(names = { "--stub_error_rate" }, description = "fraction of stub requests that fail with a server error")
+		public double stubErrorRate = 0;
+
+		@Parameter(names = { "--stub_tile_size" }, description = "edge length of the stub's tiles")
+		public int stubTileSize = 1024;
+
+		@Parameter(names = { "--stub_overlap" }, description = "overlap of the stub's tiles")
+		public int stubOverlap = 64;
+
+		@Parameter(names = { "--stub_columns" }, description = "number of tile columns of the stub")
+		public int stubColumns = 16;
+
+		@Parameter(names = { "--stub_rows" }, description = "number of tile rows of the stub")
+		public int stubRows = 16;
+
+		@Parameter(names = { "--stub_sections" }, description = "number of sections of the stub")
+		public int stubSections = 64;
+	}
+
+	final static public class Frame {
+
+		final public long time;
+		final public AffineTransform3D transform;
+
+		public Frame(final long time, final AffineTransform3D transform) {
+
+			this.time = time;
+			this.transform = transform;
+		}
+	}
+
+	/**
+	 * Read a trace.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static ArrayList<Frame> read(final String file) throws IOException {
+
+		final ArrayList<Frame> frames = new ArrayList<>();
+		try (final BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				final String[] fields = line.split("\\s+");
+				if (fields.length != 13)
+					throw new IOException("Expected time and 12 transform values: " + line);
+				final double[] values = new double[12];
+				for (int i = 0; i < 12; ++i)
+					values[i] = Double.parseDouble(fields[i + 1]);
+				final AffineTransform3D transform = new AffineTransform3D();
+				transform.set(values);
+				frames.add(new Frame(Long.parseLong(fields[0]), transform));
+			}
+		}
+		return frames;
+	}
+
+	/**
+	 * Append each transform of a viewer to a trace file until the viewer is
+	 * closed.
+	 *
+	 * @param viewer
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void record(final ViewerPanel viewer, final String file) throws IOException {
+
+		final PrintWriter writer = new PrintWriter(new FileWriter(file, true), true);
+		final long t0 = System.currentTimeMillis();
+		viewer.addTransformListener(transform -> {
+			final StringBuilder line = new StringBuilder(Long.toString(System.currentTimeMillis() - t0));
+			for (final double value : transform.getRowPackedCopy())
+				line.append(' ').append(value);
+			writer.println(line);
+		});
+	}
+
+	/**
+	 * Synthetic trace of 60 frames per second that pans across the center
+	 * section at half resolution, zooms out, steps through sections, and
+	 * pans through an XZ reslice.
+	 *
+	 * @param source
+	 * @param width of the viewport
+	 * @param height of the viewport
+	 * @return
+	 */
+	public static ArrayList<Frame> synthetic(final Source<?> source, final int width, final int height) {
+
+		final long[] dimensions = Intervals.dimensionsAsLongArray(source.getSource(0, 0));
+		final double cx = 0.5 * dimensions[0];
+		final double cy = 0.5 * dimensions[1];
+		final double cz = 0.5 * dimensions[2];
+
+		final ArrayList<Frame> frames = new ArrayList<>();
+		final long dt = 16;
+
+		/* pan */
+		for (int i = 0; i < 120; ++i)
+			frames.add(new Frame(frames.size() * dt, view(cx + (i - 60) * 16, cy, cz, 0.5, false, width, height)));
+
+		/* zoom out */
+		for (int i = 0; i < 60; ++i)
+			frames.add(new Frame(frames.size() * dt, view(cx, cy, cz, 0.5 * Math.pow(1.0 / 8, i / 59.0), false, width, height)));
+
+		/* step through sections */
+		for (int i = 0; i < 60; ++i)
+			frames.add(new Frame(frames.size() * dt, view(cx, cy, Math.min(dimensions[2] - 1, cz + i), 0.25, false, width, height)));
+
+		/* reslice */
+		for (int i = 0; i < 120; ++i)
+			frames.add(new Frame(frames.size() * dt, view(cx + (i - 60) * 16, cy, cz, 0.5, true, width, height)));
+
+		return frames;
+	}
+
+	/**
+	 * Viewer transform that shows (x, y, z) in the center of the viewport.
+	 *
+	 * @param xz show an XZ slice instead of an XY slice
+	 */
+	protected static AffineTransform3D view(
+			final double x,
+			final double y,
+			final double z,
+			final double scale,
+			final boolean xz,
+			final int width,
+			final int height) {
+
+		final AffineTransform3D transform = new AffineTransform3D();
+		transform.translate(-x, -y, -z);
+		if (xz)
+			transform.rotate(0, -0.5 * Math.PI);
+		transform.scale(scale);
+		transform.translate(0.5 * width, 0.5 * height, 0);
+		return transform;
+	}
+
+	protected static double percentile(final List<Long> sorted, final double q) {
+
+		if (sorted.isEmpty())
+			return 0;
+
+		return sorted.get(Math.max(0, (int)Math.ceil(q * sorted.size()) - 1)) * 1e-6;
+	}
+
+	/**
+	 * @return number of cells rendered by all loaders of this process
+	 */
+	protected static long renderedCells() {
+
+		long n = 0;
+		for (final Map.Entry<String, Long> counter : Metrics.getCounters().entrySet())
+			if (counter.getKey().startsWith("cells.s"))
+				n += counter.getValue();
+		return n;
+	}
+
+	/**
+	 * @return number of requests to the stub, or of this process to the
+	 *     render web service without a stub
+	 */
+	protected static long requests(final StubRenderWs stub) {
+
+		return stub == null ? Metrics.getCounters().get("requests") : stub.getRequestCount();
+	}
+
+	public static void main(final String... args) throws IOException, InterruptedException {
+
+		final ReplayParameters p = new ReplayParameters();
+		new JCommander(p, args);
+
+		/* cells are loaded at full quality and from scratch */
+		p.progressive = false;
+		p.cacheDir = null;
+		p.metadataCacheDir = null;
+
+		StubRenderWs stub = null;
+		if (!p.remote) {
+			stub = new StubRenderWs(
+					p.stubTileSize,
+					p.stubOverlap,
+					p.stubColumns,
+					p.stubRows,
+					p.stubSections,
+					Runtime.getRuntime().availableProcessors());
+			stub.setLatency(p.stubLatency);
+			stub.setBandwidth(p.stubBandwidth);
+			stub.setErrorRate(p.stubErrorRate);
+			stub.start();
+			p.baseUrl = stub.getBaseUrl();
+			p.owner = StubRenderWs.owner;
+			p.project = StubRenderWs.project;
+			p.stack = StubRenderWs.stack;
+		}
+
+		Http.configure(p);
+		Metrics.configure(p);
+		Metrics.setEnabled(true);
+
+		final RenderSource<?, ?> renderSource = RenderSource.open(p, p.stack, new Gson());
+		if (renderSource == null) {
+			System.err.println("Could not get the bounds of " + p.stack + ".");
+			System.exit(1);
+		}
+		final Source<?> source = renderSource.getSource();
+
+		final ArrayList<Frame> frames = p.trace == null ? synthetic(source, p.width, p.height) : read(p.trace);
+
+		final Prefetcher prefetcher = p.prefetchCells > 0 ?
+				new Prefetcher(renderSource, p.prefetchCells, p.prefetchRing, p.prefetchThreads) :
+				null;
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		final ExecutorService fetchers = Executors.newFixedThreadPool(
+				p.fetcherThreads > 0 ? p.fetcherThreads : RenderSource.getNumFetcherThreads(p),
+				r -> {
+					final Thread thread = new Thread(r, "replay-fetcher-" + threadCount.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				});
+
+		final Map<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+		final List<Long> cellLatencies = Collections.synchronizedList(new ArrayList<>());
+		final List<Long> frameTimes = Collections.synchronizedList(new ArrayList<>());
+		final AtomicLong loadedCells = new AtomicLong();
+		final AtomicLong cancelledCells = new AtomicLong();
+		final AtomicLong failedCells = new AtomicLong();
+		final AtomicLong incompleteFrames = new AtomicLong();
+		final ArrayList<CompletableFuture<Void>> frameLoads = new ArrayList<>();
+
+		final long requests0 = requests(stub);
+		final long renderedCells0 = renderedCells();
+		final long t0 = System.nanoTime();
+		final double[] min = new double[3];
+		final double[] max = new double[3];
+		final long[] cellMin = new long[3];
+		final long[] cellMax = new long[3];
+		final long[] cellPosition = new long[3];
+		final AffineTransform3D sourceToScreen = new AffineTransform3D();
+		for (final Frame frame : frames) {
+
+			if (p.speed > 0) {
+				final long wait = t0 + (long)(frame.time * 1e6 / p.speed) - System.nanoTime();
+				if (wait > 0)
+					TimeUnit.NANOSECONDS.sleep(wait);
+			}
+
+			renderSource.getLoadCancellation().update(source, frame.transform, p.width, p.height);
+			if (prefetcher != null)
+				prefetcher.prefetch(frame.transform, p.width, p.height);
+
+			final int level = Prefetcher.bestLevel(source, frame.transform);
+			final CachedCellImg<?, ?> img = renderSource.getCellImg(level);
+			final CellGrid grid = img.getCellGrid();
+			final long[] gridDimensions = grid.getGridDimensions();
+			final Cache<Long, ?> cache = img.getCache();
+
+			source.getSourceTransform(0, level, sourceToScreen);
+			sourceToScreen.preConcatenate(frame.transform);
+			Prefetcher.screenBounds(sourceToScreen.inverse(), p.width, p.height, min, max);
+			for (int d = 0; d < 3; ++d) {
+				cellMin[d] = Math.max(0, (long)Math.floor(min[d] / grid.cellDimension(d)));
+				cellMax[d] = Math.min(gridDimensions[d] - 1, (long)Math.floor(max[d] / grid.cellDimension(d)));
+			}
+
+			final long tFrame = System.nanoTime();
+			final ArrayList<CompletableFuture<Void>> cells = new ArrayList<>();
+			for (cellPosition[2] = cellMin[2]; cellPosition[2] <= cellMax[2]; ++cellPosition[2]) {
+				for (cellPosition[1] = cellMin[1]; cellPosition[1] <= cellMax[1]; ++cellPosition[1]) {
+					for (cellPosition[0] = cellMin[0]; cellPosition[0] <= cellMax[0]; ++cellPosition[0]) {
+						final long index = IntervalIndexer.positionToIndex(cellPosition, gridDimensions);
+						if (cache.getIfPresent(index) != null)
+							continue;
+						final String key = level + "/" + index;
+						CompletableFuture<Void> cell = inFlight.get(key);
+						if (cell == null) {
+							final CompletableFuture<Void> load = new CompletableFuture<>();
+							inFlight.put(key, load);
+							fetchers.execute(() -> {
+								final long t = System.nanoTime();
+								try {
+									cache.get(index);
+									cellLatencies.add(System.nanoTime() - t);
+									loadedCells.incrementAndGet();
+									load.complete(null);
+								} catch (final ExecutionException | RuntimeException e) {
+									final Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+									if (cause instanceof CancellationException)
+										cancelledCells.incrementAndGet();
+									else
+										failedCells.incrementAndGet();
+									load.completeExceptionally(cause);
+								} finally {
+									inFlight.remove(key, load);
+								}
+							});
+							cell = load;
+						}
+						cells.add(cell);
+					}
+				}
+			}
+
+			final CompletableFuture<Void> frameLoad =
+					CompletableFuture.allOf(cells.toArray(new CompletableFuture[cells.size()])).handle(
+							(v, e) -> {
+								if (e == null)
+									frameTimes.add(System.nanoTime() - tFrame);
+								else
+									incompleteFrames.incrementAndGet();
+								return null;
+							});
+			frameLoads.add(frameLoad);
+			if (p.speed <= 0)
+				frameLoad.join();
+		}
+
+		try {
+			CompletableFuture.allOf(frameLoads.toArray(new CompletableFuture[frameLoads.size()])).get(10, TimeUnit.MINUTES);
+		} catch (final ExecutionException | TimeoutException e) {
+			System.err.println("Not all frames completed: " + e.getMessage());
+		}
+		final double seconds = (System.nanoTime() - t0) * 1e-9;
+
+		final ArrayList<Long> sortedFrameTimes = new ArrayList<>(frameTimes);
+		Collections.sort(sortedFrameTimes);
+		final ArrayList<Long> sortedCellLatencies = new ArrayList<>(cellLatencies);
+		Collections.sort(sortedCellLatencies);
+
+		final long requests = requests(stub) - requests0;
+		final long renderedCells = renderedCells() - renderedCells0;
+
+		System.out.println(
+				String.format(
+						"%d frames in %.1fs, %d complete, %d incomplete%n" +
+						"time to complete frame: p50=%.1fms p99=%.1fms max=%.1fms%n" +
+						"cell latency: p50=%.1fms p99=%.1fms max=%.1fms%n" +
+						"%d cells loaded, %d cancelled, %d failed%n" +
+						"%d cells rendered including prefetched cells, %.2f requests per rendered cell%s",
+						frames.size(),
+						seconds,
+						sortedFrameTimes.size(),
+						incompleteFrames.get(),
+						percentile(sortedFrameTimes, 0.5),
+						percentile(sortedFrameTimes, 0.99),
+						percentile(sortedFrameTimes, 1.0),
+						percentile(sortedCellLatencies, 0.5),
+						percentile(sortedCellLatencies, 0.99),
+						percentile(sortedCellLatencies, 1.0),
+						loadedCells.get(),
+						cancelledCells.get(),
+						failedCells.get(),
+						renderedCells,
+						renderedCells == 0 ? 0.0 : requests / (double)renderedCells,
+						stub == null ? "" : String.format(", %d injected errors", stub.getErrorCount())));
+		System.out.println(Metrics.getReport());
+
+		fetchers.shutdownNow();
+		if (prefetcher != null)
+			prefetcher.shutdown();
+		if (stub != null)
+			stub.stop();
+		System.exit(0);
+	}
+}
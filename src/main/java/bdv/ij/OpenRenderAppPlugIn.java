@@ -1,31 +1,42 @@
 package bdv.ij;
 
+import java.awt.Window;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.URL;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import javax.swing.SwingUtilities;
 
-import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
 
-import bdv.render.Bounds;
+import bdv.render.Http;
+import bdv.render.LoadCancellation;
+import bdv.render.Metrics;
 import bdv.render.Parameters;
+import bdv.render.Prefetcher;
+import bdv.render.Refinement;
+import bdv.render.RenderMode;
 import bdv.render.RenderSource;
-import bdv.render.Rest;
 import bdv.render.StackInfo;
+import bdv.render.StackMetadata;
 import bdv.util.BdvFunctions;
+import bdv.util.BdvHandle;
 import bdv.util.BdvOptions;
 import bdv.util.BdvStackSource;
 import bdv.util.volatiles.SharedQueue;
 import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import bdv.viewer.ViewerState;
+import bdv.viewer.ViewerPanel;
+import ij.IJ;
 import ij.ImageJ;
 import ij.gui.GenericDialog;
 import ij.plugin.PlugIn;
-import mpicbg.spim.data.sequence.FinalVoxelDimensions;
-import net.imglib2.FinalDimensions;
 import net.imglib2.realtransform.AffineTransform3D;
-import net.imglib2.type.numeric.ARGBType;
-import net.imglib2.type.volatiles.VolatileARGBType;
+import net.imglib2.ui.TransformListener;
 
 /**
  * ImageJ plugin to show a render DB stack in BigDataViewer.
@@ -38,17 +49,24 @@ public class OpenRenderAppPlugIn implements PlugIn {
 
 	private static Parameters params = new Parameters();
 
+	static {
+		StackMetadata.addVersionListener(
+				(stack, openedVersion, currentVersion) -> IJ.log(
+						String.format(
+								"Stack %s changed from version %d to %d, reopen it to show the current version.",
+								stack,
+								openedVersion,
+								currentVersion)));
+		RenderSource.addWarningListener(IJ::log);
+	}
+
 	final static public int getNumScales(
-			long width,
-			long height,
+			final long width,
+			final long height,
 			final long tileWidth,
 			final long tileHeight) {
-		int i = 1;
 
-		while ((width >>= 1) > tileWidth && (height >>= 1) > tileHeight)
-			++i;
-
-		return i;
+		return RenderSource.getNumScales(width, height, tileWidth, tileHeight);
 	}
 
 	public static void main(final String... args) {
@@ -61,6 +79,11 @@ public class OpenRenderAppPlugIn implements PlugIn {
 	@Override
 	public void run(final String arg) {
 
+		/* list the stacks of the last owner while the dialog is open */
+		Http.configure(params);
+		final Parameters listed = params.clone();
+		final CompletableFuture<List<StackInfo>> stackList = StackMetadata.listStacks(gson, listed);
+
 		final GenericDialog gd = new GenericDialog("BigDataViewer Render App");
 		gd.addStringField("Base_URL : ", params.baseUrl, params.baseUrl.length());
 		gd.addStringField("Owner : ", params.owner);
@@ -72,15 +95,14 @@ public class OpenRenderAppPlugIn implements PlugIn {
 		params.baseUrl = gd.getNextString();
 		params.owner = gd.getNextString();
 
-		final String stackListQuery = String.format(
-				Parameters.stackListFormat,
-				params.baseUrl,
-				params.owner);
+		try {
 
-		try (final InputStreamReader reader = new InputStreamReader(new URL(stackListQuery).openStream())) {
-
-			@SuppressWarnings("serial")
-			final ArrayList<StackInfo> stackInfos = gson.fromJson(reader, new TypeToken<ArrayList<StackInfo>>(){}.getType());
+			final List<StackInfo> stackInfos =
+					params.baseUrl.equals(listed.baseUrl) && params.owner.equals(listed.owner) ?
+							stackList.join() :
+							StackMetadata.listStacks(gson, params).join();
+			if (stackInfos == null)
+				return;
 
 			final String[] projects = new String[stackInfos.size()];
 			final String[] stacks = new String[stackInfos.size()];
@@ -97,9 +119,19 @@ public class OpenRenderAppPlugIn implements PlugIn {
 			gd2.addChoice("Stack : ", projectStacks, params.project + " / " + params.stack);
 			gd2.addNumericField("Tile_width : ", params.tileWidth, 0);
 			gd2.addNumericField("Tile_height : ", params.tileHeight, 0);
+			gd2.addNumericField("Tile_depth : ", params.tileDepth, 0);
+			gd2.addCheckbox("orthoslice_cells", params.orthoslice);
 			gd2.addCheckbox("average_z_sections", params.averageZ);
+			gd2.addCheckbox("8-bit_grayscale", params.gray);
 			gd2.addCheckbox("apply_contrast_filter", params.filter);
 			gd2.addCheckbox("rewrite_mipmap_URLs", params.rewrite);
+			gd2.addCheckbox("derive_coarse_levels_from_cached_cells", params.downsample);
+			gd2.addCheckbox("progressive_(preview_first)", params.progressive);
+			gd2.addChoice("Render_mode : ", RenderMode.names(), params.renderMode.name());
+			gd2.addStringField("Codecs_per_level : ", params.codecs == null ? "" : params.codecs, 24);
+			gd2.addStringField("Cache_directory : ", params.cacheDir == null ? "" : params.cacheDir, 32);
+			gd2.addCheckbox("record_metrics (JMX)", params.metrics);
+			gd2.addCheckbox("add_to_open_viewer", lastView != null);
 			gd2.showDialog();
 
 			if (gd2.wasCanceled())
@@ -109,97 +141,212 @@ public class OpenRenderAppPlugIn implements PlugIn {
 
 			params.project = projects[ stackIndex ];
 			params.stack = stacks[ stackIndex ];
+			StackMetadata.seed(gson, params, StackMetadata.fromStackInfo(stackInfos.get(stackIndex)));
 
 			params.tileWidth = (int)gd2.getNextNumber();
 			params.tileHeight = (int)gd2.getNextNumber();
+			params.tileDepth = Math.max(1, (int)gd2.getNextNumber());
+			params.orthoslice = gd2.getNextBoolean();
 			params.averageZ = gd2.getNextBoolean();
+			params.gray = gd2.getNextBoolean();
 			params.filter = gd2.getNextBoolean();
-			params.filter = gd2.getNextBoolean();
-
-			run(params.clone(), gson);
+			params.rewrite = gd2.getNextBoolean();
+			params.downsample = gd2.getNextBoolean();
+			params.progressive = gd2.getNextBoolean();
+			params.renderMode = RenderMode.values()[gd2.getNextChoiceIndex()];
+			params.codecs = gd2.getNextString().trim();
+			if (params.codecs.isEmpty())
+				params.codecs = null;
+			params.cacheDir = gd2.getNextString().trim();
+			if (params.cacheDir.isEmpty())
+				params.cacheDir = null;
+			params.metrics = gd2.getNextBoolean();
+			final boolean addToOpenViewer = gd2.getNextBoolean();
+
+			run(params.clone(), gson, addToOpenViewer);
 		}
 		catch (final IOException e) { e.printStackTrace(); }
 	}
 
-	final static public void run(final Parameters p, final Gson gson) throws IOException {
+	/**
+	 * The render sources shown in one BDV window.  They share the fetcher
+	 * threads and caches of this process, loads of the current source are
+	 * admitted first, loads of hidden sources are cancelled.  The view
+	 * repaints after each {@link Refinement refined} cell until its window is
+	 * closed, then its listeners are removed and its prefetchers shut down.
+	 */
+	final static private class RenderView {
+
+		final BdvHandle bdv;
+		final ArrayList<RenderSource<?, ?>> renderSources = new ArrayList<>();
+		final ArrayList<Source<?>> volatileSources = new ArrayList<>();
+		final Runnable repaint;
+		final ArrayList<Runnable> onClose = new ArrayList<>();
+		boolean repaintOnRefinement = false;
+
+		public RenderView(final BdvHandle bdv) {
+
+			this.bdv = bdv;
+			final ViewerPanel viewer = bdv.getViewerPanel();
+			repaint = viewer::requestRepaint;
+			viewer.state().changeListeners().add(change -> updatePriorities());
+			final Window window = SwingUtilities.getWindowAncestor(viewer);
+			if (window != null)
+				window.addWindowListener(new WindowAdapter() {
+
+					@Override
+					public void windowClosed(final WindowEvent e) {
+
+						Refinement.removeListener(repaint);
+						close();
+					}
+				});
+		}
 
-		final String displayName = String.format("RenderView %s %s", p.project, p.stack);
+		/**
+		 * Repaint after each refined cell, e.g. of a progressive source.
+		 */
+		public synchronized void repaintOnRefinement() {
 
-		final Bounds bounds = Rest.getStackBounds(gson, p.baseUrl, p.owner, p.project, p.stack);
-		if (bounds == null) return;
+			if (!repaintOnRefinement) {
+				Refinement.addListener(repaint);
+				repaintOnRefinement = true;
+			}
+		}
 
-		final double[] resolution = Rest.getStackResolution(gson, p.baseUrl, p.owner, p.project, p.stack);
-		final double zScale = resolution[0] / resolution[2];
+		/**
+		 * Run an action when the window is closed, e.g. to remove a
+		 * listener.
+		 */
+		public synchronized void onClose(final Runnable action) {
 
-		final long[] offset = new long[] { (long) bounds.minX, (long) bounds.minY, (long) bounds.minZ };
-		final FinalDimensions size =
-				new FinalDimensions(
-						new long[]{
-								(long)Math.ceil(bounds.maxX - bounds.minX + 1),
-								(long)Math.ceil(bounds.maxY - bounds.minY + 1),
-								(long)Math.ceil(bounds.maxZ - bounds.minZ + 1)});;
-		final int numScales = getNumScales(size.dimension(0), size.dimension(1), p.tileWidth, p.tileHeight);;
+			onClose.add(action);
+		}
 
-		final double[][] mipmapResolutions = new double[numScales][];
-		final long[][] dimensions = new long[numScales][];
-		final AffineTransform3D[] mipmapTransforms = new AffineTransform3D[numScales];
-		final int[] zScales = new int[numScales];
-		for (int l = 0; l < numScales; ++l) {
+		synchronized void close() {
 
-			final int sixy = 1 << l;
-			final int siz = p.averageZ ? Math.max(1, (int)Math.round(sixy / zScale)) : 1;
+			for (final Runnable action : onClose)
+				action.run();
+			onClose.clear();
+		}
 
-			mipmapResolutions[l] = new double[] { sixy, sixy, siz };
-			dimensions[l] = new long[] {
-					Math.max(1, size.dimension(0) >> l),
-					Math.max(1, size.dimension(1) >> l),
-					Math.max(1, size.dimension(2) / siz)};
-			zScales[l] = siz;
+		public synchronized void add(final RenderSource<?, ?> renderSource, final Source<?> volatileSource) {
 
-			final AffineTransform3D mipmapTransform = new AffineTransform3D();
+			renderSources.add(renderSource);
+			volatileSources.add(volatileSource);
+			updatePriorities();
+		}
 
-			mipmapTransform.set(sixy, 0, 0);
-			mipmapTransform.set(sixy, 1, 1);
-			mipmapTransform.set(zScale * siz, 2, 2);
+		public synchronized void updatePriorities() {
+
+			final ViewerState state = bdv.getViewerPanel().state();
+			final SourceAndConverter<?> current = state.getCurrentSource();
+			for (final SourceAndConverter<?> source : state.getSources()) {
+				final int i = volatileSources.indexOf(source.getSpimSource());
+				if (i >= 0)
+					renderSources.get(i).getLoadCancellation().setPriority(
+							source == current ?
+									LoadCancellation.CURRENT :
+									state.isSourceVisible(source) ? LoadCancellation.VISIBLE : LoadCancellation.HIDDEN);
+			}
+		}
+	}
+
+	/**
+	 * The last opened view that further stacks can be added to.
+	 */
+	private static RenderView lastView = null;
+
+	/**
+	 * Open a render stack in a new BDV window.
+	 *
+	 * @param p
+	 * @param gson
+	 * @throws IOException
+	 */
+	final static public void run(final Parameters p, final Gson gson) throws IOException {
 
-//			mipmapTransform.set(0.5 * (sixy - 1), 0, 3);
-//			mipmapTransform.set(0.5 * (sixy - 1), 1, 3);
-			mipmapTransform.set(0.5 * (zScale * siz - 1), 2, 3);
+		run(p, gson, false);
+	}
 
-			mipmapTransforms[l] = mipmapTransform;
-		}
+	/**
+	 * Open several render stacks in one BDV window, e.g. to compare
+	 * alignment versions side by side.
+	 *
+	 * @param ps
+	 * @param gson
+	 * @throws IOException
+	 */
+	final static public void run(final List<Parameters> ps, final Gson gson) throws IOException {
+
+		for (int i = 0; i < ps.size(); ++i)
+			run(ps.get(i), gson, i > 0);
+	}
+
+	/**
+	 * Open a render stack in a new BDV window or add it to the last opened
+	 * window.
+	 *
+	 * @param p
+	 * @param gson
+	 * @param addToLastView
+	 * @throws IOException
+	 */
+	final static public synchronized void run(final Parameters p, final Gson gson, final boolean addToLastView) throws IOException {
+
+		final String displayName = String.format("RenderView %s %s", p.project, p.stack);
+
+		Http.configure(p);
+		Metrics.configure(p);
+
+		final RenderSource<?, ?> renderSource = RenderSource.open(p, displayName, gson);
+		if (renderSource == null) return;
 
 		final BdvOptions bdvOptions = BdvOptions.options();
-		bdvOptions.frameTitle(displayName);
-
-		final SharedQueue sharedQueue = new SharedQueue(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
-		final FinalVoxelDimensions voxelDimensions = new FinalVoxelDimensions("nm", mipmapResolutions[0]);
-
-		final Source<ARGBType> source = RenderSource.getSource(
-				params,
-				displayName,
-				dimensions,
-				mipmapResolutions,
-				zScales,
-				offset,
-				voxelDimensions);
-		final Source<VolatileARGBType> volatileSource = RenderSource.getVolatileSource(
-				params,
-				displayName,
-				dimensions,
-				mipmapResolutions,
-				zScales,
-				offset,
-				voxelDimensions,
-				sharedQueue);
-
-//		ImageJFunctions.show(source.getSource(0, 3));
+		final boolean add = addToLastView && lastView != null && lastView.bdv.getViewerPanel().isShowing();
+		if (add)
+			bdvOptions.addTo(lastView.bdv);
+		else
+			bdvOptions.frameTitle(displayName);
+
+		final SharedQueue sharedQueue = RenderSource.getSharedQueue(RenderSource.getNumFetcherThreads(p));
+		final Source<?> volatileSource = renderSource.getVolatileSource(sharedQueue);
+
+//		ImageJFunctions.show(renderSource.getSource().getSource(0, 3));
 
 		// show in BDV
-		final BdvStackSource<VolatileARGBType> stackSource = BdvFunctions.show(volatileSource, bdvOptions);
+		final BdvStackSource<?> stackSource = BdvFunctions.show(volatileSource, bdvOptions);
 		stackSource.setDisplayRange(0, 255);
 
-		// reuse BDV handle
-		bdvOptions.addTo(stackSource.getBdvHandle());
+		if (!add)
+			lastView = new RenderView(stackSource.getBdvHandle());
+		lastView.add(renderSource, volatileSource);
+
+		final ViewerPanel viewer = stackSource.getBdvHandle().getViewerPanel();
+		if (p.progressive)
+			lastView.repaintOnRefinement();
+
+		final TransformListener<AffineTransform3D> cancellationListener =
+				transform -> renderSource.getLoadCancellation().update(
+						renderSource.getSource(),
+						transform,
+						viewer.getDisplay().getWidth(),
+						viewer.getDisplay().getHeight());
+		viewer.addTransformListener(cancellationListener);
+		lastView.onClose(() -> viewer.removeTransformListener(cancellationListener));
+
+		if (p.prefetchCells > 0) {
+			final Prefetcher prefetcher = new Prefetcher(renderSource, p.prefetchCells, p.prefetchRing, p.prefetchThreads);
+			final TransformListener<AffineTransform3D> prefetchListener =
+					transform -> prefetcher.prefetch(
+							transform,
+							viewer.getDisplay().getWidth(),
+							viewer.getDisplay().getHeight());
+			viewer.addTransformListener(prefetchListener);
+			lastView.onClose(() -> {
+				viewer.removeTransformListener(prefetchListener);
+				prefetcher.shutdown();
+			});
+		}
 	}
 }
@@ -0,0 +1,202 @@
+/**
+ *
+ */
+package bdv.render;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrency limit that adapts to the measured latency of the limited
+ * operations.
+ *
+ * The limit follows the gradient of the latency at no load over the
+ * current latency: while operations are as fast as without load, the limit
+ * grows by about its square root per sample, when they slow down because
+ * the server or network is saturated, the limit shrinks proportionally.
+ * Failures shrink the limit by 10%.  The latency at no load is the minimum
+ * observed latency that slowly drifts up such that it recovers from
+ * permanent changes.
+ *
+ * Waiting threads are admitted by priority, e.g. loads of the current
+ * source before those of other sources, see
+ * {@link LoadCancellation#getPriority()}, and within the same priority in
+ * the order in which they arrived, so threads that took their tasks from a
+ * priority queue such as BDV's {@link bdv.util.volatiles.SharedQueue} keep
+ * their order.  With minLimit equal to maxLimit, it is a fixed number of
+ * permits with priorities.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class AdaptiveLimiter {
+
+	final static private class Waiter {
+
+		final int priority;
+		final long arrival;
+		final Condition admitted;
+
+		public Waiter(final int priority, final long arrival, final Condition admitted) {
+
+			this.priority = priority;
+			this.arrival = arrival;
+			this.admitted = admitted;
+		}
+	}
+
+	protected final int minLimit;
+	protected final int maxLimit;
+
+	protected final ReentrantLock lock = new ReentrantLock(true);
+	protected final PriorityQueue<Waiter> waiters =
+			new PriorityQueue<>(
+					Comparator.comparingInt((Waiter waiter) -> waiter.priority)
+					.thenComparingLong(waiter -> waiter.arrival));
+	protected long arrivals = 0;
+
+	protected double limit;
+	protected int inFlight = 0;
+	protected double shortLatency = 0;
+	protected double noLoadLatency = Double.POSITIVE_INFINITY;
+	protected long samples = 0;
+
+	/**
+	 *
+	 * @param minLimit
+	 * @param maxLimit
+	 * @param initialLimit
+	 */
+	public AdaptiveLimiter(final int minLimit, final int maxLimit, final int initialLimit) {
+
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+	}
+
+	/**
+	 * Wait until an operation is admitted, with the priority of the load
+	 * running on this thread.
+	 */
+	public void acquire() {
+
+		acquire(LoadCancellation.currentPriority());
+	}
+
+	/**
+	 * Wait until an operation is admitted.
+	 *
+	 * @param priority smaller values are admitted first
+	 */
+	public void acquire(final int priority) {
+
+		lock.lock();
+		try {
+			if (waiters.isEmpty() && inFlight < (int)limit) {
+				++inFlight;
+				return;
+			}
+			final Waiter waiter = new Waiter(priority, arrivals++, lock.newCondition());
+			waiters.add(waiter);
+			while (waiters.peek() != waiter || inFlight >= (int)limit)
+				waiter.admitted.awaitUninterruptibly();
+			waiters.poll();
+			++inFlight;
+			admitNext();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Finish an admitted operation.
+	 */
+	public void release() {
+
+		lock.lock();
+		try {
+			--inFlight;
+			admitNext();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wake the first waiter if there is room, call with the lock held.
+	 */
+	protected void admitNext() {
+
+		final Waiter next = waiters.peek();
+		if (next != null && inFlight < (int)limit)
+			next.admitted.signal();
+	}
+
+	/**
+	 * Record the latency of a successful operation.
+	 *
+	 * @param nanos
+	 */
+	public void sample(final long nanos) {
+
+		lock.lock();
+		try {
+			final double latency = Math.max(1, nanos);
+			shortLatency = samples == 0 ? latency : 0.9 * shortLatency + 0.1 * latency;
+			noLoadLatency = Math.min(noLoadLatency, latency);
+			if (++samples % 100 == 0)
+				noLoadLatency *= 1.1;
+
+			final double gradient = Math.max(0.5, Math.min(1.0, noLoadLatency / shortLatency));
+			setLimit(0.8 * limit + 0.2 * (limit * gradient + Math.sqrt(limit)));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Record a failed operation.
+	 */
+	public void failed() {
+
+		lock.lock();
+		try {
+			setLimit(limit * 0.9);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	protected void setLimit(final double newLimit) {
+
+		limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+		admitNext();
+	}
+
+	public int getLimit() {
+
+		lock.lock();
+		try {
+			return (int)limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getInFlight() {
+
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getMaxLimit() {
+
+		return maxLimit;
+	}
+}
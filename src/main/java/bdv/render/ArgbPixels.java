@@ -0,0 +1,160 @@
+/**
+ *
+ */
+package bdv.render;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Transfer of ARGB pixels between {@link BufferedImage BufferedImages} and
+ * int[] cell storage, and their conversion to 8-bit gray, and wrapping of
+ * byte[] cell storage as gray images.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public final class ArgbPixels {
+
+	private ArgbPixels() {}
+
+	/**
+	 * Wrap the first width * height elements of data as a
+	 * {@link BufferedImage#TYPE_INT_ARGB} image.  Painting into the image
+	 * writes straight into data.
+	 *
+	 * @param data
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public static BufferedImage wrap(final int[] data, final int width, final int height) {
+
+		final DirectColorModel colorModel = (DirectColorModel)ColorModel.getRGBdefault();
+		final SinglePixelPackedSampleModel sampleModel =
+				new SinglePixelPackedSampleModel(
+						DataBuffer.TYPE_INT,
+						width,
+						height,
+						colorModel.getMasks());
+		final WritableRaster raster =
+				Raster.createWritableRaster(
+						sampleModel,
+						new DataBufferInt(data, width * height),
+						null);
+
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	/**
+	 * Wrap width * height elements of data starting at offset as an image
+	 * with the layout of {@link BufferedImage#TYPE_BYTE_GRAY}.  Painting into
+	 * the image writes straight into data.
+	 *
+	 * @param data
+	 * @param offset
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public static BufferedImage wrapGray(final byte[] data, final int offset, final int width, final int height) {
+
+		final ComponentColorModel colorModel =
+				new ComponentColorModel(
+						ColorSpace.getInstance(ColorSpace.CS_GRAY),
+						new int[]{8},
+						false,
+						true,
+						Transparency.OPAQUE,
+						DataBuffer.TYPE_BYTE);
+		final WritableRaster raster =
+				Raster.createInterleavedRaster(
+						new DataBufferByte(data, width * height, offset),
+						width,
+						height,
+						width,
+						1,
+						new int[]{0},
+						null);
+
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	/**
+	 * Copy the ARGB pixels of the top left w x h box of an image into data.
+	 * Integer ARGB images are copied straight from their raster.
+	 *
+	 * @param image
+	 * @param data
+	 * @param w
+	 * @param h
+	 */
+	public static void copy(final BufferedImage image, final int[] data, final int w, final int h) {
+
+		final int type = image.getType();
+		if ((type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB) &&
+				image.getRaster().getDataBuffer() instanceof DataBufferInt) {
+			final int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+			final int width = image.getWidth();
+			final int rowLength = Math.min(w, width);
+			final int rows = Math.min(h, image.getHeight());
+			if (rowLength == width && rowLength == w && type == BufferedImage.TYPE_INT_ARGB)
+				System.arraycopy(pixels, 0, data, 0, rowLength * rows);
+			else {
+				final int alpha = type == BufferedImage.TYPE_INT_RGB ? 0xff000000 : 0;
+				for (int y = 0, i = 0, j = 0; y < rows; ++y, i += w, j += width)
+					for (int x = 0; x < rowLength; ++x)
+						data[i + x] = pixels[j + x] | alpha;
+			}
+		} else
+			image.getRGB(0, 0, Math.min(w, image.getWidth()), Math.min(h, image.getHeight()), data, 0, w);
+	}
+
+	/**
+	 * Luminance of an ARGB pixel, equal to the value of gray pixels.
+	 *
+	 * @param argb
+	 * @return
+	 */
+	public static int luminance(final int argb) {
+
+		return (((argb >> 16) & 0xff) * 77 + ((argb >> 8) & 0xff) * 150 + (argb & 0xff) * 29) >> 8;
+	}
+
+	/**
+	 * Convert the first n ARGB pixels to 8-bit luminance.
+	 *
+	 * @param argb
+	 * @param gray
+	 * @param n
+	 */
+	public static void toGray(final int[] argb, final byte[] gray, final int n) {
+
+		toGray(argb, gray, 0, n);
+	}
+
+	/**
+	 * Convert the first n ARGB pixels to 8-bit luminance starting at offset
+	 * in gray, e.g. into one section of a 3D cell.
+	 *
+	 * @param argb
+	 * @param gray
+	 * @param offset
+	 * @param n
+	 */
+	public static void toGray(final int[] argb, final byte[] gray, final int offset, final int n) {
+
+		for (int i = 0; i < n; ++i)
+			gray[offset + i] = (byte)luminance(argb[i]);
+	}
+}
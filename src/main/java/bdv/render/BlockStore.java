@@ -0,0 +1,345 @@
+/**
+ *
+ */
+package bdv.render;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Persistent store of int[] or byte[] blocks of one scale level.
+ *
+ * The layout follows the N5 file system format for uint32 or uint8 datasets,
+ * i.e. an <code>attributes.json</code> per dataset and one file per block at
+ * <code>&lt;dataset&gt;/&lt;x&gt;/&lt;y&gt;/&lt;z&gt;</code> with a
+ * big-endian header of mode, number of dimensions, and block dimensions,
+ * followed by the (compressed) big-endian data.  Blocks are memory-mapped for
+ * reading and written through a temporary file that is atomically moved in
+ * place, so concurrent readers never see partial blocks.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class BlockStore {
+
+	public static enum DataType {
+
+		UINT8("uint8", 1),
+		UINT32("uint32", 4);
+
+		final public String type;
+		final public int bytes;
+
+		private DataType(final String type, final int bytes) {
+
+			this.type = type;
+			this.bytes = bytes;
+		}
+	}
+
+	public static enum Compression {
+
+		RAW("raw"),
+		GZIP("gzip");
+
+		final public String type;
+
+		private Compression(final String type) {
+
+			this.type = type;
+		}
+	}
+
+	final static private class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		public ByteBufferInputStream(final ByteBuffer buffer) {
+
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(final byte[] bytes, final int offset, final int length) {
+
+			if (!buffer.hasRemaining())
+				return -1;
+
+			final int n = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, n);
+			return n;
+		}
+	}
+
+	protected static final ThreadLocal<byte[]> byteBuffers = ThreadLocal.withInitial(() -> new byte[0]);
+
+	protected final Path basePath;
+	protected final long[] dimensions;
+	protected final int[] blockSize;
+	protected final DataType dataType;
+	protected final Compression compression;
+	protected final JsonObject extraAttributes = new JsonObject();
+
+	/**
+	 * Opens or creates the dataset at basePath.
+	 *
+	 * @param basePath
+	 * @param dimensions
+	 * @param blockSize
+	 * @param dataType
+	 * @param compression
+	 * @throws IOException
+	 */
+	public BlockStore(
+			final Path basePath,
+			final long[] dimensions,
+			final int[] blockSize,
+			final DataType dataType,
+			final Compression compression) throws IOException {
+
+		this.basePath = basePath;
+		this.dimensions = dimensions.clone();
+		this.blockSize = blockSize.clone();
+		this.dataType = dataType;
+		this.compression = compression;
+
+		Files.createDirectories(basePath);
+		writeAttributes();
+	}
+
+	/**
+	 * Write JSON attributes, e.g. of a group of datasets, through a temporary
+	 * file that is atomically moved in place.
+	 *
+	 * @param path of the <code>attributes.json</code> file
+	 * @param attributes
+	 * @throws IOException
+	 */
+	public static void writeAttributes(final Path path, final JsonObject attributes) throws IOException {
+
+		final Path tmpPath = path.resolveSibling(path.getFileName() + "." + Thread.currentThread().getId() + ".tmp");
+		try (final Writer writer = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+			new Gson().toJson(attributes, writer);
+		}
+		Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Add an attribute to the <code>attributes.json</code> of this dataset,
+	 * e.g. its downsampling factors.
+	 *
+	 * @param key
+	 * @param value
+	 * @throws IOException
+	 */
+	public synchronized void setAttribute(final String key, final JsonElement value) throws IOException {
+
+		extraAttributes.add(key, value);
+		writeAttributes();
+	}
+
+	protected synchronized void writeAttributes() throws IOException {
+
+		final JsonObject compressionAttributes = new JsonObject();
+		compressionAttributes.addProperty("type", compression.type);
+		if (compression == Compression.GZIP)
+			compressionAttributes.addProperty("level", -1);
+
+		final Gson gson = new Gson();
+		final JsonObject attributes = new JsonObject();
+		attributes.add("dimensions", gson.toJsonTree(dimensions));
+		attributes.add("blockSize", gson.toJsonTree(blockSize));
+		attributes.addProperty("dataType", dataType.type);
+		attributes.add("compression", compressionAttributes);
+		for (final Map.Entry<String, JsonElement> entry : extraAttributes.entrySet())
+			attributes.add(entry.getKey(), entry.getValue());
+
+		writeAttributes(basePath.resolve("attributes.json"), attributes);
+	}
+
+	public Path getBlockPath(final long[] gridPosition) {
+
+		Path path = basePath;
+		for (final long p : gridPosition)
+			path = path.resolve(Long.toString(p));
+
+		return path;
+	}
+
+	public boolean exists(final long[] gridPosition) {
+
+		return Files.isRegularFile(getBlockPath(gridPosition));
+	}
+
+	/**
+	 * Map a block and decompress its data.
+	 *
+	 * @param gridPosition
+	 * @param numElements expected number of elements
+	 * @return the data or null if the block does not exist or does not have
+	 *     numElements elements
+	 * @throws IOException
+	 */
+	protected ByteBuffer readData(final long[] gridPosition, final int numElements) throws IOException {
+
+		final Path path = getBlockPath(gridPosition);
+		try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			final short mode = buffer.getShort();
+			final int n = buffer.getShort();
+			long blockElements = 1;
+			for (int d = 0; d < n; ++d)
+				blockElements *= buffer.getInt();
+			if (mode == 1)
+				blockElements = buffer.getInt();
+			if (blockElements != numElements)
+				return null;
+
+			final int numBytes = numElements * dataType.bytes;
+			if (compression == Compression.RAW)
+				return buffer.remaining() < numBytes ? null : buffer;
+
+			byte[] bytes = byteBuffers.get();
+			if (bytes.length < numBytes) {
+				bytes = new byte[numBytes];
+				byteBuffers.set(bytes);
+			}
+			try (final InputStream in = new GZIPInputStream(new ByteBufferInputStream(buffer))) {
+				for (int offset = 0, r; offset < numBytes; offset += r) {
+					r = in.read(bytes, offset, numBytes - offset);
+					if (r < 0)
+						return null;
+				}
+			}
+			return ByteBuffer.wrap(bytes, 0, numBytes);
+		} catch (final NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Read a uint32 block into data.
+	 *
+	 * @param gridPosition
+	 * @param data
+	 * @return false if the block does not exist or does not match data
+	 * @throws IOException
+	 */
+	public boolean read(final long[] gridPosition, final int[] data) throws IOException {
+
+		final ByteBuffer buffer = readData(gridPosition, data.length);
+		if (buffer == null)
+			return false;
+
+		buffer.asIntBuffer().get(data);
+		return true;
+	}
+
+	/**
+	 * Read a uint8 block into data.
+	 *
+	 * @param gridPosition
+	 * @param data
+	 * @return false if the block does not exist or does not match data
+	 * @throws IOException
+	 */
+	public boolean read(final long[] gridPosition, final byte[] data) throws IOException {
+
+		final ByteBuffer buffer = readData(gridPosition, data.length);
+		if (buffer == null)
+			return false;
+
+		buffer.get(data);
+		return true;
+	}
+
+	/**
+	 * Write a uint32 block.
+	 *
+	 * @param gridPosition
+	 * @param blockDimensions
+	 * @param data
+	 * @throws IOException
+	 */
+	public void write(final long[] gridPosition, final int[] blockDimensions, final int[] data) throws IOException {
+
+		final ByteBuffer buffer = ByteBuffer.allocate(data.length * Integer.BYTES);
+		buffer.asIntBuffer().put(data);
+		writeData(gridPosition, blockDimensions, buffer.array());
+	}
+
+	/**
+	 * Write a uint8 block.
+	 *
+	 * @param gridPosition
+	 * @param blockDimensions
+	 * @param data
+	 * @throws IOException
+	 */
+	public void write(final long[] gridPosition, final int[] blockDimensions, final byte[] data) throws IOException {
+
+		writeData(gridPosition, blockDimensions, data);
+	}
+
+	protected void writeData(final long[] gridPosition, final int[] blockDimensions, final byte[] data) throws IOException {
+
+		final Path path = getBlockPath(gridPosition);
+		Files.createDirectories(path.getParent());
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + 64);
+		try (final DataOutputStream header = new DataOutputStream(bytes)) {
+			header.writeShort(0);
+			header.writeShort(blockDimensions.length);
+			for (final int d : blockDimensions)
+				header.writeInt(d);
+			header.flush();
+
+			if (compression == Compression.RAW)
+				bytes.write(data);
+			else {
+				try (final OutputStream out = new GZIPOutputStream(bytes)) {
+					out.write(data);
+				}
+			}
+		}
+
+		final Path tmpPath = Paths.get(path.toString() + "." + Thread.currentThread().getId() + ".tmp");
+		Files.write(tmpPath, bytes.toByteArray());
+		Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	@Override
+	public String toString() {
+
+		return basePath + " " + Arrays.toString(dimensions) + " " + Arrays.toString(blockSize) + " " + dataType.type + " " + compression.type;
+	}
+}
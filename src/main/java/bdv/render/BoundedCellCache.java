@@ -0,0 +1,229 @@
+/**
+ *
+ */
+package bdv.render;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.LoaderCache;
+
+/**
+ * In-memory cache with a hard budget in bytes that is shared by all scale
+ * levels of all sources.  Entries are evicted in least recently used order
+ * once the budget is exceeded.
+ *
+ * Each scale level of a source accesses the cache through its own
+ * {@link LoaderCache} view, see {@link #forLevel(Object, int, ToIntFunction)}.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class BoundedCellCache {
+
+	final static private class Key {
+
+		final Object source;
+		final int level;
+		final long index;
+
+		public Key(final Object source, final int level, final long index) {
+
+			this.source = source;
+			this.level = level;
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+
+			if (!(other instanceof Key))
+				return false;
+
+			final Key key = (Key)other;
+			return index == key.index && level == key.level && source.equals(key.source);
+		}
+
+		@Override
+		public int hashCode() {
+
+			return (source.hashCode() * 31 + level) * 31 + Long.hashCode(index);
+		}
+	}
+
+	final static private class Entry {
+
+		final Object value;
+		final int weight;
+
+		public Entry(final Object value, final int weight) {
+
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	final private class LevelCache<V> implements LoaderCache<Long, V> {
+
+		final Object source;
+		final int level;
+		final ToIntFunction<V> weigher;
+
+		public LevelCache(final Object source, final int level, final ToIntFunction<V> weigher) {
+
+			this.source = source;
+			this.level = level;
+			this.weigher = weigher;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public V getIfPresent(final Long index) {
+
+			final Entry entry = cache.getIfPresent(new Key(source, level, index));
+			return entry == null ? null : (V)entry.value;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public V get(final Long index, final CacheLoader<? super Long, ? extends V> loader) throws ExecutionException {
+
+			try {
+				return (V)cache.get(
+						new Key(source, level, index),
+						() -> {
+							final V value = loader.get(index);
+							return new Entry(value, weigher.applyAsInt(value));
+						}).value;
+			} catch (final UncheckedExecutionException | ExecutionError e) {
+				throw new ExecutionException(e.getCause());
+			}
+		}
+
+		@Override
+		public void invalidate(final Long index) {
+
+			cache.invalidate(new Key(source, level, index));
+		}
+
+		@Override
+		public void invalidateIf(final long parallelismThreshold, final Predicate<Long> condition) {
+
+			cache.asMap().keySet().removeIf(key -> key.source.equals(source) && key.level == level && condition.test(key.index));
+		}
+
+		@Override
+		public void invalidateAll(final long parallelismThreshold) {
+
+			invalidateAll();
+		}
+
+		@Override
+		public void invalidateAll() {
+
+			cache.asMap().keySet().removeIf(key -> key.source.equals(source) && key.level == level);
+		}
+	}
+
+	protected final long maxBytes;
+	protected final AtomicLong bytes = new AtomicLong();
+	protected final com.google.common.cache.Cache<Key, Entry> cache;
+
+	/**
+	 *
+	 * @param maxBytes budget in bytes
+	 */
+	public BoundedCellCache(final long maxBytes) {
+
+		this.maxBytes = maxBytes;
+
+		cache = CacheBuilder.newBuilder()
+				.maximumWeight(maxBytes)
+				.weigher((Weigher<Key, Entry>)(key, entry) -> entry.weight)
+				.removalListener((RemovalListener<Key, Entry>)notification -> bytes.addAndGet(-notification.getValue().weight))
+				.recordStats()
+				.build();
+	}
+
+	/**
+	 * Get the view of one scale level of a source.
+	 *
+	 * @param source identifies the source, must implement
+	 *     {@link Object#equals(Object)} and {@link Object#hashCode()}
+	 * @param level scale level
+	 * @param weigher weight of a value in bytes
+	 * @return
+	 */
+	public <V> LoaderCache<Long, V> forLevel(final Object source, final int level, final ToIntFunction<V> weigher) {
+
+		final ToIntFunction<V> countingWeigher = value -> {
+			final int weight = weigher.applyAsInt(value);
+			bytes.addAndGet(weight);
+			return weight;
+		};
+		return new LevelCache<>(source, level, countingWeigher);
+	}
+
+	/**
+	 * @return budget in bytes
+	 */
+	public long getMaxBytes() {
+
+		return maxBytes;
+	}
+
+	/**
+	 * @return bytes currently held
+	 */
+	public long getBytes() {
+
+		return bytes.get();
+	}
+
+	/**
+	 * @return number of cached cells
+	 */
+	public long size() {
+
+		return cache.size();
+	}
+
+	/**
+	 * Hits, misses, load times, and evictions.
+	 *
+	 * @return
+	 */
+	public CacheStats getStats() {
+
+		return cache.stats();
+	}
+
+	public void invalidateAll() {
+
+		cache.invalidateAll();
+	}
+
+	@Override
+	public String toString() {
+
+		final CacheStats stats = getStats();
+		return String.format(
+				"%d cells, %d / %d MB, %d hits, %d misses, %d evictions",
+				size(),
+				getBytes() >> 20,
+				maxBytes >> 20,
+				stats.hitCount(),
+				stats.missCount(),
+				stats.evictionCount());
+	}
+}
@@ -0,0 +1,55 @@
+/**
+ *
+ */
+package bdv.render;
+
+import java.util.concurrent.CancellationException;
+
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.type.NativeType;
+
+/**
+ * Runs the loads of another {@link CellLoader} with a
+ * {@link LoadCancellation.Token} such that they are cancelled when the view
+ * moves away from their cell.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class CancellableCellLoader<T extends NativeType<T>> implements CellLoader<T> {
+
+	protected final CellLoader<T> loader;
+	protected final LoadCancellation cancellation;
+	protected final int scaleLevel;
+
+	public CancellableCellLoader(
+			final CellLoader<T> loader,
+			final LoadCancellation cancellation,
+			final int scaleLevel) {
+
+		this.loader = loader;
+		this.cancellation = cancellation;
+		this.scaleLevel = scaleLevel;
+	}
+
+	@Override
+	public void load(final SingleCellArrayImg<T, ?> cell) throws Exception {
+
+		final long[] min = new long[cell.numDimensions()];
+		final long[] max = new long[cell.numDimensions()];
+		cell.min(min);
+		cell.max(max);
+
+		final LoadCancellation.Token token = cancellation.begin(scaleLevel, min, max);
+		try {
+			LoadCancellation.check();
+			loader.load(cell);
+		} catch (final CancellationException e) {
+			Metrics.cellCancelled();
+			throw e;
+		} finally {
+			cancellation.end(token);
+		}
+	}
+}
@@ -0,0 +1,316 @@
+/**
+ *
+ */
+package bdv.render;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link SectionRenderer} that merges requests for horizontally adjacent
+ * boxes of the same section, row, and scale into one wider box.
+ *
+ * A request for a row that is not being rendered is rendered right away,
+ * together with the requests queued for the row.  Requests for the same row
+ * from other loader threads that arrive while it renders are queued.  A
+ * queued request waits at most the window, after that, or when the queue
+ * holds the maximum number of boxes, its thread takes the queue and renders
+ * each contiguous run of queued boxes with a single call of the delegate,
+ * e.g. one render-parameters lookup and one render pass that decodes each
+ * tile once, or one request to the render web service, and copies the
+ * result into the storage of all waiting requests.  A thread renders one
+ * batch only and returns once its own request is done.
+ *
+ * Gray requests are merged with gray requests only, and are rendered
+ * straight into 8-bit if the delegate is a {@link GraySectionRenderer}.
+ *
+ * Requests of {@link LoadCancellation cancelled} loads are dropped from a
+ * batch before it is rendered.  A merged box is rendered on behalf of
+ * several loads and is not cancelled.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class CoalescingSectionRenderer implements GraySectionRenderer {
+
+	final static private class Key {
+
+		final long z;
+		final long y;
+		final long h;
+		final double scale;
+		final boolean gray;
+
+		public Key(final long z, final long y, final long h, final double scale, final boolean gray) {
+
+			this.z = z;
+			this.y = y;
+			this.h = h;
+			this.scale = scale;
+			this.gray = gray;
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+
+			if (!(other instanceof Key))
+				return false;
+
+			final Key key = (Key)other;
+			return z == key.z && y == key.y && h == key.h && scale == key.scale && gray == key.gray;
+		}
+
+		@Override
+		public int hashCode() {
+
+			return (((Long.hashCode(z) * 31 + Long.hashCode(y)) * 31 + Long.hashCode(h)) * 31 + Double.hashCode(scale)) * 31 + Boolean.hashCode(gray);
+		}
+	}
+
+	final static private class Request {
+
+		final long x;
+		final long w;
+		/* int[] or byte[] */
+		final Object data;
+		final int offset;
+		final int width;
+		final LoadCancellation.Token token = LoadCancellation.current();
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		public Request(final long x, final long w, final Object data, final int offset, final int width) {
+
+			this.x = x;
+			this.w = w;
+			this.data = data;
+			this.offset = offset;
+			this.width = width;
+		}
+	}
+
+	protected static final ThreadLocal<int[]> buffers = ThreadLocal.withInitial(() -> new int[0]);
+	protected static final ThreadLocal<byte[]> grayBuffers = ThreadLocal.withInitial(() -> new byte[0]);
+
+	protected final SectionRenderer renderer;
+	protected final long window;
+	protected final int maxBoxes;
+
+	final static private class Row {
+
+		int rendering = 0;
+		ArrayList<Request> queued = new ArrayList<>();
+	}
+
+	protected final HashMap<Key, Row> rows = new HashMap<>();
+
+	/**
+	 *
+	 * @param renderer renders the merged boxes
+	 * @param window time in ms that queued requests wait for a running render
+	 *     of their row
+	 * @param maxBoxes maximum number of boxes per batch
+	 */
+	public CoalescingSectionRenderer(
+			final SectionRenderer renderer,
+			final long window,
+			final int maxBoxes) {
+
+		this.renderer = renderer;
+		this.window = window;
+		this.maxBoxes = maxBoxes;
+	}
+
+	@Override
+	public void render(
+			final long x,
+			final long y,
+			final long z,
+			final long w,
+			final long h,
+			final double scale,
+			final int[] data,
+			final int width,
+			final int height) throws Exception {
+
+		coalesce(new Key(z, y, h, scale, false), new Request(x, w, data, 0, width), height);
+	}
+
+	@Override
+	public void renderGray(
+			final long x,
+			final long y,
+			final long z,
+			final long w,
+			final long h,
+			final double scale,
+			final byte[] data,
+			final int offset,
+			final int width,
+			final int height) throws Exception {
+
+		coalesce(new Key(z, y, h, scale, true), new Request(x, w, data, offset, width), height);
+	}
+
+	/**
+	 * Render a request right away or queue it for the running render of its
+	 * row, and wait until it is rendered.
+	 */
+	protected void coalesce(final Key key, final Request request, final int height) throws Exception {
+
+		ArrayList<Request> batch = null;
+		synchronized (rows) {
+			Row row = rows.get(key);
+			if (row == null) {
+				row = new Row();
+				rows.put(key, row);
+			}
+			if (row.rendering == 0) {
+				row.queued.add(request);
+				batch = take(row);
+			} else {
+				row.queued.add(request);
+				if (row.queued.size() >= maxBoxes)
+					batch = take(row);
+			}
+		}
+
+		if (batch != null)
+			renderBatch(key, batch, height);
+
+		for (;;) {
+			try {
+				request.done.get(window, TimeUnit.MILLISECONDS);
+				return;
+			} catch (final TimeoutException e) {
+				/* the running render takes longer than the window, or has finished */
+				synchronized (rows) {
+					final Row row = rows.get(key);
+					batch = row != null && row.queued.contains(request) ? take(row) : null;
+				}
+				if (batch != null)
+					renderBatch(key, batch, height);
+			} catch (final ExecutionException e) {
+				throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+			}
+		}
+	}
+
+	/**
+	 * Take the queued requests of a row for rendering.  Call synchronized on
+	 * {@link #rows}.
+	 */
+	private static ArrayList<Request> take(final Row row) {
+
+		final ArrayList<Request> batch = row.queued;
+		row.queued = new ArrayList<>();
+		++row.rendering;
+		return batch;
+	}
+
+	/**
+	 * Render a batch taken from a row, the requests queued for the row
+	 * meanwhile are left to their own threads.
+	 */
+	protected void renderBatch(final Key key, final ArrayList<Request> batch, final int height) {
+
+		try {
+			render(key, batch, height);
+		} finally {
+			synchronized (rows) {
+				final Row row = rows.get(key);
+				if (--row.rendering == 0 && row.queued.isEmpty())
+					rows.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Render all contiguous runs of a batch, completes or fails all its
+	 * requests and never throws.
+	 */
+	protected void render(final Key key, final ArrayList<Request> batch, final int height) {
+
+		batch.removeIf(request -> {
+			if (request.token == null || !request.token.isCancelled())
+				return false;
+			request.done.completeExceptionally(new CancellationException("cell load cancelled"));
+			return true;
+		});
+
+		batch.sort(Comparator.comparingLong(request -> request.x));
+
+		int first = 0;
+		for (int i = 1; i <= batch.size(); ++i) {
+			if (i == batch.size() || batch.get(i).x != batch.get(i - 1).x + batch.get(i - 1).w) {
+				renderRun(key, batch.subList(first, i), height);
+				first = i;
+			}
+		}
+	}
+
+	protected void renderRun(final Key key, final List<Request> run, final int height) {
+
+		final LoadCancellation.Token previous = LoadCancellation.set(run.size() == 1 ? run.get(0).token : null);
+		try {
+			if (run.size() == 1) {
+				final Request request = run.get(0);
+				if (key.gray)
+					SliceLoader.renderGray(renderer, request.x, key.y, key.z, request.w, key.h, key.scale, (byte[])request.data, request.offset, request.width, height);
+				else
+					renderer.render(request.x, key.y, key.z, request.w, key.h, key.scale, (int[])request.data, request.width, height);
+			} else {
+				final Request first = run.get(0);
+				long w = 0;
+				int width = 0;
+				for (final Request request : run) {
+					w += request.w;
+					width += request.width;
+				}
+
+				final int n = width * height;
+				final Object buffer;
+				if (key.gray) {
+					byte[] grayBuffer = grayBuffers.get();
+					if (grayBuffer.length < n) {
+						grayBuffer = new byte[n];
+						grayBuffers.set(grayBuffer);
+					} else
+						Arrays.fill(grayBuffer, 0, n, (byte)0);
+					SliceLoader.renderGray(renderer, first.x, key.y, key.z, w, key.h, key.scale, grayBuffer, 0, width, height);
+					buffer = grayBuffer;
+				} else {
+					int[] argbBuffer = buffers.get();
+					if (argbBuffer.length < n) {
+						argbBuffer = new int[n];
+						buffers.set(argbBuffer);
+					} else
+						Arrays.fill(argbBuffer, 0, n, 0);
+					renderer.render(first.x, key.y, key.z, w, key.h, key.scale, argbBuffer, width, height);
+					buffer = argbBuffer;
+				}
+
+				int offset = 0;
+				for (final Request request : run) {
+					for (int row = 0; row < height; ++row)
+						System.arraycopy(buffer, row * width + offset, request.data, request.offset + row * request.width, request.width);
+					offset += request.width;
+				}
+			}
+			for (final Request request : run)
+				request.done.complete(null);
+		} catch (final Throwable t) {
+			for (final Request request : run)
+				request.done.completeExceptionally(t);
+		} finally {
+			LoadCancellation.set(previous);
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/**
+ *
+ */
+package bdv.render;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Image codec and quality of transferred tiles or boxes for each scale
+ * level.
+ *
+ * A policy is written as a comma separated list of codecs for scale levels
+ * 0, 1, 2, ..., e.g. <code>PNG,PNG,JPEG:0.9,JPEG:0.75</code>, the last
+ * entry applies to all coarser levels.  JPEG takes an optional quality in
+ * (0, 1].  Lossless PNG keeps full quality at fine levels, JPEG saves
+ * bandwidth and decode time at coarse levels where quality matters least,
+ * and RAW saves decode time on fast connections.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class CodecPolicy {
+
+	public static enum Codec {
+
+		PNG,
+		JPEG,
+		RAW;
+
+		/**
+		 * @param mode render mode of remote boxes
+		 * @return the codec of boxes of this render mode, PNG for local
+		 *     rendering
+		 */
+		public static Codec of(final RenderMode mode) {
+
+			switch (mode) {
+			case JPEG:
+				return JPEG;
+			case RAW:
+				return RAW;
+			default:
+				return PNG;
+			}
+		}
+
+		/**
+		 * Guess the codec of a tile or mask URL, TIFF is the raw format of
+		 * tiles.
+		 *
+		 * @param url
+		 * @return
+		 */
+		public static Codec of(final String url) {
+
+			final String lower = url.toLowerCase();
+			if (lower.contains("/jpeg-image") || lower.endsWith(".jpg") || lower.endsWith(".jpeg"))
+				return JPEG;
+			if (lower.contains("/tiff-image") || lower.endsWith(".tif") || lower.endsWith(".tiff"))
+				return RAW;
+			return PNG;
+		}
+
+		public RenderMode getRenderMode() {
+
+			switch (this) {
+			case JPEG:
+				return RenderMode.JPEG;
+			case RAW:
+				return RenderMode.RAW;
+			default:
+				return RenderMode.PNG;
+			}
+		}
+	}
+
+	public static final float defaultQuality = 0.85f;
+
+	protected final Codec[] codecs;
+	protected final float[] qualities;
+
+	public CodecPolicy(final Codec[] codecs, final float[] qualities) {
+
+		if (codecs.length == 0 || codecs.length != qualities.length)
+			throw new IllegalArgumentException("A codec policy needs one codec and quality per level.");
+
+		this.codecs = codecs.clone();
+		this.qualities = qualities.clone();
+	}
+
+	/**
+	 * The same codec for all scale levels.
+	 *
+	 * @param codec
+	 */
+	public CodecPolicy(final Codec codec) {
+
+		this(new Codec[]{codec}, new float[]{defaultQuality});
+	}
+
+	/**
+	 * Parse a policy like <code>PNG,PNG,JPEG:0.8</code>.
+	 *
+	 * @param policy
+	 * @return
+	 * @throws IllegalArgumentException if the policy cannot be parsed
+	 */
+	public static CodecPolicy parse(final String policy) {
+
+		final ArrayList<Codec> codecs = new ArrayList<>();
+		final ArrayList<Float> qualities = new ArrayList<>();
+		for (final String entry : policy.split(",")) {
+			final String[] codecAndQuality = entry.trim().split(":");
+			final Codec codec = Codec.valueOf(codecAndQuality[0].trim().toUpperCase());
+			float quality = defaultQuality;
+			if (codecAndQuality.length > 1) {
+				if (codec != Codec.JPEG)
+					throw new IllegalArgumentException("Only JPEG has a quality: " + entry);
+				quality = Float.parseFloat(codecAndQuality[1].trim());
+				if (!(quality > 0 && quality <= 1))
+					throw new IllegalArgumentException("JPEG quality must be in (0, 1]: " + entry);
+			}
+			codecs.add(codec);
+			qualities.add(quality);
+		}
+
+		final float[] qualityArray = new float[qualities.size()];
+		for (int i = 0; i < qualityArray.length; ++i)
+			qualityArray[i] = qualities.get(i);
+
+		return new CodecPolicy(codecs.toArray(new Codec[codecs.size()]), qualityArray);
+	}
+
+	/**
+	 * The policy of a render stack, {@link Parameters#codecs} if set,
+	 * otherwise PNG tiles for local rendering or the codec of the
+	 * {@link RenderMode} of remote boxes.
+	 *
+	 * @param p
+	 * @return
+	 */
+	public static CodecPolicy create(final Parameters p) {
+
+		if (p.codecs == null || p.codecs.trim().isEmpty())
+			return new CodecPolicy(Codec.of(p.renderMode));
+		else
+			return parse(p.codecs);
+	}
+
+	/**
+	 * @param scale
+	 * @return the scale level of a render scale, i.e. the mipmap level of
+	 *     tiles that the renderer uses
+	 */
+	public static int level(final double scale) {
+
+		return scale >= 1 ? 0 : (int)Math.round(-Math.log(scale) / Math.log(2));
+	}
+
+	public Codec getCodec(final int level) {
+
+		return codecs[Math.min(level, codecs.length - 1)];
+	}
+
+	public float getQuality(final int level) {
+
+		return qualities[Math.min(level, qualities.length - 1)];
+	}
+
+	/**
+	 * @return true if all levels are PNG, i.e. lossless and as served by
+	 *     default
+	 */
+	public boolean isPng() {
+
+		for (final Codec codec : codecs)
+			if (codec != Codec.PNG)
+				return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+
+		final StringBuilder policy = new StringBuilder();
+		for (int i = 0; i < codecs.length; ++i) {
+			if (i > 0)
+				policy.append(',');
+			policy.append(codecs[i].name());
+			if (codecs[i] == Codec.JPEG)
+				policy.append(':').append(qualities[i]);
+		}
+		return policy.toString();
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+
+		if (!(o instanceof CodecPolicy))
+			return false;
+
+		final CodecPolicy other = (CodecPolicy)o;
+		return Arrays.equals(codecs, other.codecs) && Arrays.equals(qualities, other.qualities);
+	}
+
+	@Override
+	public int hashCode() {
+
+		return 31 * Arrays.hashCode(codecs) + Arrays.hashCode(qualities);
+	}
+}
@@ -0,0 +1,245 @@
+/**
+ *
+ */
+package bdv.render;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import net.imglib2.Interval;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * {@link CellLoader} that computes the cells of a scale level by 2x2 (xy) or
+ * 2x2xr (with z-averaging) box downsampling of the next finer scale level if
+ * all finer cells that it covers are cached in memory or in a persistent
+ * {@link BlockStore}.  Cells with missing finer data are loaded by a
+ * fallback loader, typically by rendering them remotely.
+ *
+ * The storage arrays of the finer cells are taken once and downsampled
+ * directly, finer cells are never loaded on behalf of a coarser cell.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class DownsamplingCellLoader<T extends NativeType<T>> implements CellLoader<T> {
+
+	protected final CachedCellImg<T, ?> finer;
+	protected final BlockStore finerStore;
+	protected final int zRatio;
+	protected final CellLoader<T> fallback;
+
+	/**
+	 *
+	 * @param finer the next finer scale level
+	 * @param finerStore persistent store of the finer scale level or null
+	 * @param zRatio number of finer sections per section of this level
+	 * @param fallback loads cells whose finer data is missing
+	 */
+	public DownsamplingCellLoader(
+			final CachedCellImg<T, ?> finer,
+			final BlockStore finerStore,
+			final int zRatio,
+			final CellLoader<T> fallback) {
+
+		this.finer = finer;
+		this.finerStore = finerStore;
+		this.zRatio = zRatio;
+		this.fallback = fallback;
+	}
+
+	/**
+	 * A cached cell that shows a preview must not be downsampled.
+	 */
+	protected static boolean isPreview(final Object cell) {
+
+		return Refinement.isPending(((ArrayDataAccess<?>)((Cell<?>)cell).getData()).getCurrentStorageArray());
+	}
+
+	/**
+	 * Take the storage arrays of all finer cells that overlap [min, max] at
+	 * full quality, from memory if they are cached or else from the
+	 * persistent store.  The arrays are taken once, so finer cells that are
+	 * evicted meanwhile are not loaded again.
+	 *
+	 * @param min
+	 * @param max
+	 * @param gray
+	 * @param cellMins filled with the first voxel of each finer cell
+	 * @param cellDimensions filled with the size of each finer cell
+	 * @return the storage arrays of the finer cells, or null if one of them
+	 *     is missing
+	 * @throws IOException
+	 */
+	protected ArrayList<Object> take(
+			final long[] min,
+			final long[] max,
+			final boolean gray,
+			final ArrayList<long[]> cellMins,
+			final ArrayList<int[]> cellDimensions) throws IOException {
+
+		final CellGrid grid = finer.getCellGrid();
+		final Cache<Long, ?> cache = finer.getCache();
+		final long[] gridDimensions = grid.getGridDimensions();
+		final long[] gridMin = new long[3];
+		final long[] gridMax = new long[3];
+		for (int d = 0; d < 3; ++d) {
+			gridMin[d] = min[d] / grid.cellDimension(d);
+			gridMax[d] = max[d] / grid.cellDimension(d);
+		}
+
+		final ArrayList<Object> arrays = new ArrayList<>();
+		final long[] gridPosition = new long[3];
+		for (gridPosition[2] = gridMin[2]; gridPosition[2] <= gridMax[2]; ++gridPosition[2]) {
+			for (gridPosition[1] = gridMin[1]; gridPosition[1] <= gridMax[1]; ++gridPosition[1]) {
+				for (gridPosition[0] = gridMin[0]; gridPosition[0] <= gridMax[0]; ++gridPosition[0]) {
+					final long[] cellMin = new long[3];
+					final int[] cellDims = new int[3];
+					grid.getCellDimensions(gridPosition, cellMin, cellDims);
+					final Object finerCell = cache.getIfPresent(IntervalIndexer.positionToIndex(gridPosition, gridDimensions));
+					Object array = null;
+					if (finerCell != null && !isPreview(finerCell))
+						array = ((ArrayDataAccess<?>)((Cell<?>)finerCell).getData()).getCurrentStorageArray();
+					else if (finerStore != null) {
+						final int numElements = cellDims[0] * cellDims[1] * cellDims[2];
+						if (gray) {
+							final byte[] bytes = new byte[numElements];
+							if (finerStore.read(gridPosition, bytes))
+								array = bytes;
+						} else {
+							final int[] ints = new int[numElements];
+							if (finerStore.read(gridPosition, ints))
+								array = ints;
+						}
+					}
+					if (array == null)
+						return null;
+					arrays.add(array);
+					cellMins.add(cellMin);
+					cellDimensions.add(cellDims);
+				}
+			}
+		}
+		return arrays;
+	}
+
+	@Override
+	public void load(final SingleCellArrayImg<T, ?> cell) throws Exception {
+
+		if (zRatio < 1) {
+			fallback.load(cell);
+			return;
+		}
+
+		final long[] min = new long[3];
+		final long[] max = new long[3];
+		final int[] ratios = {2, 2, zRatio};
+		for (int d = 0; d < 3; ++d) {
+			min[d] = cell.min(d) * ratios[d];
+			max[d] = Math.min(finer.dimension(d) - 1, (cell.max(d) + 1) * ratios[d] - 1);
+		}
+
+		if (min[0] > max[0] || min[1] > max[1] || min[2] > max[2]) {
+			fallback.load(cell);
+			return;
+		}
+
+		final Object storage = cell.getStorageArray();
+		final boolean gray = storage instanceof byte[];
+		final ArrayList<long[]> cellMins = new ArrayList<>();
+		final ArrayList<int[]> cellDimensions = new ArrayList<>();
+		final ArrayList<Object> arrays;
+		try {
+			arrays = take(min, max, gray, cellMins, cellDimensions);
+		} catch (final IOException e) {
+			System.err.println("Could not read finer blocks, rendering the cell instead: " + e.getMessage());
+			fallback.load(cell);
+			return;
+		}
+		if (arrays == null) {
+			fallback.load(cell);
+			return;
+		}
+
+		final int numElements = (int)(cell.dimension(0) * cell.dimension(1) * cell.dimension(2));
+		final int[] counts = new int[numElements];
+		final int[][] sums = new int[gray ? 1 : 4][numElements];
+		for (int i = 0; i < arrays.size(); ++i)
+			accumulate(arrays.get(i), cellMins.get(i), cellDimensions.get(i), cell, ratios, min, max, sums, counts);
+
+		if (gray) {
+			final byte[] data = (byte[])storage;
+			for (int i = 0; i < numElements; ++i)
+				if (counts[i] > 0)
+					data[i] = (byte)(sums[0][i] / counts[i]);
+		} else {
+			final int[] data = (int[])storage;
+			for (int i = 0; i < numElements; ++i) {
+				final int n = counts[i];
+				if (n > 0)
+					data[i] = ARGBType.rgba(sums[1][i] / n, sums[2][i] / n, sums[3][i] / n, sums[0][i] / n);
+			}
+		}
+	}
+
+	/**
+	 * Add the voxels of a finer cell within [min, max] to the sums of the
+	 * cell voxels that they cover, a, r, g, b for ARGB or one sum for gray.
+	 */
+	protected static void accumulate(
+			final Object array,
+			final long[] finerMin,
+			final int[] finerDimensions,
+			final Interval cell,
+			final int[] ratios,
+			final long[] min,
+			final long[] max,
+			final int[][] sums,
+			final int[] counts) {
+
+		final int width = (int)cell.dimension(0);
+		final int height = (int)cell.dimension(1);
+		final int[] ints = array instanceof int[] ? (int[])array : null;
+		final byte[] bytes = array instanceof byte[] ? (byte[])array : null;
+
+		for (int fz = 0; fz < finerDimensions[2]; ++fz) {
+			final long z = finerMin[2] + fz;
+			if (z < min[2] || z > max[2])
+				continue;
+			final int oz = (int)(z / ratios[2] - cell.min(2));
+			for (int fy = 0; fy < finerDimensions[1]; ++fy) {
+				final long y = finerMin[1] + fy;
+				if (y < min[1] || y > max[1])
+					continue;
+				final int oy = (int)(y / ratios[1] - cell.min(1));
+				final int offset = (oz * height + oy) * width;
+				int fi = (fz * finerDimensions[1] + fy) * finerDimensions[0];
+				for (int fx = 0; fx < finerDimensions[0]; ++fx, ++fi) {
+					final long x = finerMin[0] + fx;
+					if (x < min[0] || x > max[0])
+						continue;
+					final int i = offset + (int)(x / ratios[0] - cell.min(0));
+					if (bytes != null)
+						sums[0][i] += bytes[fi] & 0xff;
+					else {
+						final int argb = ints[fi];
+						sums[0][i] += (argb >>> 24) & 0xff;
+						sums[1][i] += (argb >> 16) & 0xff;
+						sums[2][i] += (argb >> 8) & 0xff;
+						sums[3][i] += argb & 0xff;
+					}
+					++counts[i];
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/**
+ *
+ */
+package bdv.render;
+
+/**
+ * {@link SectionRenderer} that also renders a box of a section straight
+ * into 8-bit gray pixels, without rendering ARGB pixels first.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public interface GraySectionRenderer extends SectionRenderer {
+
+	/**
+	 * Render the box [x, x + w) x [y, y + h) of section z in world
+	 * coordinates at scale into width * height elements of data starting at
+	 * offset.  Data is expected to be cleared.
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param w
+	 * @param h
+	 * @param scale
+	 * @param data
+	 * @param offset
+	 * @param width
+	 * @param height
+	 * @throws Exception
+	 */
+	public void renderGray(
+			final long x,
+			final long y,
+			final long z,
+			final long w,
+			final long h,
+			final double scale,
+			final byte[] data,
+			final int offset,
+			final int width,
+			final int height) throws Exception;
+}
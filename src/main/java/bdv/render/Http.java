@@ -0,0 +1,270 @@
+package bdv.render;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * HTTP access for all requests to the render web service.
+ *
+ * Connections are kept alive and reused through the JDK's keep-alive cache
+ * of {@link HttpURLConnection}, the number of concurrently open connections
+ * is bounded by the size of that pool and adapts below that bound to the
+ * measured response latency, see {@link AdaptiveLimiter}.  Requests time out, accept gzip
+ * encoded responses, and are retried with exponential backoff on
+ * connection failures and server errors.
+ *
+ * The connect and read timeouts and the pool size are also set as JDK
+ * defaults such that requests that are not made through this class, e.g.
+ * tile and mask requests made by the renderer, share the pool and do not
+ * hang on a slow server.
+ *
+ * Connections opened for a cell load are disconnected when the load is
+ * {@link LoadCancellation cancelled}, such that a blocked read fails
+ * immediately, and cancelled requests are not retried.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ */
+public final class Http {
+
+	private static volatile int connectTimeout = 10000;
+	private static volatile int readTimeout = 60000;
+	private static volatile int maxRetries = 3;
+	private static volatile long backoff = 250;
+	private static volatile int maxConnections = 32;
+	private static volatile AdaptiveLimiter connections = new AdaptiveLimiter(1, maxConnections, Math.max(1, maxConnections / 4));
+
+	static {
+		Metrics.registerGauge("http.in_flight", () -> connections.getInFlight());
+		Metrics.registerGauge("http.limit", () -> connections.getLimit());
+	}
+
+	private Http() {}
+
+	/**
+	 * Configure the HTTP layer.  The pool size is only picked up by the JDK's
+	 * keep-alive cache if set before the first connection is opened.
+	 *
+	 * @param maxConnections maximum number of concurrently open connections
+	 * @param connectTimeout in ms
+	 * @param readTimeout in ms
+	 * @param maxRetries
+	 * @param backoff initial delay before the first retry in ms, doubled
+	 *     with each further retry
+	 */
+	public static synchronized void configure(
+			final int maxConnections,
+			final int connectTimeout,
+			final int readTimeout,
+			final int maxRetries,
+			final long backoff) {
+
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", Integer.toString(maxConnections));
+		System.setProperty("sun.net.client.defaultConnectTimeout", Integer.toString(connectTimeout));
+		System.setProperty("sun.net.client.defaultReadTimeout", Integer.toString(readTimeout));
+
+		Http.connectTimeout = connectTimeout;
+		Http.readTimeout = readTimeout;
+		Http.maxRetries = maxRetries;
+		Http.backoff = backoff;
+		if (Http.maxConnections != maxConnections) {
+			Http.maxConnections = maxConnections;
+			connections = new AdaptiveLimiter(1, maxConnections, Math.max(1, maxConnections / 4));
+		}
+	}
+
+	public static void configure(final Parameters p) {
+
+		configure(p.httpConnections, p.httpConnectTimeout, p.httpReadTimeout, p.httpRetries, p.httpBackoff);
+	}
+
+	/**
+	 * Releases its connection permit and its cancellation action exactly
+	 * once when closed and counts the bytes read.
+	 */
+	final static private class PermitInputStream extends FilterInputStream {
+
+		private final AdaptiveLimiter permits;
+		private final Runnable removeOnCancel;
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+
+		public PermitInputStream(final InputStream in, final AdaptiveLimiter permits, final Runnable removeOnCancel) {
+
+			super(in);
+			this.permits = permits;
+			this.removeOnCancel = removeOnCancel;
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			final int b;
+			try {
+				b = super.read();
+			} catch (final IOException e) {
+				throw cancelledOr(e);
+			}
+			if (b >= 0)
+				Metrics.bytesFetched(1);
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+
+			final int n;
+			try {
+				n = super.read(bytes, offset, length);
+			} catch (final IOException e) {
+				throw cancelledOr(e);
+			}
+			if (n > 0)
+				Metrics.bytesFetched(n);
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			try {
+				super.close();
+			} finally {
+				if (closed.compareAndSet(false, true)) {
+					removeOnCancel.run();
+					permits.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A read that failed because its connection was disconnected by a
+	 * cancellation fails with a {@link CancellationException}.
+	 */
+	private static IOException cancelledOr(final IOException e) {
+
+		if (LoadCancellation.isCancelled())
+			throw new CancellationException("cell load cancelled");
+		return e;
+	}
+
+	private static boolean isRetryable(final int responseCode) {
+
+		return responseCode >= 500 || responseCode == 429;
+	}
+
+	private static void drain(final InputStream in) {
+
+		if (in == null)
+			return;
+
+		try (final InputStream stream = in) {
+			final byte[] buffer = new byte[4096];
+			while (stream.read(buffer) >= 0);
+		} catch (final IOException e) {}
+	}
+
+	/**
+	 * Open a stream for a URL.  The stream must be closed to release its
+	 * connection back to the pool.
+	 *
+	 * @param url
+	 * @return
+	 * @throws IOException after the last failed retry
+	 * @throws CancellationException if the cell load of this thread was
+	 *     cancelled
+	 */
+	public static InputStream openStream(final String url) throws IOException {
+
+		final URL urlObject = new URL(url);
+		if (!urlObject.getProtocol().startsWith("http"))
+			return urlObject.openStream();
+
+		final AdaptiveLimiter permits = connections;
+		long delay = backoff;
+		for (int attempt = 0;; ++attempt) {
+			LoadCancellation.check();
+			permits.acquire();
+			Metrics.request();
+			final long t = System.nanoTime();
+			boolean released = false;
+			boolean retry;
+			IOException failure;
+			Runnable removeOnCancel = null;
+			try {
+				final HttpURLConnection connection = (HttpURLConnection)urlObject.openConnection();
+				connection.setConnectTimeout(connectTimeout);
+				connection.setReadTimeout(readTimeout);
+				connection.setRequestProperty("Accept-Encoding", "gzip");
+				removeOnCancel = LoadCancellation.onCancel(connection::disconnect);
+
+				final int responseCode = connection.getResponseCode();
+				if (responseCode < 300) {
+					permits.sample(System.nanoTime() - t);
+					final InputStream in = decode(connection);
+					released = true;
+					return new PermitInputStream(in, permits, removeOnCancel);
+				}
+
+				drain(connection.getErrorStream());
+				failure = new IOException("HTTP " + responseCode + " for " + url);
+				retry = isRetryable(responseCode);
+				if (retry)
+					permits.failed();
+			} catch (final IOException e) {
+				if (LoadCancellation.isCancelled())
+					throw new CancellationException("cell load cancelled, disconnected " + url);
+				failure = e;
+				retry = true;
+				permits.failed();
+			} finally {
+				if (!released) {
+					if (removeOnCancel != null)
+						removeOnCancel.run();
+					permits.release();
+				}
+			}
+
+			if (!retry || attempt >= maxRetries) {
+				Metrics.requestFailed();
+				throw failure;
+			}
+			Metrics.retry();
+
+			try {
+				Thread.sleep(delay);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw failure;
+			}
+			delay <<= 1;
+		}
+	}
+
+	private static InputStream decode(final URLConnection connection) throws IOException {
+
+		final InputStream in = connection.getInputStream();
+		return "gzip".equalsIgnoreCase(connection.getContentEncoding()) ? new GZIPInputStream(in) : in;
+	}
+
+	/**
+	 * Open a reader for a URL, see {@link #openStream(String)}.
+	 *
+	 * @param url
+	 * @return
+	 * @throws IOException
+	 */
+	public static Reader openReader(final String url) throws IOException {
+
+		return new InputStreamReader(openStream(url));
+	}
+}
@@ -0,0 +1,415 @@
+/**
+ *
+ */
+package bdv.render;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import bdv.viewer.Source;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Cooperative cancellation of cell loads that the current view no longer
+ * needs.
+ *
+ * Each load of a cell runs with a {@link Token} that is bound to the loading
+ * thread and to the threads that render sections on its behalf.  When the
+ * view changes, the tokens of all running loads of cells that are neither
+ * visible nor within a margin of cells around the viewport, or whose scale
+ * level is finer than the view needs, are cancelled.  Loaders
+ * {@link #check() check} their token between sections and before rendering,
+ * and HTTP requests of a cancelled load are disconnected, such that the
+ * load fails fast with a {@link CancellationException} and frees its thread.
+ * A cancelled cell stays invalid and is loaded again when it is requested
+ * again.
+ *
+ * Nothing is cancelled before the first view is set, e.g. when exporting.
+ *
+ * When several sources share the fetcher threads and caches of one viewer,
+ * each source has a {@link #setPriority(int) priority} that its loads carry
+ * to shared gates such as HTTP connections and render permits, see
+ * {@link AdaptiveLimiter}.  Running loads of a {@link #HIDDEN hidden} source
+ * are cancelled.  Loads started {@link #runInBackground(Runnable) in the
+ * background}, e.g. by the {@link Prefetcher}, pass those gates after all
+ * loads of visible sources.
+ *
+ * Background tasks that a load {@link #fork(Token) forks}, e.g. the
+ * {@link Refinement} of a preview, are cancelled with the loads of their
+ * cell, and may {@link #resumeInView(Token, Runnable) resume} when their
+ * cell is in view again.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class LoadCancellation {
+
+	/* priorities of sources, smaller is first */
+	public static final int CURRENT = 0;
+	public static final int VISIBLE = 1;
+	public static final int HIDDEN = 2;
+
+	/* added to the priority of background loads */
+	public static final int BACKGROUND = HIDDEN + 1;
+
+	final static public class Token {
+
+		final LoadCancellation owner;
+		final int level;
+		final long[] min;
+		final long[] max;
+		final boolean background;
+		private volatile boolean cancelled = false;
+		private final Set<Runnable> onCancel = ConcurrentHashMap.newKeySet();
+
+		public Token(
+				final LoadCancellation owner,
+				final int level,
+				final long[] min,
+				final long[] max,
+				final boolean background) {
+
+			this.owner = owner;
+			this.level = level;
+			this.min = min;
+			this.max = max;
+			this.background = background;
+		}
+
+		public boolean isCancelled() {
+
+			return cancelled;
+		}
+
+		public int getPriority() {
+
+			return background ? BACKGROUND + owner.priority : owner.priority;
+		}
+
+		protected void cancel() {
+
+			cancelled = true;
+			for (final Runnable action : onCancel)
+				action.run();
+		}
+	}
+
+	/**
+	 * Bounding boxes of the view for each scale level in voxel coordinates
+	 * of that level.
+	 */
+	final static protected class View {
+
+		final int minLevel;
+		final double[][] min;
+		final double[][] max;
+
+		public View(final int minLevel, final double[][] min, final double[][] max) {
+
+			this.minLevel = minLevel;
+			this.min = min;
+			this.max = max;
+		}
+
+		public boolean contains(final Token token) {
+
+			if (token.level >= min.length)
+				return true;
+			if (token.level < minLevel)
+				return false;
+
+			for (int d = 0; d < 3; ++d)
+				if (token.max[d] < min[token.level][d] || token.min[d] > max[token.level][d])
+					return false;
+
+			return true;
+		}
+	}
+
+	private static final ThreadLocal<Token> current = new ThreadLocal<>();
+	private static final ThreadLocal<Boolean> background = ThreadLocal.withInitial(() -> false);
+
+	protected final int[][] blockSizes;
+	protected final int margin;
+	protected final Set<Token> active = ConcurrentHashMap.newKeySet();
+	protected final Map<Token, Runnable> deferred = new ConcurrentHashMap<>();
+	protected volatile View view = null;
+	protected volatile int priority = CURRENT;
+
+	/**
+	 *
+	 * @param blockSizes cell size of each scale level
+	 * @param margin number of cells around the viewport whose loads are
+	 *     kept, e.g. those prefetched, in z only for cells that are more than
+	 *     one section deep
+	 */
+	public LoadCancellation(final int[][] blockSizes, final int margin) {
+
+		this.blockSizes = new int[blockSizes.length][];
+		for (int level = 0; level < blockSizes.length; ++level)
+			this.blockSizes[level] = blockSizes[level].clone();
+		this.margin = margin;
+	}
+
+	/**
+	 * @return the token of the load running on this thread or null
+	 */
+	public static Token current() {
+
+		return current.get();
+	}
+
+	/**
+	 * Bind a token to this thread, e.g. on a thread that renders a section
+	 * on behalf of a load.
+	 *
+	 * @param token null to unbind
+	 * @return the previously bound token
+	 */
+	public static Token set(final Token token) {
+
+		final Token previous = current.get();
+		if (token == null)
+			current.remove();
+		else
+			current.set(token);
+		return previous;
+	}
+
+	/**
+	 * @return priority of the load running on this thread, {@link #CURRENT}
+	 *     for requests outside of loads
+	 */
+	public static int currentPriority() {
+
+		final Token token = current.get();
+		return token == null ? CURRENT : token.getPriority();
+	}
+
+	/**
+	 * Run an action whose loads pass shared gates after the loads of all
+	 * visible sources, e.g. prefetching.
+	 *
+	 * @param action
+	 */
+	public static void runInBackground(final Runnable action) {
+
+		final boolean previous = background.get();
+		background.set(true);
+		try {
+			action.run();
+		} finally {
+			background.set(previous);
+		}
+	}
+
+	public static boolean isCancelled() {
+
+		final Token token = current.get();
+		return token != null && token.cancelled;
+	}
+
+	/**
+	 * @throws CancellationException if the load running on this thread was
+	 *     cancelled
+	 */
+	public static void check() {
+
+		if (isCancelled())
+			throw new CancellationException("cell load cancelled");
+	}
+
+	/**
+	 * Run an action when the load running on this thread is cancelled, e.g.
+	 * close a connection.  The action runs immediately if the load was
+	 * cancelled already.
+	 *
+	 * @param action
+	 * @return removes the action, e.g. when the connection is closed
+	 */
+	public static Runnable onCancel(final Runnable action) {
+
+		final Token token = current.get();
+		if (token == null)
+			return () -> {};
+
+		token.onCancel.add(action);
+		if (token.cancelled)
+			action.run();
+
+		return () -> token.onCancel.remove(action);
+	}
+
+	/**
+	 * Start the load of a cell on this thread.  Loads that run on behalf of
+	 * another load of this thread, e.g. finer cells for downsampling, share
+	 * its token.
+	 *
+	 * @param level
+	 * @param min first voxel of the cell
+	 * @param max last voxel of the cell
+	 * @return the new token or null for a nested load
+	 */
+	public Token begin(final int level, final long[] min, final long[] max) {
+
+		if (current.get() != null)
+			return null;
+
+		final Token token = new Token(this, level, min, max, background.get());
+		current.set(token);
+		track(token);
+
+		return token;
+	}
+
+	/**
+	 * Start a background task on behalf of a load, e.g. the refinement of
+	 * its cell.  The task is cancelled with the loads of the same cell and
+	 * passes shared gates in the background.  Bind the returned token to the
+	 * threads of the task and {@link #release(Token) release} it when the
+	 * task is done.
+	 *
+	 * @param token of the load or of a previous task for the same cell
+	 * @return the token of the task or null if token is null
+	 */
+	public static Token fork(final Token token) {
+
+		if (token == null)
+			return null;
+
+		final Token forked = new Token(token.owner, token.level, token.min, token.max, true);
+		token.owner.track(forked);
+
+		return forked;
+	}
+
+	/**
+	 * Finish a task started with {@link #fork(Token)}.
+	 *
+	 * @param token
+	 */
+	public static void release(final Token token) {
+
+		if (token != null)
+			token.owner.active.remove(token);
+	}
+
+	/**
+	 * Run an action when the cell of a cancelled task is in view again and
+	 * its source is not hidden, e.g. to resume the task with a new
+	 * {@link #fork(Token) fork} of its token.
+	 *
+	 * @param token of the cancelled task
+	 * @param action
+	 */
+	public static void resumeInView(final Token token, final Runnable action) {
+
+		token.owner.deferred.put(token, action);
+		token.owner.resume();
+	}
+
+	protected void track(final Token token) {
+
+		active.add(token);
+		final View view = this.view;
+		if (priority >= HIDDEN || view != null && !view.contains(token))
+			token.cancel();
+	}
+
+	/**
+	 * Run the deferred actions of all tasks whose cell is in view.
+	 */
+	protected void resume() {
+
+		if (priority >= HIDDEN)
+			return;
+
+		final View view = this.view;
+		for (final Map.Entry<Token, Runnable> entry : deferred.entrySet())
+			if ((view == null || view.contains(entry.getKey())) && deferred.remove(entry.getKey()) != null)
+				entry.getValue().run();
+	}
+
+	/**
+	 * Finish a load started with {@link #begin(int, long[], long[])}.
+	 *
+	 * @param token
+	 */
+	public void end(final Token token) {
+
+		if (token == null)
+			return;
+
+		active.remove(token);
+		current.remove();
+	}
+
+	public int getPriority() {
+
+		return priority;
+	}
+
+	/**
+	 * Set the priority of the loads of this source, cancel all running loads
+	 * if it is {@link #HIDDEN}.
+	 *
+	 * @param priority {@link #CURRENT}, {@link #VISIBLE}, or {@link #HIDDEN}
+	 */
+	public void setPriority(final int priority) {
+
+		this.priority = priority;
+		if (priority >= HIDDEN) {
+			for (final Token token : active)
+				if (!token.cancelled)
+					token.cancel();
+		} else
+			resume();
+	}
+
+	/**
+	 * Set the view and cancel all running loads outside of it.
+	 *
+	 * @param source
+	 * @param viewerTransform
+	 * @param width of the viewport
+	 * @param height of the viewport
+	 */
+	public void update(
+			final Source<?> source,
+			final AffineTransform3D viewerTransform,
+			final int width,
+			final int height) {
+
+		if (width <= 0 || height <= 0)
+			return;
+
+		final int numLevels = source.getNumMipmapLevels();
+		final double[][] min = new double[numLevels][3];
+		final double[][] max = new double[numLevels][3];
+		final AffineTransform3D sourceToScreen = new AffineTransform3D();
+		for (int level = 0; level < numLevels; ++level) {
+			source.getSourceTransform(0, level, sourceToScreen);
+			sourceToScreen.preConcatenate(viewerTransform);
+			Prefetcher.screenBounds(sourceToScreen.inverse(), width, height, min[level], max[level]);
+			final int[] blockSize = blockSizes[Math.min(level, blockSizes.length - 1)];
+			for (int d = 0; d < 3; ++d) {
+				if (d < 2 || blockSize[d] > 1) {
+					min[level][d] -= margin * blockSize[d];
+					max[level][d] += margin * blockSize[d];
+				}
+			}
+		}
+
+		/* BDV may show one level finer than the best matching level */
+		final View view = new View(Math.max(0, Prefetcher.bestLevel(source, viewerTransform) - 1), min, max);
+		this.view = view;
+
+		for (final Token token : active)
+			if (!token.cancelled && !view.contains(token))
+				token.cancel();
+
+		resume();
+	}
+}
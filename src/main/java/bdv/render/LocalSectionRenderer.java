@@ -0,0 +1,199 @@
+/**
+ *
+ */
+package bdv.render;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map.Entry;
+
+import org.janelia.alignment.ImageAndMask;
+import org.janelia.alignment.RenderParameters;
+import org.janelia.alignment.spec.ChannelSpec;
+import org.janelia.alignment.spec.TileSpec;
+import org.janelia.alignment.util.ImageProcessorCache;
+
+/**
+ * Renders sections on the client from the tile specs in a
+ * {@link TileSpecIndex}.
+ *
+ * Tile specs are looked up by the calling thread, rendering is CPU bound and
+ * waits for one of a shared set of render permits, so that many loader
+ * threads can wait for the network while no more sections are rendered
+ * than there are cores.  Loads that were
+ * {@link LoadCancellation cancelled} while waiting for a permit give it
+ * back without rendering.  The tiles and masks of a section are
+ * {@link #load(RenderParameters) loaded} into the tile cache before the
+ * permit is acquired, so only rendering occupies it.  A tile that the
+ * renderer still misses, e.g. at another mipmap level, is loaded while
+ * holding the permit.  A permit is never acquired inside the tile cache,
+ * where other threads that hold permits may be waiting for the same tile.
+ *
+ * The target of a section is its cell's storage array, wrapped as an image
+ * by {@link ArgbPixels#wrap(int[], int, int)}, so no target image is
+ * allocated per cell.  ArgbRenderer still renders into an image of its own
+ * and then draws that into the target, i.e. each section is copied once.
+ * Gray sections are rendered by ByteRenderer into byte[] storage wrapped by
+ * {@link ArgbPixels#wrapGray(byte[], int, int, int)}.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class LocalSectionRenderer implements GraySectionRenderer {
+
+	protected final TileSpecIndex tileSpecIndex;
+	protected final ImageProcessorCache imageProcessorCache;
+	protected final boolean filter;
+	protected final AdaptiveLimiter renderPermits;
+	protected final boolean preview;
+
+	/**
+	 *
+	 * @param tileSpecIndex
+	 * @param imageProcessorCache
+	 * @param filter
+	 * @param renderPermits limits the number of concurrently rendered
+	 *     sections, admits by priority and then in order of requests
+	 * @param preview render without masks and interpolation
+	 */
+	public LocalSectionRenderer(
+			final TileSpecIndex tileSpecIndex,
+			final ImageProcessorCache imageProcessorCache,
+			final boolean filter,
+			final AdaptiveLimiter renderPermits,
+			final boolean preview) {
+
+		this.tileSpecIndex = tileSpecIndex;
+		this.imageProcessorCache = imageProcessorCache;
+		this.filter = filter;
+		this.renderPermits = renderPermits;
+		this.preview = preview;
+	}
+
+	public LocalSectionRenderer(
+			final TileSpecIndex tileSpecIndex,
+			final ImageProcessorCache imageProcessorCache,
+			final boolean filter,
+			final AdaptiveLimiter renderPermits) {
+
+		this(tileSpecIndex, imageProcessorCache, filter, renderPermits, false);
+	}
+
+	@Override
+	public void render(
+			final long x,
+			final long y,
+			final long z,
+			final long w,
+			final long h,
+			final double scale,
+			final int[] data,
+			final int width,
+			final int height) throws Exception {
+
+		render(x, y, z, w, h, scale, ArgbPixels.wrap(data, width, height), false);
+	}
+
+	@Override
+	public void renderGray(
+			final long x,
+			final long y,
+			final long z,
+			final long w,
+			final long h,
+			final double scale,
+			final byte[] data,
+			final int offset,
+			final int width,
+			final int height) throws Exception {
+
+		render(x, y, z, w, h, scale, ArgbPixels.wrapGray(data, offset, width, height), true);
+	}
+
+	protected void render(
+			final long x,
+			final long y,
+			final long z,
+			final long w,
+			final long h,
+			final double scale,
+			final BufferedImage target,
+			final boolean gray) throws Exception {
+
+		final RenderParameters renderParameters = tileSpecIndex.getRenderParameters(x, y, z, w, h, scale, filter);
+		if (preview) {
+			renderParameters.setExcludeMask(true);
+			renderParameters.setSkipInterpolation(true);
+		}
+
+		load(renderParameters);
+		LoadCancellation.check();
+
+		renderPermits.acquire();
+		try {
+			LoadCancellation.check();
+			if (gray)
+				Rest.renderGrayImage(renderParameters, target, imageProcessorCache);
+			else
+				Rest.renderImage(renderParameters, target, imageProcessorCache);
+		} finally {
+			renderPermits.release();
+		}
+	}
+
+	/**
+	 * Mipmap level that the renderer reads for a section rendered at
+	 * <code>scale</code>, assuming that the tile transforms do not scale.
+	 *
+	 * @param scale
+	 * @return
+	 */
+	protected static int getMipmapLevel(final double scale) {
+
+		return scale >= 1.0 ? 0 : (int)Math.floor(Math.log(1.0 / scale) / Math.log(2.0) + 1.0e-9);
+	}
+
+	/**
+	 * Load the tiles and masks of a section into the tile cache at the
+	 * mipmap level of its scale.  Tiles that other threads are loading are
+	 * waited for, which is safe because no permit is held.
+	 *
+	 * @param renderParameters
+	 */
+	protected void load(final RenderParameters renderParameters) {
+
+		final int level = getMipmapLevel(renderParameters.getScale());
+		final boolean masks = !preview;
+		for (final TileSpec tileSpec : renderParameters.getTileSpecs()) {
+			for (final ChannelSpec channel : tileSpec.getAllChannels()) {
+				Entry<Integer, ImageAndMask> floor = null;
+				for (final Entry<Integer, ImageAndMask> mipmapLevel : channel.getMipmapLevels().entrySet())
+					if (mipmapLevel.getKey() <= level && (floor == null || mipmapLevel.getKey() > floor.getKey()))
+						floor = mipmapLevel;
+				if (floor == null)
+					continue;
+
+				final int downSampleLevels = level - floor.getKey();
+				final ImageAndMask imageAndMask = floor.getValue();
+				imageProcessorCache.get(imageAndMask.getImageUrl(), downSampleLevels, false, false);
+				if (masks && imageAndMask.hasMask())
+					imageProcessorCache.get(imageAndMask.getMaskUrl(), downSampleLevels, true, false);
+			}
+		}
+	}
+
+	/**
+	 * Fetch the bytes of an image through {@link Http}.
+	 *
+	 * @param url
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] fetch(final String url) throws IOException {
+
+		try (final InputStream in = Http.openStream(url)) {
+			return Rest.readBytes(in);
+		}
+	}
+}
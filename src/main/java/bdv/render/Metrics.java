@@ -0,0 +1,528 @@
+/**
+ *
+ */
+package bdv.render;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Timings and counters of the loader pipeline.
+ *
+ * Each {@link Stage} records a histogram of its durations in power of two
+ * buckets of nanoseconds that are updated without locks.  While metrics are
+ * disabled, {@link #start()} returns 0 and {@link #stop(Stage, long)} does
+ * nothing, so the instrumentation costs one volatile read per stage.
+ *
+ * Decode times and transferred bytes of images are also recorded per
+ * {@link CodecPolicy.Codec}, such that the {@link CodecPolicy} of each scale
+ * level can be tuned.
+ *
+ * Metrics are exposed through JMX as <code>bdv.render:type=Metrics</code>,
+ * see {@link MetricsMXBean}, and can be dumped periodically to the log or to
+ * a CSV file of <code>time,metric,value</code> rows.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public final class Metrics {
+
+	public static enum Stage {
+
+		/* load of a cell by the cell loader */
+		CELL,
+		/* render or fetch of one section of a cell */
+		SECTION,
+		/* wait of a section of a z-averaged cell for a section thread */
+		SECTION_WAIT,
+		/* render-parameters request including parsing */
+		PARAMETERS,
+		/* local rendering including tile and mask loads */
+		RENDER,
+		/* HTTP request until the response stream is open, or until a compressed box is received */
+		FETCH,
+		/* image decoding of fetched boxes */
+		DECODE,
+		/* transfer of decoded pixels into cell storage */
+		TRANSFER,
+		/* full quality render of a cell that was loaded as a preview */
+		REFINE
+	}
+
+	/**
+	 * Histogram of durations in power of two buckets of nanoseconds.
+	 */
+	final static public class Histogram {
+
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+		private final LongAdder[] buckets = new LongAdder[64];
+
+		public Histogram() {
+
+			for (int i = 0; i < buckets.length; ++i)
+				buckets[i] = new LongAdder();
+		}
+
+		public void record(final long nanos) {
+
+			final long t = Math.max(0, nanos);
+			count.increment();
+			sum.add(t);
+			buckets[64 - Long.numberOfLeadingZeros(t) - (t == 0 ? 0 : 1)].increment();
+			for (long m = max.get(); t > m && !max.compareAndSet(m, t); m = max.get());
+		}
+
+		public long getCount() {
+
+			return count.sum();
+		}
+
+		public double getMeanMs() {
+
+			final long n = count.sum();
+			return n == 0 ? 0 : sum.sum() / (double)n * 1e-6;
+		}
+
+		public double getMaxMs() {
+
+			return max.get() * 1e-6;
+		}
+
+		/**
+		 * Estimate of the q-quantile as the center of its bucket, i.e.
+		 * accurate within a factor of 1.5.
+		 *
+		 * @param q
+		 * @return
+		 */
+		public double getQuantileMs(final double q) {
+
+			final long n = count.sum();
+			if (n == 0)
+				return 0;
+
+			final long rank = (long)Math.ceil(q * n);
+			long cumulative = 0;
+			for (int i = 0; i < buckets.length; ++i) {
+				cumulative += buckets[i].sum();
+				if (cumulative >= rank)
+					return 1.5 * (1L << i) * 1e-6;
+			}
+			return getMaxMs();
+		}
+
+		public void reset() {
+
+			count.reset();
+			sum.reset();
+			max.set(0);
+			for (final LongAdder bucket : buckets)
+				bucket.reset();
+		}
+	}
+
+	/**
+	 * Decode times and transferred bytes of the images of one codec.
+	 */
+	final static private class CodecStats {
+
+		final Histogram decode = new Histogram();
+		final LongAdder bytes = new LongAdder();
+		final LongAdder sizedImages = new LongAdder();
+
+		public void reset() {
+
+			decode.reset();
+			bytes.reset();
+			sizedImages.reset();
+		}
+	}
+
+	final static private class MXBean implements MetricsMXBean {
+
+		@Override
+		public boolean isEnabled() {
+
+			return enabled;
+		}
+
+		@Override
+		public void setEnabled(final boolean enabled) {
+
+			Metrics.enabled = enabled;
+		}
+
+		@Override
+		public Map<String, Double> getTimings() {
+
+			return Metrics.getTimings();
+		}
+
+		@Override
+		public Map<String, Long> getCounters() {
+
+			return Metrics.getCounters();
+		}
+
+		@Override
+		public Map<String, Double> getGauges() {
+
+			return Metrics.getGauges();
+		}
+
+		@Override
+		public String getReport() {
+
+			return Metrics.getReport();
+		}
+
+		@Override
+		public void reset() {
+
+			Metrics.reset();
+		}
+	}
+
+	public static final int maxLevels = 32;
+
+	private static volatile boolean enabled = false;
+
+	private static final EnumMap<Stage, Histogram> histograms = new EnumMap<>(Stage.class);
+	static {
+		for (final Stage stage : Stage.values())
+			histograms.put(stage, new Histogram());
+	}
+
+	private static final EnumMap<CodecPolicy.Codec, CodecStats> codecs = new EnumMap<>(CodecPolicy.Codec.class);
+	static {
+		for (final CodecPolicy.Codec codec : CodecPolicy.Codec.values())
+			codecs.put(codec, new CodecStats());
+	}
+
+	private static final AtomicLongArray cells = new AtomicLongArray(maxLevels);
+	private static final LongAdder cellFailures = new LongAdder();
+	private static final LongAdder cellCancellations = new LongAdder();
+	private static final LongAdder requests = new LongAdder();
+	private static final LongAdder requestFailures = new LongAdder();
+	private static final LongAdder retries = new LongAdder();
+	private static final LongAdder bytes = new LongAdder();
+
+	private static final Map<String, DoubleSupplier> gauges = new ConcurrentHashMap<>();
+
+	private static boolean registered = false;
+	private static ScheduledExecutorService dumper = null;
+
+	private Metrics() {}
+
+	public static boolean isEnabled() {
+
+		return enabled;
+	}
+
+	public static void setEnabled(final boolean enabled) {
+
+		Metrics.enabled = enabled;
+	}
+
+	/**
+	 * Enable metrics if requested, register the {@link MetricsMXBean} and
+	 * start periodic dumps.
+	 *
+	 * @param p
+	 */
+	public static synchronized void configure(final Parameters p) {
+
+		enabled = p.metrics;
+		if (!enabled)
+			return;
+
+		if (!registered) {
+			try {
+				final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				server.registerMBean(new MXBean(), new ObjectName("bdv.render:type=Metrics"));
+				registered = true;
+			} catch (final JMException e) {
+				e.printStackTrace(System.err);
+			}
+		}
+
+		if (dumper == null && p.metricsInterval > 0) {
+			dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+				final Thread thread = new Thread(r, "render-metrics");
+				thread.setDaemon(true);
+				return thread;
+			});
+			final String file = p.metricsFile;
+			dumper.scheduleAtFixedRate(
+					() -> {
+						if (file == null || file.isEmpty())
+							System.out.println(getReport());
+						else
+							appendCsv(file);
+					},
+					p.metricsInterval,
+					p.metricsInterval,
+					TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * @return start time of a stage or 0 if metrics are disabled
+	 */
+	public static long start() {
+
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Record the duration of a stage started at t.
+	 *
+	 * @param stage
+	 * @param t returned by {@link #start()}
+	 */
+	public static void stop(final Stage stage, final long t) {
+
+		if (t != 0)
+			histograms.get(stage).record(System.nanoTime() - t);
+	}
+
+	public static Histogram getHistogram(final Stage stage) {
+
+		return histograms.get(stage);
+	}
+
+	/**
+	 * Record the decode of an image started at t.  Tiles that the tile cache
+	 * loads itself, i.e. mipmaps that are not served by the render web
+	 * service or downsampled by the cache, include the request in their
+	 * duration and their size is unknown.
+	 *
+	 * @param codec
+	 * @param bytes transferred bytes of the image, negative if unknown
+	 * @param t returned by {@link #start()}
+	 */
+	public static void decoded(final CodecPolicy.Codec codec, final long bytes, final long t) {
+
+		if (t == 0)
+			return;
+
+		final CodecStats stats = codecs.get(codec);
+		stats.decode.record(System.nanoTime() - t);
+		if (bytes >= 0) {
+			stats.bytes.add(bytes);
+			stats.sizedImages.increment();
+		}
+	}
+
+	public static void cellLoaded(final int level) {
+
+		if (enabled)
+			cells.incrementAndGet(Math.min(level, maxLevels - 1));
+	}
+
+	public static void cellFailed() {
+
+		if (enabled)
+			cellFailures.increment();
+	}
+
+	public static void cellCancelled() {
+
+		if (enabled)
+			cellCancellations.increment();
+	}
+
+	public static void request() {
+
+		if (enabled)
+			requests.increment();
+	}
+
+	public static void requestFailed() {
+
+		if (enabled)
+			requestFailures.increment();
+	}
+
+	public static void retry() {
+
+		if (enabled)
+			retries.increment();
+	}
+
+	public static void bytesFetched(final long n) {
+
+		if (enabled)
+			bytes.add(n);
+	}
+
+	/**
+	 * Register a value that is sampled when metrics are reported, e.g. a
+	 * cache hit ratio.  A gauge registered under an existing name replaces
+	 * it.
+	 *
+	 * @param name
+	 * @param gauge
+	 */
+	public static void registerGauge(final String name, final DoubleSupplier gauge) {
+
+		gauges.put(name, gauge);
+	}
+
+	public static Map<String, Double> getTimings() {
+
+		final TreeMap<String, Double> timings = new TreeMap<>();
+		for (final Entry<Stage, Histogram> entry : histograms.entrySet()) {
+			final String name = entry.getKey().name().toLowerCase();
+			final Histogram histogram = entry.getValue();
+			timings.put(name + ".count", (double)histogram.getCount());
+			timings.put(name + ".mean_ms", histogram.getMeanMs());
+			timings.put(name + ".p50_ms", histogram.getQuantileMs(0.5));
+			timings.put(name + ".p99_ms", histogram.getQuantileMs(0.99));
+			timings.put(name + ".max_ms", histogram.getMaxMs());
+		}
+		for (final Entry<CodecPolicy.Codec, CodecStats> entry : codecs.entrySet()) {
+			final Histogram histogram = entry.getValue().decode;
+			if (histogram.getCount() > 0) {
+				final String name = "decode." + entry.getKey().name().toLowerCase();
+				timings.put(name + ".count", (double)histogram.getCount());
+				timings.put(name + ".mean_ms", histogram.getMeanMs());
+				timings.put(name + ".p50_ms", histogram.getQuantileMs(0.5));
+				timings.put(name + ".p99_ms", histogram.getQuantileMs(0.99));
+				timings.put(name + ".max_ms", histogram.getMaxMs());
+			}
+		}
+		return timings;
+	}
+
+	public static Map<String, Long> getCounters() {
+
+		final TreeMap<String, Long> counters = new TreeMap<>();
+		long numCells = 0;
+		for (int level = 0; level < maxLevels; ++level) {
+			final long n = cells.get(level);
+			if (n > 0)
+				counters.put(String.format("cells.s%02d", level), n);
+			numCells += n;
+		}
+		for (final Entry<CodecPolicy.Codec, CodecStats> entry : codecs.entrySet()) {
+			final CodecStats stats = entry.getValue();
+			final long n = stats.sizedImages.sum();
+			if (n > 0) {
+				final String name = "codec." + entry.getKey().name().toLowerCase();
+				counters.put(name + ".bytes", stats.bytes.sum());
+				counters.put(name + ".bytes_per_image", stats.bytes.sum() / n);
+			}
+		}
+		if (numCells > 0)
+			counters.put("bytes_per_cell", bytes.sum() / numCells);
+		counters.put("cell_failures", cellFailures.sum());
+		counters.put("cell_cancellations", cellCancellations.sum());
+		counters.put("requests", requests.sum());
+		counters.put("request_failures", requestFailures.sum());
+		counters.put("retries", retries.sum());
+		counters.put("bytes", bytes.sum());
+		return counters;
+	}
+
+	public static Map<String, Double> getGauges() {
+
+		final TreeMap<String, Double> values = new TreeMap<>();
+		for (final Entry<String, DoubleSupplier> entry : gauges.entrySet())
+			values.put(entry.getKey(), entry.getValue().getAsDouble());
+		return values;
+	}
+
+	public static String getReport() {
+
+		final StringBuilder report = new StringBuilder("render metrics:");
+		for (final Entry<Stage, Histogram> entry : histograms.entrySet()) {
+			final Histogram histogram = entry.getValue();
+			if (histogram.getCount() > 0)
+				report.append(
+						String.format(
+								"%n  %-12s n=%d mean=%.1fms p50=%.1fms p99=%.1fms max=%.1fms",
+								entry.getKey().name().toLowerCase(),
+								histogram.getCount(),
+								histogram.getMeanMs(),
+								histogram.getQuantileMs(0.5),
+								histogram.getQuantileMs(0.99),
+								histogram.getMaxMs()));
+		}
+		for (final Entry<CodecPolicy.Codec, CodecStats> entry : codecs.entrySet()) {
+			final Histogram histogram = entry.getValue().decode;
+			if (histogram.getCount() > 0)
+				report.append(
+						String.format(
+								"%n  %-12s n=%d mean=%.1fms p50=%.1fms p99=%.1fms max=%.1fms",
+								"decode." + entry.getKey().name().toLowerCase(),
+								histogram.getCount(),
+								histogram.getMeanMs(),
+								histogram.getQuantileMs(0.5),
+								histogram.getQuantileMs(0.99),
+								histogram.getMaxMs()));
+		}
+		for (final Entry<String, Long> entry : getCounters().entrySet())
+			report.append(String.format("%n  %s=%d", entry.getKey(), entry.getValue()));
+		for (final Entry<String, Double> entry : getGauges().entrySet())
+			report.append(String.format("%n  %s=%.3f", entry.getKey(), entry.getValue()));
+		return report.toString();
+	}
+
+	/**
+	 * Append all current values as <code>time,metric,value</code> rows to a
+	 * CSV file.
+	 *
+	 * @param file
+	 */
+	public static void appendCsv(final String file) {
+
+		final long time = System.currentTimeMillis();
+		try (final PrintWriter writer = new PrintWriter(new FileWriter(file, true))) {
+			for (final Entry<String, Double> entry : getTimings().entrySet())
+				writer.printf("%d,%s,%f%n", time, entry.getKey(), entry.getValue());
+			for (final Entry<String, Long> entry : getCounters().entrySet())
+				writer.printf("%d,%s,%d%n", time, entry.getKey(), entry.getValue());
+			for (final Entry<String, Double> entry : getGauges().entrySet())
+				writer.printf("%d,%s,%f%n", time, entry.getKey(), entry.getValue());
+		} catch (final IOException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+
+	public static void reset() {
+
+		for (final Histogram histogram : histograms.values())
+			histogram.reset();
+		for (final CodecStats stats : codecs.values())
+			stats.reset();
+		for (int level = 0; level < maxLevels; ++level)
+			cells.set(level, 0);
+		cellFailures.reset();
+		cellCancellations.reset();
+		requests.reset();
+		requestFailures.reset();
+		retries.reset();
+		bytes.reset();
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ *
+ */
+package bdv.render;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link Metrics} of the loader pipeline, registered as
+ * <code>bdv.render:type=Metrics</code>.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public interface MetricsMXBean {
+
+	public boolean isEnabled();
+
+	public void setEnabled(boolean enabled);
+
+	/**
+	 * Number of recorded events, mean, p50, p99, and max in ms per stage.
+	 */
+	public Map<String, Double> getTimings();
+
+	public Map<String, Long> getCounters();
+
+	public Map<String, Double> getGauges();
+
+	public String getReport();
+
+	public void reset();
+}
@@ -10,14 +10,112 @@ import org.janelia.alignment.RenderParameters;
 import org.janelia.alignment.spec.ChannelSpec;
 import org.janelia.alignment.spec.TileSpec;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 /**
+ * Rewrites the mipmap URLs of tile specs to tile and mask render requests of
+ * the render web service.
+ *
+ * The URL formats are split into constant parts once, and the scale of each
+ * mipmap level is formatted once, so building a URL is a single
+ * concatenation.  The rewritten {@link ImageAndMask} of each tile and
+ * mipmap level is cached, such that rewriting the same tiles again, e.g.
+ * for a neighboring box, allocates nothing.  Reused {@link ImageAndMask}
+ * instances are shared by the tile specs of all rewritten render
+ * parameters.
+ *
+ * Tiles of each mipmap level are requested with the codec of that level in
+ * a {@link CodecPolicy}, RAW tiles as uncompressed TIFF.  Masks are always
+ * requested as PNG because lossy compression would fray their edges.
+ *
  * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
  *
  */
 public class MipmapSourceRenderRewriter implements MipmapSourceRewriter {
 
-	protected final String tileUrlFormatString;
-	protected final String maskUrlFormatString;
+	/**
+	 * URL format with a tile id and a scale placeholder, split into its
+	 * constant parts.
+	 */
+	final static protected class UrlTemplate {
+
+		protected final String prefix;
+		protected final String infix;
+		protected final String suffix;
+
+		public UrlTemplate(final String format, final String baseUrl, final String owner, final String project, final String stack) {
+
+			final String[] parts = String.format(format, baseUrl, owner, project, stack, "\0", "\0").split("\0", -1);
+			prefix = parts[0];
+			infix = parts[1];
+			suffix = parts[2];
+		}
+
+		public String apply(final String tileId, final String scale) {
+
+			return new StringBuilder(prefix.length() + tileId.length() + infix.length() + scale.length() + suffix.length())
+					.append(prefix)
+					.append(tileId)
+					.append(infix)
+					.append(scale)
+					.append(suffix)
+					.toString();
+		}
+	}
+
+	protected static final int maxLevels = 32;
+
+	/* same text as formatted with %f before, so server side caches keep matching */
+	protected static final String[] scales = new String[maxLevels];
+	static {
+		for (int level = 0; level < maxLevels; ++level)
+			scales[level] = String.format("%f", 1.0 / (1L << level));
+	}
+
+	protected final UrlTemplate[] tileUrlTemplates;
+	protected final UrlTemplate maskUrlTemplate;
+
+	/* rewritten mipmap levels by tile id */
+	protected final Cache<String, ImageAndMask[]> rewritten;
+
+	public MipmapSourceRenderRewriter(
+			final String baseUrl,
+			final String owner,
+			final String project,
+			final String stack,
+			final CodecPolicy codecs,
+			final long maxTiles) {
+
+		tileUrlTemplates = new UrlTemplate[maxLevels];
+		for (int level = 0; level < maxLevels; ++level)
+			tileUrlTemplates[level] = new UrlTemplate(getTileFormat(codecs, level), baseUrl, owner, project, stack);
+		maskUrlTemplate = new UrlTemplate(Rest.pngMaskFormat, baseUrl, owner, project, stack);
+
+		rewritten = CacheBuilder.newBuilder()
+				.maximumSize(maxTiles)
+				.build();
+	}
+
+	public MipmapSourceRenderRewriter(
+			final String baseUrl,
+			final String owner,
+			final String project,
+			final String stack,
+			final long maxTiles) {
+
+		this(baseUrl, owner, project, stack, new CodecPolicy(CodecPolicy.Codec.PNG), maxTiles);
+	}
+
+	public MipmapSourceRenderRewriter(
+			final String baseUrl,
+			final String owner,
+			final String project,
+			final String stack,
+			final CodecPolicy codecs) {
+
+		this(baseUrl, owner, project, stack, codecs, 1 << 18);
+	}
 
 	public MipmapSourceRenderRewriter(
 			final String baseUrl,
@@ -25,8 +123,41 @@ public class MipmapSourceRenderRewriter implements MipmapSourceRewriter {
 			final String project,
 			final String stack) {
 
-		tileUrlFormatString = String.format(Rest.pngTileFormat, baseUrl, owner, project, stack, "%s", "%f");
-		maskUrlFormatString = String.format(Rest.pngMaskFormat, baseUrl, owner, project, stack, "%s", "%f");
+		this(baseUrl, owner, project, stack, 1 << 18);
+	}
+
+	protected static String getTileFormat(final CodecPolicy codecs, final int level) {
+
+		switch (codecs.getCodec(level)) {
+		case JPEG:
+			return Rest.jpegTileFormat + "&quality=" + codecs.getQuality(level);
+		case RAW:
+			return Rest.tiffTileFormat;
+		default:
+			return Rest.pngTileFormat;
+		}
+	}
+
+	protected synchronized ImageAndMask rewrite(final String tileId, final int level, final boolean hasMask) {
+
+		ImageAndMask[] levels = rewritten.getIfPresent(tileId);
+		if (levels == null || levels.length <= level) {
+			final ImageAndMask[] grown = new ImageAndMask[Math.max(level + 1, levels == null ? 4 : levels.length)];
+			if (levels != null)
+				System.arraycopy(levels, 0, grown, 0, levels.length);
+			levels = grown;
+			rewritten.put(tileId, levels);
+		}
+
+		ImageAndMask imageAndMask = levels[level];
+		if (imageAndMask == null || imageAndMask.hasMask() != hasMask) {
+			final String scale = scales[Math.min(level, maxLevels - 1)];
+			imageAndMask = new ImageAndMask(
+					tileUrlTemplates[Math.min(level, maxLevels - 1)].apply(tileId, scale),
+					hasMask ? maskUrlTemplate.apply(tileId, scale) : null);
+			levels[level] = imageAndMask;
+		}
+		return imageAndMask;
 	}
 
 	@Override
@@ -34,19 +165,19 @@ public class MipmapSourceRenderRewriter implements MipmapSourceRewriter {
 
 		for (final TileSpec tileSpec : renderParameters.getTileSpecs()) {
 
-			for (ChannelSpec channel : tileSpec.getAllChannels()) {
+			final String tileId = tileSpec.getTileId();
 
-				for (Entry<Integer, ImageAndMask> mipmapLevel : channel.getMipmapLevels().entrySet()) {
+			for (final ChannelSpec channel : tileSpec.getAllChannels()) {
 
-					final double scale = 1.0 / (1 << mipmapLevel.getKey());
+				for (final Entry<Integer, ImageAndMask> mipmapLevel : channel.getMipmapLevels().entrySet()) {
 
-					channel.putMipmap(
-							mipmapLevel.getKey(),
-							new ImageAndMask(
-									String.format(tileUrlFormatString, tileSpec.getTileId(), scale),
-									mipmapLevel.getValue().hasMask() ? String.format(maskUrlFormatString, tileSpec.getTileId(), scale): null));
+					final int level = mipmapLevel.getKey();
+					final ImageAndMask source = mipmapLevel.getValue();
+					final ImageAndMask imageAndMask = rewrite(tileId, level, source.hasMask());
+					if (imageAndMask != source)
+						channel.putMipmap(level, imageAndMask);
 				}
 			}
 		}
 	}
-}
\ No newline at end of file
+}
@@ -52,15 +52,114 @@ public class Parameters {
 	@Parameter(names = { "--average_z", "-z" }, description = "average z")
 	public boolean averageZ = false;
 
+	@Parameter(names = { "--gray" }, description = "load 8-bit grayscale cells instead of ARGB cells, for single-channel stacks")
+	public boolean gray = false;
+
 	@Parameter(names = { "--tile_width", "-w" }, description = "tile width")
 	public int tileWidth = 256;
 
 	@Parameter(names = { "--tile_height", "-h" }, description = "tile height")
 	public int tileHeight = 256;
 
+	@Parameter(names = { "--tile_depth" }, description = "number of sections per cell, 3D cells load faster in XZ, YZ, and oblique views")
+	public int tileDepth = 1;
+
+	@Parameter(names = { "--orthoslice" }, description = "shape the cells of each scale level about isotropically in physical units with at most 64^3 voxels and not wider than the tiles, such that reslicing in any orientation loads a bounded excess")
+	public boolean orthoslice = false;
+
 	@Parameter(names = { "--rewrite", "-r" }, description = "rewrite mipmap URLs to render requests")
 	public boolean rewrite = true;
 
+	@Parameter(names = { "--downsample", "-d" }, description = "derive coarse scale levels from cached finer scale levels where possible")
+	public boolean downsample = false;
+
+	@Parameter(names = { "--render_mode", "-m" }, description = "render mode: LOCAL, PNG, JPEG, or RAW")
+	public RenderMode renderMode = RenderMode.LOCAL;
+
+	@Parameter(names = { "--codecs" }, description = "image codec of rewritten tiles or remote boxes per scale level, comma separated PNG, JPEG[:quality], or RAW, the last entry applies to all coarser levels, e.g. PNG,PNG,JPEG:0.8; PNG tiles or the render mode's boxes if not set")
+	public String codecs = null;
+
+	@Parameter(names = { "--section_threads" }, description = "number of threads rendering the sections of z-averaged cells concurrently, applies to the whole process and is set by the first opened source")
+	public int sectionThreads = Runtime.getRuntime().availableProcessors();
+
+	@Parameter(names = { "--tile_cache_size", "-c" }, description = "tile cache size in MB of decoded pixels shared by all loaders, applies to the whole process and is set by the first opened source")
+	public long tileCacheSize = 1024;
+
+	@Parameter(names = { "--cell_cache_size" }, description = "in-memory cell cache size in MB shared by all sources and scale levels, soft references if 0, applies to the whole process and is set by the first opened source")
+	public long cellCacheSize = Runtime.getRuntime().maxMemory() / 4 >> 20;
+
+	@Parameter(names = { "--cache_dir" }, description = "directory of the persistent cell cache, no persistent cache if not set")
+	public String cacheDir = null;
+
+	@Parameter(names = { "--cache_compression" }, description = "compression of the persistent cell cache: RAW or GZIP")
+	public BlockStore.Compression cacheCompression = BlockStore.Compression.GZIP;
+
+	@Parameter(names = { "--blocking_cache_writes" }, description = "write cells to the persistent cache on the loading thread when the disk falls behind instead of dropping them, e.g. for exports")
+	public boolean blockingCacheWrites = false;
+
+	@Parameter(names = { "--metadata_cache_dir" }, description = "directory of cached stack lists and stack metadata that are revalidated in the background, for interactive use, no metadata cache if empty")
+	public String metadataCacheDir = System.getProperty("user.home") + "/.bdv-render-app/metadata";
+
+	@Parameter(names = { "--prefetch_cells" }, description = "maximum number of cells prefetched around the current view, no prefetching if 0")
+	public int prefetchCells = 64;
+
+	@Parameter(names = { "--prefetch_ring" }, description = "number of cells around the viewport that are prefetched")
+	public int prefetchRing = 1;
+
+	@Parameter(names = { "--prefetch_threads" }, description = "number of low priority prefetch threads")
+	public int prefetchThreads = 1;
+
+	@Parameter(names = { "--http_connections" }, description = "maximum number of concurrent keep-alive HTTP connections")
+	public int httpConnections = 32;
+
+	@Parameter(names = { "--http_connect_timeout" }, description = "HTTP connect timeout in ms")
+	public int httpConnectTimeout = 10000;
+
+	@Parameter(names = { "--http_read_timeout" }, description = "HTTP read timeout in ms")
+	public int httpReadTimeout = 60000;
+
+	@Parameter(names = { "--http_retries" }, description = "number of retries of failed HTTP requests")
+	public int httpRetries = 3;
+
+	@Parameter(names = { "--http_backoff" }, description = "delay before the first retry of a failed HTTP request in ms, doubles with each retry")
+	public long httpBackoff = 250;
+
+	@Parameter(names = { "--tile_spec_region_size" }, description = "edge length in world pixels of regions for which tile specs are fetched and cached at once")
+	public long tileSpecRegionSize = 16384;
+
+	@Parameter(names = { "--tile_spec_cache_size" }, description = "size in MB of the render parameters JSON of tile spec regions kept in memory")
+	public long tileSpecCacheSize = 32;
+
+	@Parameter(names = { "--fetcher_threads" }, description = "number of BDV fetcher threads, max(#cores, http_connections) if 0, applies to the whole process and is set by the first opened source")
+	public int fetcherThreads = 0;
+
+	@Parameter(names = { "--render_threads" }, description = "maximum number of sections rendered locally at the same time, applies to the whole process and is set by the first opened source")
+	public int renderThreads = Runtime.getRuntime().availableProcessors();
+
+	@Parameter(names = { "--coalesce_window" }, description = "maximum time in ms that requests for adjacent cells of the same row wait for a running render of the row to be rendered together as one box, e.g. 5, no coalescing if 0")
+	public long coalesceWindow = 0;
+
+	@Parameter(names = { "--coalesce_max_cells" }, description = "maximum number of cells rendered as one box")
+	public int coalesceMaxCells = 8;
+
+	@Parameter(names = { "--progressive" }, description = "load cells as a fast low quality preview first and refine them at full quality in the background")
+	public boolean progressive = false;
+
+	@Parameter(names = { "--preview_factor" }, description = "previews are rendered at 1/preview_factor of the cell resolution")
+	public int previewFactor = 4;
+
+	@Parameter(names = { "--refine_threads" }, description = "number of threads refining previews, 0 for the number of fetcher threads, applies to the whole process and is set by the first opened source")
+	public int refineThreads = 0;
+
+	@Parameter(names = { "--metrics" }, description = "record timings and counters of the loader pipeline, exposed through JMX as bdv.render:type=Metrics")
+	public boolean metrics = false;
+
+	@Parameter(names = { "--metrics_interval" }, description = "interval in s of metrics dumps, no dumps if 0")
+	public int metricsInterval = 0;
+
+	@Parameter(names = { "--metrics_file" }, description = "CSV file metrics are appended to, dumped to the log if not set")
+	public String metricsFile = null;
+
 	@Override
 	public Parameters clone() {
 		final Parameters copy = new Parameters();
@@ -70,9 +169,42 @@ public class Parameters {
 		copy.stack = stack;
 		copy.tileWidth = tileWidth;
 		copy.tileHeight = tileHeight;
+		copy.tileDepth = tileDepth;
+		copy.orthoslice = orthoslice;
 		copy.filter = filter;
 		copy.averageZ = averageZ;
+		copy.gray = gray;
 		copy.rewrite = rewrite;
+		copy.downsample = downsample;
+		copy.renderMode = renderMode;
+		copy.codecs = codecs;
+		copy.sectionThreads = sectionThreads;
+		copy.tileCacheSize = tileCacheSize;
+		copy.cellCacheSize = cellCacheSize;
+		copy.cacheDir = cacheDir;
+		copy.cacheCompression = cacheCompression;
+		copy.blockingCacheWrites = blockingCacheWrites;
+		copy.metadataCacheDir = metadataCacheDir;
+		copy.prefetchCells = prefetchCells;
+		copy.prefetchRing = prefetchRing;
+		copy.prefetchThreads = prefetchThreads;
+		copy.httpConnections = httpConnections;
+		copy.httpConnectTimeout = httpConnectTimeout;
+		copy.httpReadTimeout = httpReadTimeout;
+		copy.httpRetries = httpRetries;
+		copy.httpBackoff = httpBackoff;
+		copy.tileSpecRegionSize = tileSpecRegionSize;
+		copy.tileSpecCacheSize = tileSpecCacheSize;
+		copy.fetcherThreads = fetcherThreads;
+		copy.renderThreads = renderThreads;
+		copy.coalesceWindow = coalesceWindow;
+		copy.coalesceMaxCells = coalesceMaxCells;
+		copy.progressive = progressive;
+		copy.previewFactor = previewFactor;
+		copy.refineThreads = refineThreads;
+		copy.metrics = metrics;
+		copy.metricsInterval = metricsInterval;
+		copy.metricsFile = metricsFile;
 
 		return copy;
 	}
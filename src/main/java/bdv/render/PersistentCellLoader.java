@@ -0,0 +1,176 @@
+/**
+ *
+ */
+package bdv.render;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.type.NativeType;
+
+/**
+ * {@link CellLoader} that serves cells from a persistent {@link BlockStore}
+ * and falls back to a delegate for cells that are not stored yet.  Cells
+ * loaded by the delegate are written to the store asynchronously.  Cells
+ * that were loaded as a preview are written when their {@link Refinement}
+ * is complete.
+ *
+ * If the disk cannot keep up, interactive loaders drop the blocks that do
+ * not fit into the write queue, they will simply be rendered again next
+ * time, so writes never block loading.  Blocking loaders, e.g. of an
+ * export, write those blocks themselves, so no block is lost and loading is
+ * slowed down to the speed of the disk.  Cells are not written once the
+ * store is no longer {@link #PersistentCellLoader(CellLoader, BlockStore, int[], boolean, BooleanSupplier) current},
+ * e.g. because the stack changed.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class PersistentCellLoader<T extends NativeType<T>> implements CellLoader<T> {
+
+	/**
+	 * Writes blocks in the background, rejects blocks if its queue is full.
+	 */
+	private static final ExecutorService writer =
+			new ThreadPoolExecutor(
+					1,
+					1,
+					0L,
+					TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<>(1024),
+					r -> {
+						final Thread thread = new Thread(r, "render-block-writer");
+						thread.setDaemon(true);
+						return thread;
+					},
+					new ThreadPoolExecutor.AbortPolicy());
+
+	protected final CellLoader<T> loader;
+	protected final BlockStore store;
+	protected final int[] blockSize;
+	protected final boolean blocking;
+	protected final BooleanSupplier current;
+
+	/**
+	 *
+	 * @param loader
+	 * @param store
+	 * @param blockSize
+	 * @param blocking write blocks on the loading thread if the write queue
+	 *     is full instead of dropping them
+	 * @param current whether loaded cells still belong into the store
+	 */
+	public PersistentCellLoader(
+			final CellLoader<T> loader,
+			final BlockStore store,
+			final int[] blockSize,
+			final boolean blocking,
+			final BooleanSupplier current) {
+
+		this.loader = loader;
+		this.store = store;
+		this.blockSize = blockSize;
+		this.blocking = blocking;
+		this.current = current;
+	}
+
+	public PersistentCellLoader(
+			final CellLoader<T> loader,
+			final BlockStore store,
+			final int[] blockSize,
+			final boolean blocking) {
+
+		this(loader, store, blockSize, blocking, () -> true);
+	}
+
+	public PersistentCellLoader(
+			final CellLoader<T> loader,
+			final BlockStore store,
+			final int[] blockSize) {
+
+		this(loader, store, blockSize, false);
+	}
+
+	/**
+	 * Wait until all blocks queued before this call are written.
+	 *
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public static void flush() throws InterruptedException, ExecutionException {
+
+		for (;;) {
+			try {
+				writer.submit(() -> {}).get();
+				return;
+			} catch (final RejectedExecutionException e) {
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	@Override
+	public void load(final SingleCellArrayImg<T, ?> cell) throws Exception {
+
+		final Object storage = cell.getStorageArray();
+
+		final int n = cell.numDimensions();
+		final long[] gridPosition = new long[n];
+		final int[] cellDimensions = new int[n];
+		for (int d = 0; d < n; ++d) {
+			gridPosition[d] = cell.min(d) / blockSize[d];
+			cellDimensions[d] = (int)cell.dimension(d);
+		}
+
+		try {
+			if (storage instanceof byte[] ? store.read(gridPosition, (byte[])storage) : store.read(gridPosition, (int[])storage))
+				return;
+		} catch (final IOException e) {
+			System.err.println("Could not read block " + store.getBlockPath(gridPosition) + ", rendering it again: " + e.getMessage());
+		}
+		if (storage instanceof byte[])
+			Arrays.fill((byte[])storage, (byte)0);
+		else
+			Arrays.fill((int[])storage, 0);
+
+		Refinement.take();
+		loader.load(cell);
+
+		final Runnable writeBlock = () -> {
+			if (!current.getAsBoolean())
+				return;
+			try {
+				if (storage instanceof byte[])
+					store.write(gridPosition, cellDimensions, (byte[])storage);
+				else
+					store.write(gridPosition, cellDimensions, (int[])storage);
+			} catch (final IOException e) {
+				e.printStackTrace(System.err);
+			}
+		};
+		final Runnable write = () -> {
+			try {
+				writer.execute(writeBlock);
+			} catch (final RejectedExecutionException e) {
+				if (blocking)
+					writeBlock.run();
+			}
+		};
+
+		final CompletableFuture<Void> refinement = Refinement.take();
+		if (refinement == null)
+			write.run();
+		else
+			refinement.thenRun(write);
+	}
+}
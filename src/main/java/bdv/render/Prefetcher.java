@@ -0,0 +1,316 @@
+/**
+ *
+ */
+package bdv.render;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bdv.viewer.Source;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Loads cells around the current view of a {@link RenderSource} before they
+ * are requested.  For the scale level that best matches the current view and
+ * the next coarser level, the cells in a ring around the viewport and in the
+ * previous and next section along the current slicing axis are loaded at low
+ * priority.  For cells that are more than one section deep, the ring extends
+ * along z, too.
+ *
+ * At most <code>budget</code> cells are queued per view, and a view change
+ * drops all queued cells of the previous view.  The prefetcher runs on few
+ * threads with minimal priority, so it never occupies more than those
+ * threads while visible cells are loaded by the fetcher threads.  Its loads
+ * run {@link LoadCancellation#runInBackground(Runnable) in the background},
+ * i.e. they get HTTP connections and render permits only after the waiting
+ * loads of visible cells.  Nothing is prefetched for hidden sources.
+ * Cancelled prefetches are dropped silently, failed prefetches are
+ * reported on standard error.  {@link #shutdown() Shut down} the prefetcher
+ * of a source that is no longer shown.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class Prefetcher {
+
+	final static private class Request {
+
+		final Cache<Long, ?> cache;
+		final long index;
+		final double distance;
+		final int priority;
+
+		public Request(
+				final Cache<Long, ?> cache,
+				final long index,
+				final double distance,
+				final int priority) {
+
+			this.cache = cache;
+			this.index = index;
+			this.distance = distance;
+			this.priority = priority;
+		}
+	}
+
+	protected final RenderSource<?, ?> renderSource;
+	protected final int budget;
+	protected final int ring;
+	protected final ThreadPoolExecutor executor;
+	protected final AtomicLong generation = new AtomicLong();
+
+	/**
+	 *
+	 * @param renderSource
+	 * @param budget maximum number of cells queued per view
+	 * @param ring number of cells around the viewport
+	 * @param numThreads
+	 */
+	public Prefetcher(
+			final RenderSource<?, ?> renderSource,
+			final int budget,
+			final int ring,
+			final int numThreads) {
+
+		this.renderSource = renderSource;
+		this.budget = budget;
+		this.ring = ring;
+
+		executor = new ThreadPoolExecutor(
+				numThreads,
+				numThreads,
+				0L,
+				TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(),
+				r -> {
+					final Thread thread = new Thread(r, "render-prefetch");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				});
+	}
+
+	/**
+	 * Size of a source voxel of a level on screen.
+	 */
+	protected static double screenVoxelSize(final AffineTransform3D sourceToScreen) {
+
+		final double dx = sourceToScreen.get(0, 0);
+		final double dy = sourceToScreen.get(1, 0);
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	/**
+	 * The scale level whose voxels are closest to screen pixels.
+	 */
+	public static int bestLevel(final Source<?> source, final AffineTransform3D viewerTransform) {
+
+		final AffineTransform3D sourceToScreen = new AffineTransform3D();
+		int best = 0;
+		double bestDistance = Double.POSITIVE_INFINITY;
+		for (int s = 0; s < source.getNumMipmapLevels(); ++s) {
+			source.getSourceTransform(0, s, sourceToScreen);
+			sourceToScreen.preConcatenate(viewerTransform);
+			final double distance = Math.abs(Math.log(screenVoxelSize(sourceToScreen)));
+			if (distance < bestDistance) {
+				best = s;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Bounding box in source coordinates of the viewport and the previous
+	 * and next source voxel along the viewing direction.
+	 *
+	 * @param screenToSource
+	 * @param width of the viewport
+	 * @param height of the viewport
+	 * @param min
+	 * @param max
+	 */
+	public static void screenBounds(
+			final AffineTransform3D screenToSource,
+			final int width,
+			final int height,
+			final double[] min,
+			final double[] max) {
+
+		/* screen depth of one source voxel along the viewing direction */
+		final double[] direction = new double[3];
+		screenToSource.apply(new double[]{0, 0, 1}, direction);
+		final double[] origin = new double[3];
+		screenToSource.apply(new double[]{0, 0, 0}, origin);
+		double length = 0;
+		for (int d = 0; d < 3; ++d)
+			length += (direction[d] - origin[d]) * (direction[d] - origin[d]);
+		final double depth = 1.0 / Math.sqrt(length);
+
+		for (int d = 0; d < 3; ++d) {
+			min[d] = Double.POSITIVE_INFINITY;
+			max[d] = Double.NEGATIVE_INFINITY;
+		}
+		final double[] screen = new double[3];
+		final double[] position = new double[3];
+		for (int z = -1; z <= 1; ++z) {
+			for (int corner = 0; corner < 4; ++corner) {
+				screen[0] = (corner & 1) == 0 ? 0 : width;
+				screen[1] = (corner & 2) == 0 ? 0 : height;
+				screen[2] = z * depth;
+				screenToSource.apply(screen, position);
+				for (int d = 0; d < 3; ++d) {
+					min[d] = Math.min(min[d], position[d]);
+					max[d] = Math.max(max[d], position[d]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queue the cells around a new view and drop the cells queued for the
+	 * previous view.
+	 *
+	 * @param viewerTransform
+	 * @param width of the viewport
+	 * @param height of the viewport
+	 */
+	public void prefetch(final AffineTransform3D viewerTransform, final int width, final int height) {
+
+		if (budget <= 0 || width <= 0 || height <= 0)
+			return;
+
+		if (executor.isShutdown())
+			return;
+
+		final long currentGeneration = generation.incrementAndGet();
+		executor.getQueue().clear();
+
+		if (renderSource.getLoadCancellation().getPriority() >= LoadCancellation.HIDDEN)
+			return;
+
+		final Source<?> source = renderSource.getSource();
+		final int best = bestLevel(source, viewerTransform);
+
+		final ArrayList<Request> requests = new ArrayList<>();
+		for (int s = best; s < Math.min(best + 2, renderSource.getNumScales()); ++s)
+			collect(source, s, s - best, viewerTransform, width, height, requests);
+
+		requests.sort(
+				Comparator.comparingInt((Request request) -> request.priority)
+				.thenComparingDouble(request -> request.distance));
+
+		try {
+			for (int i = 0; i < Math.min(budget, requests.size()); ++i) {
+				final Request request = requests.get(i);
+				executor.execute(() -> {
+					if (generation.get() != currentGeneration)
+						return;
+					LoadCancellation.runInBackground(() -> {
+						try {
+							if (request.cache.getIfPresent(request.index) == null)
+								request.cache.get(request.index);
+						} catch (final Exception e) {
+							if (!isCancellation(e))
+								System.err.println("Could not prefetch cell " + request.index + ": " + e);
+						}
+					});
+				});
+			}
+		} catch (final RejectedExecutionException e) {
+			/* shut down meanwhile */
+		}
+	}
+
+	/**
+	 * Whether a failed load was cancelled, e.g. because the view moved on.
+	 */
+	protected static boolean isCancellation(final Throwable t) {
+
+		if (LoadCancellation.isCancelled())
+			return true;
+		for (Throwable cause = t; cause != null; cause = cause.getCause())
+			if (cause instanceof CancellationException || cause instanceof InterruptedException)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Drop all queued cells and stop the prefetch threads.
+	 */
+	public void shutdown() {
+
+		generation.incrementAndGet();
+		executor.shutdownNow();
+	}
+
+	protected void collect(
+			final Source<?> source,
+			final int level,
+			final int priority,
+			final AffineTransform3D viewerTransform,
+			final int width,
+			final int height,
+			final ArrayList<Request> requests) {
+
+		final CachedCellImg<?, ?> img = renderSource.getCellImg(level);
+		final CellGrid grid = img.getCellGrid();
+		final Cache<Long, ?> cache = img.getCache();
+		final long[] gridDimensions = grid.getGridDimensions();
+
+		final AffineTransform3D sourceToScreen = new AffineTransform3D();
+		source.getSourceTransform(0, level, sourceToScreen);
+		sourceToScreen.preConcatenate(viewerTransform);
+		final AffineTransform3D screenToSource = sourceToScreen.inverse();
+
+		final double[] min = new double[3];
+		final double[] max = new double[3];
+		screenBounds(screenToSource, width, height, min, max);
+
+		final long[] cellMin = new long[3];
+		final long[] cellMax = new long[3];
+		for (int d = 0; d < 3; ++d) {
+			final int r = d < 2 || grid.cellDimension(d) > 1 ? ring : 0;
+			cellMin[d] = Math.max(0, (long)Math.floor(min[d] / grid.cellDimension(d)) - r);
+			cellMax[d] = Math.min(gridDimensions[d] - 1, (long)Math.floor(max[d] / grid.cellDimension(d)) + r);
+		}
+
+		final double[] center = new double[3];
+		screenToSource.apply(new double[]{0.5 * width, 0.5 * height, 0}, center);
+
+		final long[] cellPosition = new long[3];
+		for (cellPosition[2] = cellMin[2]; cellPosition[2] <= cellMax[2]; ++cellPosition[2]) {
+			for (cellPosition[1] = cellMin[1]; cellPosition[1] <= cellMax[1]; ++cellPosition[1]) {
+				for (cellPosition[0] = cellMin[0]; cellPosition[0] <= cellMax[0]; ++cellPosition[0]) {
+					double distance = 0;
+					for (int d = 0; d < 3; ++d) {
+						final double c = (cellPosition[d] + 0.5) * grid.cellDimension(d) - center[d];
+						distance += c * c;
+					}
+					requests.add(
+							new Request(
+									cache,
+									IntervalIndexer.positionToIndex(cellPosition, gridDimensions),
+									distance,
+									priority));
+				}
+			}
+		}
+	}
+
+	public ExecutorService getExecutor() {
+
+		return executor;
+	}
+}
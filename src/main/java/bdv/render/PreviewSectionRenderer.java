@@ -0,0 +1,82 @@
+/**
+ *
+ */
+package bdv.render;
+
+import java.util.Arrays;
+
+/**
+ * {@link SectionRenderer} that renders boxes at <code>1/factor</code> of the
+ * requested scale and scales them up with nearest neighbor interpolation,
+ * such that a preview of a box costs about <code>1/factor<sup>2</sup></code>
+ * of the pixels and tile data of the full render.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class PreviewSectionRenderer implements SectionRenderer {
+
+	protected static final ThreadLocal<int[]> buffers = ThreadLocal.withInitial(() -> new int[0]);
+
+	protected final SectionRenderer renderer;
+	protected final int factor;
+
+	/**
+	 *
+	 * @param renderer renders the reduced boxes, e.g. without filter
+	 * @param factor
+	 */
+	public PreviewSectionRenderer(final SectionRenderer renderer, final int factor) {
+
+		this.renderer = renderer;
+		this.factor = Math.max(1, factor);
+	}
+
+	@Override
+	public void render(
+			final long x,
+			final long y,
+			final long z,
+			final long w,
+			final long h,
+			final double scale,
+			final int[] data,
+			final int width,
+			final int height) throws Exception {
+
+		if (factor == 1) {
+			renderer.render(x, y, z, w, h, scale, data, width, height);
+			return;
+		}
+
+		final int previewWidth = (width + factor - 1) / factor;
+		final int previewHeight = (height + factor - 1) / factor;
+		final double previewScale = scale / factor;
+
+		final int n = previewWidth * previewHeight;
+		int[] buffer = buffers.get();
+		if (buffer.length < n) {
+			buffer = new int[n];
+			buffers.set(buffer);
+		} else
+			Arrays.fill(buffer, 0, n, 0);
+
+		/* the reduced box covers whole preview pixels */
+		renderer.render(
+				x,
+				y,
+				z,
+				Math.round(previewWidth / previewScale),
+				Math.round(previewHeight / previewScale),
+				previewScale,
+				buffer,
+				previewWidth,
+				previewHeight);
+
+		for (int row = 0, i = 0; row < height; ++row) {
+			final int offset = row / factor * previewWidth;
+			for (int column = 0; column < width; ++column, ++i)
+				data[i] = buffer[offset + column / factor];
+		}
+	}
+}
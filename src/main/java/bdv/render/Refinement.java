@@ -0,0 +1,231 @@
+/**
+ *
+ */
+package bdv.render;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Second pass of progressive cell loading.
+ *
+ * A cell that was loaded as a fast preview is rendered again at full
+ * quality into a separate array that is then copied into the storage of the
+ * cached cell, so the preview stays visible until the refined pixels
+ * replace it at once.  Listeners, e.g. a viewer's repaint, are notified
+ * after each refined cell.
+ *
+ * Refinements run most recent first, so cells of the current view are
+ * refined before those of views that the user has moved away from.  Each
+ * refinement runs with a {@link LoadCancellation#fork(LoadCancellation.Token)
+ * fork} of the token of its cell's load, so it passes shared gates after
+ * the loads of visible sources and is cancelled when the view moves away
+ * from its cell or its source is hidden.  A cancelled refinement resumes
+ * when its cell is in view again.  Refinements of cells that were evicted
+ * meanwhile are dropped.
+ *
+ * While a refinement is pending, its cell must not be persisted or
+ * downsampled, loaders that would do so {@link #take() take} the refinement
+ * that the current thread started and defer to it, or check
+ * {@link #isPending(Object)}.  A cell whose refinement failed or was
+ * cancelled keeps its preview and stays pending.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public final class Refinement {
+
+	/**
+	 * Renders a cell at full quality.
+	 */
+	public static interface Render {
+
+		/**
+		 * @param refined array of the same type and length as the storage
+		 *     of the cell
+		 * @throws Exception
+		 */
+		public void render(Object refined) throws Exception;
+	}
+
+	/* weak keys are compared by identity */
+	private static final Set<Object> pending = Collections.newSetFromMap(new MapMaker().weakKeys().<Object, Boolean>makeMap());
+
+	private static final ThreadLocal<CompletableFuture<Void>> started = new ThreadLocal<>();
+
+	private static final CopyOnWriteArrayList<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+	private static ExecutorService executor = null;
+	private static int numExecutorThreads;
+
+	private Refinement() {}
+
+	/**
+	 * Get the process-wide refinement executor, create it with
+	 * <code>numThreads</code> daemon threads on first access.  Later requests
+	 * for another number of threads are ignored with a warning.
+	 *
+	 * @param numThreads
+	 * @return
+	 */
+	public static synchronized ExecutorService getExecutor(final int numThreads) {
+
+		if (executor == null) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			final int n = Math.max(1, numThreads);
+			final ThreadPoolExecutor lifo = new ThreadPoolExecutor(
+					n,
+					n,
+					0L,
+					TimeUnit.MILLISECONDS,
+					new LinkedBlockingDeque<Runnable>() {
+
+						private static final long serialVersionUID = 1L;
+
+						@Override
+						public boolean offer(final Runnable task) {
+
+							return offerFirst(task);
+						}
+					},
+					r -> {
+						final Thread thread = new Thread(r, "render-refine-" + threadCount.getAndIncrement());
+						thread.setDaemon(true);
+						return thread;
+					});
+			Metrics.registerGauge("refinement.queued", () -> lifo.getQueue().size());
+			executor = lifo;
+			numExecutorThreads = n;
+		} else
+			RenderSource.warnIfIgnored("number of refinement threads", "", numExecutorThreads, Math.max(1, numThreads));
+
+		return executor;
+	}
+
+	public static void addListener(final Runnable listener) {
+
+		listeners.add(listener);
+	}
+
+	public static void removeListener(final Runnable listener) {
+
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Refine a cell in the background on behalf of the load running on this
+	 * thread.  The returned refinement is also handed to the calling thread,
+	 * see {@link #take()}.
+	 *
+	 * @param executor
+	 * @param storage int[] or byte[] storage of the cached cell
+	 * @param render renders the cell at full quality
+	 * @return completes when the refined pixels are in storage, fails if the
+	 *     refinement fails or is cancelled
+	 */
+	public static CompletableFuture<Void> submit(
+			final ExecutorService executor,
+			final Object storage,
+			final Render render) {
+
+		pending.add(storage);
+		final CompletableFuture<Void> refinement = new CompletableFuture<>();
+		execute(
+				executor,
+				new WeakReference<>(storage),
+				render,
+				LoadCancellation.fork(LoadCancellation.current()),
+				refinement);
+		started.set(refinement);
+		return refinement;
+	}
+
+	/**
+	 * Queue a refinement.  The storage is only weakly referenced while the
+	 * refinement is queued or deferred.
+	 *
+	 * @param executor
+	 * @param storageReference
+	 * @param render
+	 * @param token of the refinement or null
+	 * @param refinement completed with the refinement or null for a resumed
+	 *     refinement
+	 */
+	private static void execute(
+			final ExecutorService executor,
+			final WeakReference<Object> storageReference,
+			final Render render,
+			final LoadCancellation.Token token,
+			final CompletableFuture<Void> refinement) {
+
+		executor.execute(() -> {
+			final Object storage = storageReference.get();
+			if (storage == null) {
+				LoadCancellation.release(token);
+				if (refinement != null)
+					refinement.cancel(false);
+				return;
+			}
+
+			final LoadCancellation.Token previous = LoadCancellation.set(token);
+			try {
+				LoadCancellation.check();
+				final int n = Array.getLength(storage);
+				final Object refined = Array.newInstance(storage.getClass().getComponentType(), n);
+				final long t = Metrics.start();
+				render.render(refined);
+				Metrics.stop(Metrics.Stage.REFINE, t);
+				System.arraycopy(refined, 0, storage, 0, n);
+				pending.remove(storage);
+				if (refinement != null)
+					refinement.complete(null);
+				for (final Runnable listener : listeners)
+					listener.run();
+			} catch (final Throwable e) {
+				if (refinement != null)
+					refinement.completeExceptionally(e);
+				if (token != null && token.isCancelled())
+					LoadCancellation.resumeInView(
+							token,
+							() -> execute(executor, storageReference, render, LoadCancellation.fork(token), null));
+				else
+					System.err.println("Could not refine cell, keeping its preview: " + e.getMessage());
+			} finally {
+				LoadCancellation.set(previous);
+				LoadCancellation.release(token);
+			}
+		});
+	}
+
+	/**
+	 * @return the refinement started by the last load of this thread or
+	 *     null
+	 */
+	public static CompletableFuture<Void> take() {
+
+		final CompletableFuture<Void> refinement = started.get();
+		started.remove();
+		return refinement;
+	}
+
+	/**
+	 * @param storage
+	 * @return true if the cell with this storage array shows a preview that
+	 *     is being refined
+	 */
+	public static boolean isPending(final Object storage) {
+
+		return pending.contains(storage);
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ *
+ */
+package bdv.render;
+
+/**
+ * Fetches sections rendered by the render web service, the client only
+ * decodes the transferred image.  Boxes of each scale level are transferred
+ * with the codec of that level in a {@link CodecPolicy}.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class RemoteSectionRenderer implements SectionRenderer {
+
+	protected final String baseUrl;
+	protected final String owner;
+	protected final String project;
+	protected final String stack;
+	protected final RenderMode mode;
+	protected final boolean filter;
+	protected final CodecPolicy codecs;
+
+	public RemoteSectionRenderer(
+			final String baseUrl,
+			final String owner,
+			final String project,
+			final String stack,
+			final RenderMode mode,
+			final boolean filter,
+			final CodecPolicy codecs) {
+
+		if (mode == RenderMode.LOCAL)
+			throw new IllegalArgumentException("Remote rendering does not support render mode " + mode);
+
+		this.baseUrl = baseUrl;
+		this.owner = owner;
+		this.project = project;
+		this.stack = stack;
+		this.mode = mode;
+		this.filter = filter;
+		this.codecs = codecs;
+	}
+
+	public RemoteSectionRenderer(
+			final String baseUrl,
+			final String owner,
+			final String project,
+			final String stack,
+			final RenderMode mode,
+			final boolean filter) {
+
+		this(baseUrl, owner, project, stack, mode, filter, new CodecPolicy(CodecPolicy.Codec.of(mode)));
+	}
+
+	@Override
+	public void render(
+			final long x,
+			final long y,
+			final long z,
+			final long w,
+			final long h,
+			final double scale,
+			final int[] data,
+			final int width,
+			final int height) throws Exception {
+
+		final int level = CodecPolicy.level(scale);
+		final CodecPolicy.Codec codec = codecs.getCodec(level);
+
+		Rest.fetchBox(
+				baseUrl,
+				owner,
+				project,
+				stack,
+				codec.getRenderMode(),
+				codec == CodecPolicy.Codec.JPEG ? codecs.getQuality(level) : 0,
+				x,
+				y,
+				z,
+				w,
+				h,
+				scale,
+				filter,
+				data,
+				width,
+				height);
+	}
+}
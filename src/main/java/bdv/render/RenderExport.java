@@ -0,0 +1,318 @@
+/**
+ *
+ */
+package bdv.render;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Renders a region of a render stack into a chunked multiscale dataset on
+ * disk.
+ *
+ * The dataset is written in the layout of the persistent cell cache, i.e.
+ * one N5 uint32 dataset per scale level, or uint8 with <code>--gray</code>,
+ * such that the render app shows it without rendering any cell if started
+ * with <code>--cache_dir</code> set to the same directory.  It still asks
+ * the render web service for the bounds, resolution, and version of the
+ * stack.  The multiscale group has the downsampling factors of all levels,
+ * the pixel resolution, the world offset, and the stack, so N5 viewers open
+ * it offline.  Levels are exported from fine to coarse, with
+ * <code>--downsample</code> the coarser levels are derived from the finer
+ * levels on disk.  Blocks that exist already are skipped, so an interrupted
+ * export can be resumed by running it again.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class RenderExport {
+
+	public static class ExportParameters extends Parameters {
+
+		@Parameter(names = { "--out" }, description = "output directory", required = true)
+		public String out;
+
+		@Parameter(names = { "--min_x" }, description = "minimum x in world coordinates, stack bounds if not set")
+		public Long minX = null;
+
+		@Parameter(names = { "--min_y" }, description = "minimum y in world coordinates, stack bounds if not set")
+		public Long minY = null;
+
+		@Parameter(names = { "--min_z" }, description = "minimum z, stack bounds if not set")
+		public Long minZ = null;
+
+		@Parameter(names = { "--max_x" }, description = "maximum x in world coordinates, stack bounds if not set")
+		public Long maxX = null;
+
+		@Parameter(names = { "--max_y" }, description = "maximum y in world coordinates, stack bounds if not set")
+		public Long maxY = null;
+
+		@Parameter(names = { "--max_z" }, description = "maximum z, stack bounds if not set")
+		public Long maxZ = null;
+
+		@Parameter(names = { "--min_level" }, description = "finest scale level to export")
+		public int minLevel = 0;
+
+		@Parameter(names = { "--max_level" }, description = "coarsest scale level to export, all levels if not set")
+		public Integer maxLevel = null;
+
+		@Parameter(names = { "--threads" }, description = "number of threads loading cells")
+		public int numThreads = Runtime.getRuntime().availableProcessors();
+
+		@Parameter(names = { "--max_requests" }, description = "maximum number of cells loaded concurrently")
+		public int maxRequests = 2 * Runtime.getRuntime().availableProcessors();
+
+		@Parameter(names = { "--report_interval" }, description = "interval of progress reports in s")
+		public int reportInterval = 10;
+	}
+
+	/**
+	 * Grid positions of the cells of a level that intersect the export
+	 * region.
+	 */
+	protected static ArrayList<long[]> getCells(
+			final ExportParameters p,
+			final RenderSource<?, ?> renderSource,
+			final int level) {
+
+		final CachedCellImg<?, ?> img = renderSource.getCellImg(level);
+		final CellGrid grid = img.getCellGrid();
+		final long[] gridDimensions = grid.getGridDimensions();
+		final long[] offset = renderSource.getOffset();
+		final int zScale = renderSource.getZScales()[level];
+
+		final long[] min = new long[3];
+		final long[] max = new long[3];
+		min[0] = p.minX == null ? 0 : (p.minX - offset[0]) >> level;
+		min[1] = p.minY == null ? 0 : (p.minY - offset[1]) >> level;
+		min[2] = p.minZ == null ? 0 : (p.minZ - offset[2]) / zScale;
+		max[0] = p.maxX == null ? img.max(0) : (p.maxX - offset[0]) >> level;
+		max[1] = p.maxY == null ? img.max(1) : (p.maxY - offset[1]) >> level;
+		max[2] = p.maxZ == null ? img.max(2) : (p.maxZ - offset[2]) / zScale;
+
+		final long[] gridMin = new long[3];
+		final long[] gridMax = new long[3];
+		for (int d = 0; d < 3; ++d) {
+			gridMin[d] = Math.max(0, min[d] / grid.cellDimension(d));
+			gridMax[d] = Math.min(gridDimensions[d] - 1, Math.max(0, max[d]) / grid.cellDimension(d));
+		}
+
+		final ArrayList<long[]> cells = new ArrayList<>();
+		final long[] gridPosition = new long[3];
+		for (gridPosition[2] = gridMin[2]; gridPosition[2] <= gridMax[2]; ++gridPosition[2])
+			for (gridPosition[1] = gridMin[1]; gridPosition[1] <= gridMax[1]; ++gridPosition[1])
+				for (gridPosition[0] = gridMin[0]; gridPosition[0] <= gridMax[0]; ++gridPosition[0])
+					cells.add(gridPosition.clone());
+
+		return cells;
+	}
+
+	/**
+	 * Write the multiscale metadata of the exported levels: the downsampling
+	 * factors of each level dataset, and the downsampling factors of all
+	 * levels, the pixel resolution, the world offset of the first voxel, and
+	 * the exported stack in the group.
+	 *
+	 * @param p
+	 * @param renderSource
+	 * @param metadata
+	 * @throws IOException
+	 */
+	protected static void writeMultiscaleAttributes(
+			final ExportParameters p,
+			final RenderSource<?, ?> renderSource,
+			final StackMetadata metadata) throws IOException {
+
+		final Gson gson = new Gson();
+		final int[] zScales = renderSource.getZScales();
+		final JsonArray scales = new JsonArray();
+		for (int s = 0; s < renderSource.getNumScales(); ++s) {
+			final JsonArray factors = new JsonArray();
+			factors.add(1 << s);
+			factors.add(1 << s);
+			factors.add(zScales[s]);
+			scales.add(factors);
+			renderSource.getStore(s).setAttribute("downsamplingFactors", factors);
+		}
+
+		final JsonObject pixelResolution = new JsonObject();
+		pixelResolution.addProperty("unit", "nm");
+		pixelResolution.add("dimensions", gson.toJsonTree(metadata.resolution));
+
+		final JsonObject stack = new JsonObject();
+		stack.addProperty("baseUrl", p.baseUrl);
+		stack.addProperty("owner", p.owner);
+		stack.addProperty("project", p.project);
+		stack.addProperty("stack", p.stack);
+		stack.addProperty("version", metadata.version);
+
+		final JsonObject attributes = new JsonObject();
+		attributes.add("scales", scales);
+		attributes.add("pixelResolution", pixelResolution);
+		attributes.add("offset", gson.toJsonTree(renderSource.getOffset()));
+		attributes.add("stack", stack);
+
+		BlockStore.writeAttributes(renderSource.getCachePath().resolve("attributes.json"), attributes);
+	}
+
+	/**
+	 * Export one scale level.
+	 *
+	 * @return number of failed cells
+	 */
+	protected static long exportLevel(
+			final ExportParameters p,
+			final RenderSource<?, ?> renderSource,
+			final int level,
+			final ForkJoinPool pool) throws InterruptedException, ExecutionException {
+
+		final CachedCellImg<?, ?> img = renderSource.getCellImg(level);
+		final Cache<Long, ?> cache = img.getCache();
+		final CellGrid grid = img.getCellGrid();
+		final long[] gridDimensions = grid.getGridDimensions();
+		final BlockStore store = renderSource.getStore(level);
+
+		final ArrayList<long[]> cells = getCells(p, renderSource, level);
+		final long numCells = cells.size();
+		final long cellBytes = (long)grid.cellDimension(0) * grid.cellDimension(1) * grid.cellDimension(2) * (p.gray ? Byte.BYTES : Integer.BYTES);
+
+		final AtomicLong done = new AtomicLong();
+		final AtomicLong skipped = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+
+		final int maxRequests = Math.max(1, p.maxRequests);
+		final Semaphore requests = new Semaphore(maxRequests);
+		final long t0 = System.nanoTime();
+		for (final long[] gridPosition : cells) {
+			requests.acquire();
+			pool.execute(() -> {
+				try {
+					if (store.exists(gridPosition))
+						skipped.incrementAndGet();
+					else
+						cache.get(IntervalIndexer.positionToIndex(gridPosition, gridDimensions));
+				} catch (final Exception e) {
+					failed.incrementAndGet();
+					System.err.println("Could not export cell " + store.getBlockPath(gridPosition) + ": " + e.getMessage());
+				} finally {
+					done.incrementAndGet();
+					requests.release();
+				}
+			});
+
+			report(level, numCells, done.get(), skipped.get(), cellBytes, t0, p.reportInterval);
+		}
+
+		/* all cells are done when all request permits are back */
+		while (!requests.tryAcquire(maxRequests, Math.max(1, p.reportInterval), TimeUnit.SECONDS))
+			report(level, numCells, done.get(), skipped.get(), cellBytes, t0, p.reportInterval);
+
+		PersistentCellLoader.flush();
+
+		final double seconds = (System.nanoTime() - t0) * 1e-9;
+		final long rendered = numCells - skipped.get() - failed.get();
+		System.out.println(
+				String.format(
+						"s%d: %d cells in %.1fs, %d skipped, %d failed, %.1f cells/s, %.1f MB/s",
+						level,
+						numCells,
+						seconds,
+						skipped.get(),
+						failed.get(),
+						rendered / seconds,
+						rendered * cellBytes / seconds / (1 << 20)));
+
+		return failed.get();
+	}
+
+	private static long lastReport = 0;
+
+	protected static synchronized void report(
+			final int level,
+			final long numCells,
+			final long done,
+			final long skipped,
+			final long cellBytes,
+			final long t0,
+			final int interval) {
+
+		final long t = System.nanoTime();
+		if (t - lastReport < TimeUnit.SECONDS.toNanos(interval))
+			return;
+
+		lastReport = t;
+		final double seconds = (t - t0) * 1e-9;
+		final long rendered = done - skipped;
+		System.out.println(
+				String.format(
+						"s%d: %d / %d cells, %.1f cells/s, %.1f MB/s",
+						level,
+						done,
+						numCells,
+						rendered / seconds,
+						rendered * cellBytes / seconds / (1 << 20)));
+	}
+
+	public static void main(final String... args) throws IOException, InterruptedException, ExecutionException {
+
+		final ExportParameters p = new ExportParameters();
+		new JCommander(p, args);
+
+		p.cacheDir = p.out;
+		/* exported cells are rendered at full quality right away */
+		p.progressive = false;
+		/* no exported cell is lost when the disk falls behind */
+		p.blockingCacheWrites = true;
+		/* export the current version of the stack, not a cached one */
+		p.metadataCacheDir = null;
+
+		Http.configure(p);
+		Metrics.configure(p);
+
+		final RenderSource<?, ?> renderSource = RenderSource.open(p, p.stack, new Gson());
+		if (renderSource == null) {
+			System.err.println("Could not get the bounds of " + p.stack + ".");
+			System.exit(1);
+		}
+
+		if (renderSource.getCachePath() == null) {
+			System.err.println("Could not create the dataset for " + p.stack + " in " + p.out + ".");
+			System.exit(1);
+		}
+
+		System.out.println("Exporting " + p.stack + " to " + renderSource.getCachePath());
+		writeMultiscaleAttributes(p, renderSource, StackMetadata.get(new Gson(), p));
+
+		final int maxLevel = Math.min(
+				renderSource.getNumScales() - 1,
+				p.maxLevel == null ? Integer.MAX_VALUE : p.maxLevel);
+
+		final ForkJoinPool pool = new ForkJoinPool(Math.max(1, p.numThreads));
+		long failed = 0;
+		for (int s = p.minLevel; s <= maxLevel; ++s)
+			failed += exportLevel(p, renderSource, s, pool);
+		pool.shutdown();
+
+		if (failed > 0) {
+			System.err.println(failed + " cells failed, run the export again to retry them.");
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,32 @@
+/**
+ *
+ */
+package bdv.render;
+
+/**
+ * How the pixels of a cell are obtained from the render web service.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public enum RenderMode {
+
+	/** fetch tile specs and render them locally with {@link org.janelia.alignment.ArgbRenderer} */
+	LOCAL,
+	/** fetch the box rendered by the server as PNG */
+	PNG,
+	/** fetch the box rendered by the server as JPEG */
+	JPEG,
+	/** fetch the box rendered by the server as uncompressed ARGB pixels */
+	RAW;
+
+	public static String[] names() {
+
+		final RenderMode[] modes = values();
+		final String[] names = new String[modes.length];
+		for (int i = 0; i < modes.length; ++i)
+			names[i] = modes[i].name();
+
+		return names;
+	}
+}
@@ -18,62 +18,799 @@ package bdv.render;
 
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.janelia.alignment.util.ImageProcessorCache;
+
+import com.google.gson.Gson;
 
 import bdv.tools.transformation.TransformedSource;
 import bdv.util.RandomAccessibleIntervalMipmapSource;
 import bdv.util.VolatileRandomAccessibleIntervalMipmapSource;
 import bdv.util.volatiles.SharedQueue;
 import bdv.viewer.Source;
+import ij.process.ImageProcessor;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
 import mpicbg.spim.data.sequence.VoxelDimensions;
-import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.FinalDimensions;
 import net.imglib2.cache.Cache;
+import net.imglib2.cache.LoaderCache;
 import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
 import net.imglib2.cache.img.LoadedCellCacheLoader;
 import net.imglib2.cache.ref.SoftRefLoaderCache;
 import net.imglib2.img.basictypeaccess.AccessFlags;
 import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
-import net.imglib2.img.basictypeaccess.volatiles.array.VolatileIntArray;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
 import net.imglib2.img.cell.Cell;
 import net.imglib2.img.cell.CellGrid;
+import net.imglib2.Volatile;
 import net.imglib2.realtransform.AffineTransform3D;
-import net.imglib2.type.PrimitiveType;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.volatiles.VolatileARGBType;
+import net.imglib2.type.volatiles.VolatileUnsignedByteType;
+
+/**
+ * Multiscale source of a render stack with {@link ARGBType} cells or, for
+ * {@link Parameters#gray}, 8-bit {@link UnsignedByteType} cells.
+ *
+ * @param <T> pixel type
+ * @param <V> volatile pixel type
+ */
+public class RenderSource<
+		T extends NativeType<T> & NumericType<T>,
+		V extends Volatile<T> & NativeType<V> & NumericType<V>> {
 
-public class RenderSource {
 	/**
-	 * Creates a volatile multiscale {@link Source} for a render stack
+	 * Tile and mask cache shared by all {@link SliceLoader}s of this process
+	 * such that each source tile is decoded only once while it is hot.
 	 */
-	@SuppressWarnings("unchecked")
-	public static Source<VolatileARGBType> getVolatileSource(
+	private static ImageProcessorCache imageProcessorCache = null;
+	private static long imageProcessorCacheSize;
+
+	/**
+	 * Get the process-wide tile and mask cache, create it with a budget of
+	 * <code>cacheSize</code> MB of decoded pixels on first access.  Later
+	 * calls return the same cache and warn if they ask for another size.
+	 *
+	 * Tiles and masks of EM stacks are 8-bit, so the pixel count of an
+	 * {@link ImageProcessorCache} entry is its decoded weight in bytes.
+	 * Images of the render web service at their mipmap level are transferred
+	 * through {@link Http} by {@link LocalSectionRenderer#fetch(String)} and
+	 * decoded by {@link Rest#decodeImageProcessor(byte[], String)}, others by
+	 * the cache itself.  The loader never waits for a render permit, threads
+	 * that hold permits may be waiting for the tile it loads.
+	 *
+	 * @param cacheSize in MB
+	 * @return
+	 */
+	public static synchronized ImageProcessorCache getImageProcessorCache(final long cacheSize) {
+
+		if (imageProcessorCache == null) {
+			final ImageProcessorCache cache = new ImageProcessorCache(cacheSize << 20, true, false) {
+
+				@Override
+				protected ImageProcessor loadImageProcessor(
+						final String url,
+						final int downSampleLevels,
+						final boolean isMask,
+						final boolean convertTo16Bit) throws IllegalArgumentException {
+
+					if (downSampleLevels > 0 || !url.startsWith("http")) {
+						final long t = Metrics.start();
+						final ImageProcessor ip = super.loadImageProcessor(url, downSampleLevels, isMask, convertTo16Bit);
+						Metrics.decoded(CodecPolicy.Codec.of(url), -1, t);
+						return ip;
+					}
+
+					try {
+						final byte[] bytes = LocalSectionRenderer.fetch(url);
+						final long t = Metrics.start();
+						ImageProcessor ip = Rest.decodeImageProcessor(bytes, url);
+						if (convertTo16Bit)
+							ip = ip.convertToShort(false);
+						Metrics.decoded(CodecPolicy.Codec.of(url), bytes.length, t);
+						return ip;
+					} catch (final IOException e) {
+						throw new IllegalArgumentException("failed to load " + url, e);
+					}
+				}
+			};
+			Metrics.registerGauge("tile_cache.hit_ratio", () -> cache.getStats().hitRate());
+			imageProcessorCache = cache;
+			imageProcessorCacheSize = cacheSize;
+		} else
+			warnIfIgnored("tile cache size", "MB", imageProcessorCacheSize, cacheSize);
+
+		return imageProcessorCache;
+	}
+
+	/**
+	 * Cell cache shared by all sources and scale levels of this process.
+	 */
+	private static BoundedCellCache cellCache = null;
+	private static long cellCacheSize;
+
+	/**
+	 * Get the process-wide cell cache, create it with a budget of
+	 * <code>cacheSize</code> MB on first access.  Later calls return the same
+	 * cache and warn if they ask for another size.
+	 *
+	 * @param cacheSize in MB
+	 * @return
+	 */
+	public static synchronized BoundedCellCache getCellCache(final long cacheSize) {
+
+		if (cellCache == null) {
+			final BoundedCellCache cache = new BoundedCellCache(cacheSize << 20);
+			Metrics.registerGauge("cell_cache.hit_ratio", () -> cache.getStats().hitRate());
+			Metrics.registerGauge("cell_cache.mb", () -> cache.getBytes() / (double)(1 << 20));
+			cellCache = cache;
+			cellCacheSize = cacheSize;
+		} else
+			warnIfIgnored("cell cache size", "MB", cellCacheSize, cacheSize);
+
+		return cellCache;
+	}
+
+	private static final CopyOnWriteArrayList<Consumer<String>> warningListeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Tell a listener, e.g. the log of the viewer, when a process-wide cache
+	 * or thread pool ignores a requested size.  Without listeners, warnings
+	 * go to standard error.
+	 *
+	 * @param listener
+	 */
+	public static void addWarningListener(final Consumer<String> listener) {
+
+		warningListeners.add(listener);
+	}
+
+	public static void removeWarningListener(final Consumer<String> listener) {
+
+		warningListeners.remove(listener);
+	}
+
+	/**
+	 * Process-wide caches and thread pools keep the size they were created
+	 * with, tell when a later source asks for another size.
+	 */
+	static void warnIfIgnored(final String name, final String unit, final long size, final long requested) {
+
+		if (size == requested)
+			return;
+
+		final String warning = String.format(
+				"The process-wide %s is already %d%s, ignoring %d%s.",
+				name,
+				size,
+				unit,
+				requested,
+				unit);
+		if (warningListeners.isEmpty())
+			System.err.println(warning);
+		else
+			for (final Consumer<String> listener : warningListeners)
+				listener.accept(warning);
+	}
+
+	/**
+	 * Identifies the cells of the current version of a render stack rendered
+	 * with the parameters that change their pixels.  Cached cells of
+	 * progressive sources may still show their preview, so the preview
+	 * factor is part of the key.
+	 *
+	 * @param p
+	 * @return
+	 */
+	public static String getSourceKey(final Parameters p) {
+
+		final StackMetadata metadata = StackMetadata.get(new Gson(), p);
+		return getSourceKey(p, metadata == null ? -1 : metadata.version);
+	}
+
+	/**
+	 * Identifies the cells of a version of a render stack rendered with the
+	 * parameters that change their pixels.
+	 *
+	 * @param p
+	 * @param version of the stack, -1 if unknown
+	 * @return
+	 */
+	public static String getSourceKey(final Parameters p, final int version) {
+
+		return String.format(
+				"%s/%s/%s/%s/v%d/%s-%s-filter%d-average%d-rewrite%d%s%s%s",
+				p.baseUrl,
+				p.owner,
+				p.project,
+				p.stack,
+				version,
+				getCellShapeName(p),
+				p.renderMode,
+				p.filter ? 1 : 0,
+				p.averageZ ? 1 : 0,
+				p.rewrite ? 1 : 0,
+				getCodecsName(p),
+				p.gray ? "-gray8" : "",
+				p.progressive ? "-preview" + p.previewFactor : "");
+	}
+
+	/**
+	 * Names the codecs unless they are the render mode's default, lossy
+	 * codecs change the pixels.
+	 */
+	protected static String getCodecsName(final Parameters p) {
+
+		final CodecPolicy codecs = CodecPolicy.create(p);
+		return codecs.equals(new CodecPolicy(CodecPolicy.Codec.of(p.renderMode))) ?
+				"" :
+				"-" + codecs.toString().replace(':', 'q').replace(',', '-');
+	}
+
+	/**
+	 * Names the cell shape, e.g. <code>256x256</code>,
+	 * <code>64x64x64</code>, or <code>256x256-ortho64</code>.
+	 */
+	protected static String getCellShapeName(final Parameters p) {
+
+		final String shape = p.tileWidth + "x" + p.tileHeight;
+		if (p.orthoslice)
+			return shape + "-ortho" + orthosliceEdge;
+		else if (p.tileDepth > 1)
+			return shape + "x" + p.tileDepth;
+		else
+			return shape;
+	}
+
+	/**
+	 * Edge length of a cube with the maximum number of voxels of a
+	 * {@link Parameters#orthoslice} cell.
+	 */
+	public static final int orthosliceEdge = 64;
+
+	/**
+	 * Cell size of a scale level.  Cells are {@link Parameters#tileDepth}
+	 * sections deep.  In {@link Parameters#orthoslice} mode, cells are about
+	 * as deep as they are wide in physical units and have at most as many
+	 * voxels as a cube of {@link #orthosliceEdge}, e.g. 128x128x13 cells of
+	 * 4x4x40nm voxels.  Their width and height are a power of two not larger
+	 * than the tile width and height, such that a view in any orientation
+	 * uses a bounded fraction of the voxels of the cells it intersects.
+	 *
+	 * @param p
+	 * @param scale voxel size of the level in voxels of level 0
+	 * @param depth number of sections of the level
+	 * @param resolution voxel size of level 0, e.g. in nm
+	 * @return
+	 */
+	public static int[] getBlockSize(final Parameters p, final double[] scale, final long depth, final double[] resolution) {
+
+		if (!p.orthoslice)
+			return new int[]{p.tileWidth, p.tileHeight, (int)Math.min(Math.max(1, p.tileDepth), Math.max(1, depth))};
+
+		final long maxVoxels = (long)orthosliceEdge * orthosliceEdge * orthosliceEdge;
+		final int maxEdge = Math.min(p.tileWidth, p.tileHeight);
+
+		/* sections per voxel width */
+		final double ratio = scale[0] * resolution[0] / (scale[2] * resolution[2]);
+
+		int edge = 1;
+		final double isotropicEdge = Math.cbrt(maxVoxels / ratio);
+		while (edge * 2 <= Math.min(maxEdge, isotropicEdge))
+			edge *= 2;
+		edge = Math.min(edge, maxEdge);
+
+		final long sections = Math.max(
+				1,
+				Math.min(
+						Math.min(Math.round(edge * ratio), maxVoxels / ((long)edge * edge)),
+						depth));
+
+		return new int[]{edge, edge, (int)sections};
+	}
+
+	/**
+	 * Cell size of a scale level of a stack with isotropic voxels at
+	 * level 0.
+	 *
+	 * @param p
+	 * @param scale voxel size of the level in voxels of level 0
+	 * @param depth number of sections of the level
+	 * @return
+	 */
+	public static int[] getBlockSize(final Parameters p, final double[] scale, final long depth) {
+
+		return getBlockSize(p, scale, depth, new double[]{1, 1, 1});
+	}
+
+	/**
+	 * Bounded executor shared by all {@link SliceLoader}s of this process
+	 * that renders the sections of z-averaged cells concurrently.
+	 */
+	private static ExecutorService sectionExecutor = null;
+	private static int numSectionThreads;
+
+	/**
+	 * Get the process-wide section executor, create it with
+	 * <code>numThreads</code> daemon threads on first access.  Later calls
+	 * return the same executor and warn if they ask for another number of
+	 * threads.
+	 *
+	 * @param numThreads
+	 * @return
+	 */
+	public static synchronized ExecutorService getSectionExecutor(final int numThreads) {
+
+		if (sectionExecutor == null) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			sectionExecutor = Executors.newFixedThreadPool(
+					Math.max(1, numThreads),
+					r -> {
+						final Thread thread = new Thread(r, "render-section-" + threadCount.getAndIncrement());
+						thread.setDaemon(true);
+						return thread;
+					});
+			numSectionThreads = numThreads;
+		} else
+			warnIfIgnored("number of section threads", "", numSectionThreads, numThreads);
+
+		return sectionExecutor;
+	}
+
+	/**
+	 * Render permits shared by all {@link LocalSectionRenderer}s of this
+	 * process.
+	 */
+	private static AdaptiveLimiter renderPermits = null;
+	private static int numRenderPermits;
+
+	/**
+	 * Get the process-wide render permits, create <code>numThreads</code>
+	 * permits on first access that are admitted by source priority and then
+	 * in order of requests.  Later calls return the same permits and warn if
+	 * they ask for another number.
+	 *
+	 * @param numThreads
+	 * @return
+	 */
+	public static synchronized AdaptiveLimiter getRenderPermits(final int numThreads) {
+
+		if (renderPermits == null) {
+			final int n = Math.max(1, numThreads);
+			final AdaptiveLimiter permits = new AdaptiveLimiter(n, n, n);
+			Metrics.registerGauge("render.in_flight", () -> permits.getInFlight());
+			renderPermits = permits;
+			numRenderPermits = numThreads;
+		} else
+			warnIfIgnored("number of render threads", "", numRenderPermits, numThreads);
+
+		return renderPermits;
+	}
+
+	/**
+	 * Fetcher threads and queue shared by the volatile sources of this
+	 * process.
+	 */
+	private static SharedQueue sharedQueue = null;
+	private static int numSharedQueueThreads;
+
+	/**
+	 * Get the process-wide fetcher queue, create it with
+	 * <code>numFetcherThreads</code> fetcher threads on first access, such
+	 * that sources opened in the same or in different viewers do not add
+	 * threads.  Later calls warn if they ask for another number of threads.
+	 *
+	 * @param numFetcherThreads
+	 * @return
+	 */
+	public static synchronized SharedQueue getSharedQueue(final int numFetcherThreads) {
+
+		if (sharedQueue == null) {
+			sharedQueue = new SharedQueue(Math.max(1, numFetcherThreads));
+			numSharedQueueThreads = numFetcherThreads;
+		} else
+			warnIfIgnored("number of fetcher threads", "", numSharedQueueThreads, numFetcherThreads);
+
+		return sharedQueue;
+	}
+
+	/**
+	 * Number of BDV fetcher threads.  Fetcher threads spend most of their
+	 * time waiting for the network, while the CPU bound part of loading is
+	 * limited by {@link #getRenderPermits(int) render permits}, so by default
+	 * there are as many fetcher threads as HTTP connections.
+	 *
+	 * @param p
+	 * @return
+	 */
+	public static int getNumFetcherThreads(final Parameters p) {
+
+		if (p.fetcherThreads > 0)
+			return p.fetcherThreads;
+
+		return Math.max(Runtime.getRuntime().availableProcessors(), p.httpConnections);
+	}
+
+	/**
+	 * Tile spec indices shared by the full quality and preview renderers of
+	 * all sources of this process, by stack.
+	 */
+	private static final HashMap<String, TileSpecIndex> tileSpecIndices = new HashMap<>();
+
+	/**
+	 * Get the process-wide tile spec index of a render stack, create it on
+	 * first access.
+	 *
+	 * @param p
+	 * @return
+	 */
+	public static synchronized TileSpecIndex getTileSpecIndex(final Parameters p) {
+
+		final CodecPolicy codecs = CodecPolicy.create(p);
+		final String key = String.format("%s/%s/%s/%s/rewrite%d/%s", p.baseUrl, p.owner, p.project, p.stack, p.rewrite ? 1 : 0, codecs);
+		TileSpecIndex tileSpecIndex = tileSpecIndices.get(key);
+		if (tileSpecIndex == null) {
+			final TileSpecIndex index =
+					new TileSpecIndex(
+							p.baseUrl,
+							p.owner,
+							p.project,
+							p.stack,
+							p.tileSpecRegionSize,
+							p.tileSpecCacheSize,
+							p.rewrite ?
+									new MipmapSourceRenderRewriter(p.baseUrl, p.owner, p.project, p.stack, codecs) :
+									new MipmapSourceRewriter(){});
+			Metrics.registerGauge("tile_spec_cache.hit_ratio." + p.stack, () -> index.getStats().hitRate());
+			tileSpecIndices.put(key, index);
+			tileSpecIndex = index;
+		}
+
+		return tileSpecIndex;
+	}
+
+	/**
+	 * Creates the {@link SectionRenderer} for the {@link RenderMode} of a
+	 * render stack.  Requests for adjacent cells are
+	 * {@link CoalescingSectionRenderer coalesced} unless
+	 * {@link Parameters#coalesceWindow} is 0.
+	 */
+	public static SectionRenderer createSectionRenderer(final Parameters p) {
+
+		return createSectionRenderer(p, false);
+	}
+
+	/**
+	 * Creates the {@link SectionRenderer} for the {@link RenderMode} of a
+	 * render stack, or its {@link PreviewSectionRenderer preview renderer}
+	 * that renders at {@link Parameters#previewFactor reduced} scale without
+	 * filter, and locally also without masks and interpolation.
+	 *
+	 * @param p
+	 * @param preview
+	 * @return
+	 */
+	public static SectionRenderer createSectionRenderer(final Parameters p, final boolean preview) {
+
+		final boolean filter = p.filter && !preview;
+		SectionRenderer renderer;
+		if (p.renderMode == RenderMode.LOCAL)
+			renderer = new LocalSectionRenderer(
+					getTileSpecIndex(p),
+					getImageProcessorCache(p.tileCacheSize),
+					filter,
+					getRenderPermits(p.renderThreads),
+					preview);
+		else
+			renderer = new RemoteSectionRenderer(
+					p.baseUrl,
+					p.owner,
+					p.project,
+					p.stack,
+					p.renderMode,
+					filter,
+					CodecPolicy.create(p));
+
+		if (p.coalesceWindow > 0 && p.coalesceMaxCells > 1)
+			renderer = new CoalescingSectionRenderer(renderer, p.coalesceWindow, p.coalesceMaxCells);
+
+		if (preview)
+			renderer = new PreviewSectionRenderer(renderer, p.previewFactor);
+
+		return renderer;
+	}
+
+	/**
+	 * Get the directory of the persistent cell cache for a render stack.
+	 * Cells are keyed by owner, project, stack, stack version, and the
+	 * parameters that change their pixels, the scale level and cell grid
+	 * position are added by {@link BlockStore}.  Cached cells of other versions
+	 * of the stack are stale and removed in the background, see
+	 * {@link #getCachePath(Parameters, StackMetadata)}.
+	 *
+	 * @param p
+	 * @return null if there is no persistent cache or the current version of
+	 *     the stack is unknown
+	 */
+	public static Path getCachePath(final Parameters p) {
+
+		if (p.cacheDir == null || p.cacheDir.isEmpty())
+			return null;
+
+		return getCachePath(p, StackMetadata.get(new Gson(), p));
+	}
+
+	/**
+	 * Get the directory of the persistent cell cache for the version of a
+	 * render stack in its metadata.  The version directory is
+	 * {@link #lockVersion(Path) locked} while this process uses it.  Once
+	 * per stack and process, the directories of other versions that no
+	 * process has locked are removed in the background, unless the version
+	 * is from the metadata cache and may be outdated itself.
+	 *
+	 * @param p
+	 * @param metadata
+	 * @return null if there is no persistent cache or the version of the
+	 *     stack is unknown
+	 */
+	public static Path getCachePath(final Parameters p, final StackMetadata metadata) {
+
+		if (p.cacheDir == null || p.cacheDir.isEmpty())
+			return null;
+
+		if (metadata == null || metadata.version < 0) {
+			System.err.println("Could not get the version of " + p.stack + ", persistent cell cache disabled.");
+			return null;
+		}
+
+		final Path stackPath = Paths.get(p.cacheDir, p.owner, p.project, p.stack);
+		final String versionName = "v" + metadata.version;
+		final Path versionPath = stackPath.resolve(versionName);
+
+		try {
+			lockVersion(versionPath);
+		} catch (final IOException e) {
+			System.err.println("Could not lock " + versionPath + ", persistent cell cache disabled: " + e.getMessage());
+			return null;
+		}
+
+		if (!metadata.cached && startPurge(stackPath)) {
+			final Thread purge = new Thread(() -> {
+				try (final DirectoryStream<Path> versions = Files.newDirectoryStream(stackPath, "v*")) {
+					for (final Path version : versions)
+						if (!version.getFileName().toString().equals(versionName))
+							deleteUnlocked(version);
+				} catch (final IOException e) {
+					System.err.println("Could not purge stale versions in " + stackPath + ": " + e.getMessage());
+				}
+			}, "render-cache-purge");
+			purge.setDaemon(true);
+			purge.start();
+		}
+
+		return versionPath.resolve(
+				String.format(
+						"%s-%s-filter%d-average%d-rewrite%d%s%s",
+						getCellShapeName(p),
+						p.renderMode,
+						p.filter ? 1 : 0,
+						p.averageZ ? 1 : 0,
+						p.rewrite ? 1 : 0,
+						getCodecsName(p),
+						p.gray ? "-gray8" : ""));
+	}
+
+	/**
+	 * Stack directories that were purged by this process.
+	 */
+	private static final HashSet<Path> purgedStacks = new HashSet<>();
+
+	/**
+	 * Version directories used by this process and their lock files.
+	 */
+	private static final HashMap<Path, FileChannel> versionLocks = new HashMap<>();
+
+	private static final String lockFileName = ".lock";
+
+	/**
+	 * @return true the first time it is called for a stack directory
+	 */
+	private static synchronized boolean startPurge(final Path stackPath) {
+
+		return purgedStacks.add(stackPath.toAbsolutePath().normalize());
+	}
+
+	/**
+	 * Hold a shared lock on the lock file of a version directory for the
+	 * life of this process, so that no other process removes the directory
+	 * while it is in use.  If a purge removed the lock file while this
+	 * process was waiting for it, the directory is created again.
+	 *
+	 * @param versionPath
+	 * @throws IOException
+	 */
+	private static synchronized void lockVersion(final Path versionPath) throws IOException {
+
+		final Path key = versionPath.toAbsolutePath().normalize();
+		if (versionLocks.containsKey(key))
+			return;
+
+		for (;;) {
+			Files.createDirectories(versionPath);
+			final Path lockPath = versionPath.resolve(lockFileName);
+			final FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+			try {
+				channel.lock(0, Long.MAX_VALUE, true);
+			} catch (final IOException e) {
+				channel.close();
+				throw e;
+			}
+			if (Files.exists(lockPath)) {
+				versionLocks.put(key, channel);
+				return;
+			}
+			channel.close();
+		}
+	}
+
+	/**
+	 * Remove a version directory unless a process holds the lock on its lock
+	 * file.  The exclusive lock is held while the directory is removed.
+	 */
+	private static void deleteUnlocked(final Path versionPath) throws IOException {
+
+		synchronized (RenderSource.class) {
+			if (versionLocks.containsKey(versionPath.toAbsolutePath().normalize()))
+				return;
+		}
+
+		final Path lockPath = versionPath.resolve(lockFileName);
+		try (final FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			final FileLock lock;
+			try {
+				lock = channel.tryLock();
+			} catch (final OverlappingFileLockException e) {
+				return;
+			}
+			if (lock == null)
+				return;
+			deleteRecursively(versionPath);
+		}
+	}
+
+	private static void deleteRecursively(final Path path) throws IOException {
+
+		try (final Stream<Path> paths = Files.walk(path)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(f -> {
+				try {
+					Files.delete(f);
+				} catch (final IOException e) {}
+			});
+		}
+	}
+
+	/**
+	 * Number of scale levels such that the coarsest level is not smaller than
+	 * two cells in x and y.
+	 */
+	public static int getNumScales(
+			long width,
+			long height,
+			final long tileWidth,
+			final long tileHeight) {
+		int i = 1;
+
+		while ((width >>= 1) > tileWidth && (height >>= 1) > tileHeight)
+			++i;
+
+		return i;
+	}
+
+	/**
+	 * Creates the {@link RenderSource} for a render stack with all scale
+	 * levels from {@link #getNumScales(long, long, long, long)}, with
+	 * {@link UnsignedByteType} cells if {@link Parameters#gray} is set and
+	 * {@link ARGBType} cells otherwise.
+	 *
+	 * @param p
+	 * @param name
+	 * @param gson
+	 * @return null if the stack bounds are not available
+	 * @throws IOException
+	 */
+	public static RenderSource<?, ?> open(final Parameters p, final String name, final Gson gson) throws IOException {
+
+		final StackMetadata metadata = StackMetadata.get(gson, p);
+		if (metadata == null) return null;
+
+		final Bounds bounds = metadata.bounds;
+		final double[] resolution = metadata.resolution;
+		final double zScale = resolution[0] / resolution[2];
+
+		final long[] offset = new long[] { (long) bounds.minX, (long) bounds.minY, (long) bounds.minZ };
+		final FinalDimensions size =
+				new FinalDimensions(
+						new long[]{
+								(long)Math.ceil(bounds.maxX - bounds.minX + 1),
+								(long)Math.ceil(bounds.maxY - bounds.minY + 1),
+								(long)Math.ceil(bounds.maxZ - bounds.minZ + 1)});;
+		final int numScales = getNumScales(size.dimension(0), size.dimension(1), p.tileWidth, p.tileHeight);;
+
+		final double[][] mipmapResolutions = new double[numScales][];
+		final long[][] dimensions = new long[numScales][];
+		final AffineTransform3D[] mipmapTransforms = new AffineTransform3D[numScales];
+		final int[] zScales = new int[numScales];
+		for (int l = 0; l < numScales; ++l) {
+
+			final int sixy = 1 << l;
+			final int siz = p.averageZ ? Math.max(1, (int)Math.round(sixy / zScale)) : 1;
+
+			mipmapResolutions[l] = new double[] { sixy, sixy, siz };
+			dimensions[l] = new long[] {
+					Math.max(1, size.dimension(0) >> l),
+					Math.max(1, size.dimension(1) >> l),
+					Math.max(1, size.dimension(2) / siz)};
+			zScales[l] = siz;
+
+			final AffineTransform3D mipmapTransform = new AffineTransform3D();
+
+			mipmapTransform.set(sixy, 0, 0);
+			mipmapTransform.set(sixy, 1, 1);
+			mipmapTransform.set(zScale * siz, 2, 2);
+
+//			mipmapTransform.set(0.5 * (sixy - 1), 0, 3);
+//			mipmapTransform.set(0.5 * (sixy - 1), 1, 3);
+			mipmapTransform.set(0.5 * (zScale * siz - 1), 2, 3);
+
+			mipmapTransforms[l] = mipmapTransform;
+		}
+
+		final FinalVoxelDimensions voxelDimensions = new FinalVoxelDimensions("nm", mipmapResolutions[0]);
+
+		return create(p, name, dimensions, mipmapResolutions, zScales, offset, voxelDimensions);
+	}
+
+	/**
+	 * Creates a {@link RenderSource} with {@link UnsignedByteType} cells if
+	 * {@link Parameters#gray} is set and {@link ARGBType} cells otherwise.
+	 */
+	protected static RenderSource<?, ?> create(
 			final Parameters p,
 			final String name,
 			final long[][] dimensions,
 			final double[][] scales,
 			final int[] zScales,
 			final long[] offset,
-			final VoxelDimensions voxelDimensions,
-			final SharedQueue sharedQueue) throws IOException {
+			final VoxelDimensions voxelDimensions) throws IOException {
 
-		final RandomAccessibleIntervalMipmapSource<ARGBType> source =
-				getRandomAccessibleIntervalMipmapSource(
-						p,
-						name,
-						dimensions,
-						scales,
-						zScales,
-						offset,
-						voxelDimensions);
-		final VolatileRandomAccessibleIntervalMipmapSource<ARGBType, VolatileARGBType> volatileSource = source.asVolatile(new VolatileARGBType(), sharedQueue);
-		//final Source<VolatileARGBType> transformedVolatileSource = applyTransform(volatileSource);
-		//return transformedVolatileSource;
-		return volatileSource;
+		if (p.gray)
+			return createGray(p, name, dimensions, scales, zScales, offset, voxelDimensions);
+		else
+			return createArgb(p, name, dimensions, scales, zScales, offset, voxelDimensions);
 	}
 
-	/**
-	 * Creates a multiscale {@link Source} for a render stack.
-	 */
-	public static Source<ARGBType> getSource(
+	protected static RenderSource<ARGBType, VolatileARGBType> createArgb(
 			final Parameters p,
 			final String name,
 			final long[][] dimensions,
@@ -82,23 +819,77 @@ public class RenderSource {
 			final long[] offset,
 			final VoxelDimensions voxelDimensions) throws IOException {
 
-		final RandomAccessibleIntervalMipmapSource<ARGBType> source =
-				getRandomAccessibleIntervalMipmapSource(
-						p,
-						name,
-						dimensions,
-						scales,
-						zScales,
-						offset,
-						voxelDimensions);
-//		final Source<ARGBType> transformedSource = applyTransform(source);
-//		return transformedSource;
-		return source;
+		final Parameters argb = p.clone();
+		argb.gray = false;
+		return new RenderSource<>(
+				argb,
+				new ARGBType(),
+				new VolatileARGBType(),
+				name,
+				dimensions,
+				scales,
+				zScales,
+				offset,
+				voxelDimensions);
 	}
 
+	protected static RenderSource<UnsignedByteType, VolatileUnsignedByteType> createGray(
+			final Parameters p,
+			final String name,
+			final long[][] dimensions,
+			final double[][] scales,
+			final int[] zScales,
+			final long[] offset,
+			final VoxelDimensions voxelDimensions) throws IOException {
+
+		final Parameters gray = p.clone();
+		gray.gray = true;
+		return new RenderSource<>(
+				gray,
+				new UnsignedByteType(),
+				new VolatileUnsignedByteType(),
+				name,
+				dimensions,
+				scales,
+				zScales,
+				offset,
+				voxelDimensions);
+	}
+
+	protected final Parameters p;
+	protected final T type;
+	protected final V volatileType;
+	protected final CachedCellImg<T, ?>[] cellImgs;
+	protected final BlockStore[] stores;
+	protected final Path cachePath;
+	protected final LoadCancellation cancellation;
+	protected final long[] offset;
+	protected final int[] zScales;
+	protected final RandomAccessibleIntervalMipmapSource<T> source;
+	protected VolatileRandomAccessibleIntervalMipmapSource<T, V> volatileSource = null;
+
+	/**
+	 * Builds the cell images of all scale levels of a render stack once.  The
+	 * {@link #getSource() non-volatile} and
+	 * {@link #getVolatileSource(SharedQueue) volatile} sources are views of
+	 * the same cell images and share their loaders and caches.
+	 *
+	 * @param p
+	 * @param type {@link ARGBType} or {@link UnsignedByteType}
+	 * @param volatileType
+	 * @param name
+	 * @param dimensions
+	 * @param scales
+	 * @param zScales
+	 * @param offset
+	 * @param voxelDimensions
+	 * @throws IOException
+	 */
 	@SuppressWarnings("unchecked")
-	private static RandomAccessibleIntervalMipmapSource<ARGBType> getRandomAccessibleIntervalMipmapSource(
+	public RenderSource(
 			final Parameters p,
+			final T type,
+			final V volatileType,
 			final String name,
 			final long[][] dimensions,
 			final double[][] scales,
@@ -106,52 +897,271 @@ public class RenderSource {
 			final long[] offset,
 			final VoxelDimensions voxelDimensions) throws IOException {
 
-		final RandomAccessibleInterval<ARGBType>[] scaleLevelImgs = new RandomAccessibleInterval[scales.length];
-		final int[] blockSize = new int[]{p.tileWidth, p.tileHeight, 1};
+		this.p = p.clone();
+		this.type = type;
+		this.volatileType = volatileType;
+		this.offset = offset.clone();
+		this.zScales = zScales.clone();
+
+		cellImgs = new CachedCellImg[scales.length];
+		stores = new BlockStore[scales.length];
+		final StackMetadata metadata = StackMetadata.get(new Gson(), p);
+		final int version = metadata == null ? -1 : metadata.version;
+		final double[] resolution = metadata == null || metadata.resolution == null ?
+				new double[]{1, 1, 1} :
+				metadata.resolution;
+		final int[][] blockSizes = new int[scales.length][];
+		boolean deep = false;
+		for (int s = 0; s < scales.length; ++s) {
+			blockSizes[s] = getBlockSize(p, scales[s], dimensions[s][2], resolution);
+			deep |= blockSizes[s][2] > 1;
+		}
+		final SectionRenderer renderer = createSectionRenderer(p);
+		final SectionRenderer previewRenderer = p.progressive ? createSectionRenderer(p, true) : null;
+		final ExecutorService refiner = p.progressive ?
+				Refinement.getExecutor(p.refineThreads > 0 ? p.refineThreads : getNumFetcherThreads(p)) :
+				null;
+		final ExecutorService sectionExecutor = p.averageZ || deep ? getSectionExecutor(p.sectionThreads) : null;
+		cachePath = getCachePath(p, metadata);
+		final String sourceKey = getSourceKey(p, version);
+		cancellation = new LoadCancellation(blockSizes, (p.prefetchCells > 0 ? p.prefetchRing : 0) + 1);
+		final BlockStore.DataType dataType = p.gray ? BlockStore.DataType.UINT8 : BlockStore.DataType.UINT32;
 		for (int s = 0; s < scales.length; ++s) {
 
-			final SliceLoader loader =
-					new SliceLoader(
-							p.baseUrl,
-							p.owner,
-							p.project,
-							p.stack,
+			final CellLoader<T> sliceLoader =
+					new SliceLoader<>(
 							p.averageZ,
-							p.filter,
 							offset,
 							s,
 							zScales[s],
-							p.rewrite ?
-									new MipmapSourceRenderRewriter(p.baseUrl, p.owner, p.project, p.stack) :
-									new MipmapSourceRewriter(){});
+							renderer,
+							sectionExecutor,
+							previewRenderer,
+							refiner);
+
+			final CellLoader<T> remoteLoader = p.downsample && s > 0 ?
+					new DownsamplingCellLoader<>(
+							cellImgs[s - 1],
+							stores[s - 1],
+							zScales[s] % zScales[s - 1] == 0 ? zScales[s] / zScales[s - 1] : 0,
+							sliceLoader) :
+					sliceLoader;
+
+			final CellLoader<T> persistentLoader;
+			if (cachePath == null)
+				persistentLoader = remoteLoader;
+			else {
+				stores[s] = new BlockStore(cachePath.resolve("s" + s), dimensions[s], blockSizes[s], dataType, p.cacheCompression);
+				persistentLoader = new PersistentCellLoader<>(
+						remoteLoader,
+						stores[s],
+						blockSizes[s],
+						p.blockingCacheWrites,
+						() -> StackMetadata.isCurrent(this.p, version));
+			}
+
+			final CellLoader<T> loader = new CancellableCellLoader<>(persistentLoader, cancellation, s);
 
-			final CellGrid grid = new CellGrid(dimensions[s], blockSize);
+			final CellGrid grid = new CellGrid(dimensions[s], blockSizes[s]);
 
 			System.out.println(grid);
 
-			final ARGBType type = new ARGBType();
-			final Cache<Long, Cell<VolatileIntArray>> cache =
-					new SoftRefLoaderCache<Long, Cell<VolatileIntArray>>()
-					.withLoader(LoadedCellCacheLoader.get(grid, loader, type, AccessFlags.setOf(AccessFlags.VOLATILE)));
-
-			scaleLevelImgs[s] =
-					new CachedCellImg<ARGBType, VolatileIntArray>(
-							grid,
-							type,
-							cache,
-							ArrayDataAccessFactory.get(PrimitiveType.INT, AccessFlags.setOf(AccessFlags.VOLATILE)));
+			cellImgs[s] = createCellImg(grid, loader, sourceKey, s, dataType.bytes);
 		}
 
-		final RandomAccessibleIntervalMipmapSource<ARGBType> source = new RandomAccessibleIntervalMipmapSource<>(
-				scaleLevelImgs,
-				new ARGBType(),
+		source = new RandomAccessibleIntervalMipmapSource<>(
+				cellImgs,
+				type.createVariable(),
 				scales,
 				voxelDimensions,
 				name );
+	}
+
+	private <A extends ArrayDataAccess<A>> CachedCellImg<T, A> createCellImg(
+			final CellGrid grid,
+			final CellLoader<T> loader,
+			final String sourceKey,
+			final int level,
+			final int bytesPerElement) {
+
+		final LoaderCache<Long, Cell<A>> loaderCache;
+		if (p.cellCacheSize > 0)
+			loaderCache = getCellCache(p.cellCacheSize).forLevel(
+					sourceKey,
+					level,
+					cell -> cell.getData().getArrayLength() * bytesPerElement);
+		else
+			loaderCache = new SoftRefLoaderCache<>();
+		final Cache<Long, Cell<A>> cache =
+				loaderCache.withLoader(LoadedCellCacheLoader.get(grid, loader, type, AccessFlags.setOf(AccessFlags.VOLATILE)));
+
+		return new CachedCellImg<T, A>(
+				grid,
+				type,
+				cache,
+				ArrayDataAccessFactory.get(type, AccessFlags.setOf(AccessFlags.VOLATILE)));
+	}
+
+	/**
+	 * The multiscale {@link Source}, cells are loaded by the calling thread.
+	 */
+	public Source<T> getSource() {
 
+//		final Source<T> transformedSource = applyTransform(source);
+//		return transformedSource;
 		return source;
 	}
 
+	/**
+	 * The volatile multiscale {@link Source}, cells are loaded by the fetcher
+	 * threads of sharedQueue.  It is created on first access, later calls
+	 * return the same source.
+	 */
+	public synchronized Source<V> getVolatileSource(final SharedQueue sharedQueue) {
+
+		if (volatileSource == null)
+			volatileSource = source.asVolatile(volatileType.createVariable(), sharedQueue);
+
+		//final Source<V> transformedVolatileSource = applyTransform(volatileSource);
+		//return transformedVolatileSource;
+		return volatileSource;
+	}
+
+	public int getNumScales() {
+
+		return cellImgs.length;
+	}
+
+	/**
+	 * The cell image of a scale level, e.g. to access its grid and cache.
+	 */
+	public CachedCellImg<T, ?> getCellImg(final int level) {
+
+		return cellImgs[level];
+	}
+
+	/**
+	 * The persistent store of a scale level.
+	 *
+	 * @param level
+	 * @return null if there is no persistent cell cache
+	 */
+	public BlockStore getStore(final int level) {
+
+		return stores[level];
+	}
+
+	/**
+	 * @return directory of the persistent cell cache or null
+	 */
+	public Path getCachePath() {
+
+		return cachePath;
+	}
+
+	/**
+	 * Cancels running loads of cells that a view moved away from, update
+	 * it with each view of this source.
+	 */
+	public LoadCancellation getLoadCancellation() {
+
+		return cancellation;
+	}
+
+	/**
+	 * @return world coordinates of the first voxel of scale level 0
+	 */
+	public long[] getOffset() {
+
+		return offset.clone();
+	}
+
+	/**
+	 * @return number of sections per voxel along z for each scale level
+	 */
+	public int[] getZScales() {
+
+		return zScales.clone();
+	}
+
+	public Parameters getParameters() {
+
+		return p;
+	}
+
+	/**
+	 * Creates a volatile multiscale {@link VolatileARGBType} {@link Source}
+	 * for a render stack, {@link Parameters#gray} is ignored, see
+	 * {@link #getGrayVolatileSource(Parameters, String, long[][], double[][], int[], long[], VoxelDimensions, SharedQueue)}.
+	 * Use {@link #RenderSource(Parameters, NativeType, Volatile, String, long[][], double[][], int[], long[], VoxelDimensions)}
+	 * to share the cell images with a non-volatile source.
+	 */
+	public static Source<VolatileARGBType> getVolatileSource(
+			final Parameters p,
+			final String name,
+			final long[][] dimensions,
+			final double[][] scales,
+			final int[] zScales,
+			final long[] offset,
+			final VoxelDimensions voxelDimensions,
+			final SharedQueue sharedQueue) throws IOException {
+
+		return createArgb(p, name, dimensions, scales, zScales, offset, voxelDimensions).getVolatileSource(sharedQueue);
+	}
+
+	/**
+	 * Creates a multiscale {@link ARGBType} {@link Source} for a render
+	 * stack, {@link Parameters#gray} is ignored, see
+	 * {@link #getGraySource(Parameters, String, long[][], double[][], int[], long[], VoxelDimensions)}.
+	 * Use {@link #RenderSource(Parameters, NativeType, Volatile, String, long[][], double[][], int[], long[], VoxelDimensions)}
+	 * to share the cell images with a volatile source.
+	 */
+	public static Source<ARGBType> getSource(
+			final Parameters p,
+			final String name,
+			final long[][] dimensions,
+			final double[][] scales,
+			final int[] zScales,
+			final long[] offset,
+			final VoxelDimensions voxelDimensions) throws IOException {
+
+		return createArgb(p, name, dimensions, scales, zScales, offset, voxelDimensions).getSource();
+	}
+
+	/**
+	 * Creates a volatile multiscale {@link VolatileUnsignedByteType}
+	 * {@link Source} for a render stack, {@link Parameters#gray} is
+	 * implied.
+	 */
+	public static Source<VolatileUnsignedByteType> getGrayVolatileSource(
+			final Parameters p,
+			final String name,
+			final long[][] dimensions,
+			final double[][] scales,
+			final int[] zScales,
+			final long[] offset,
+			final VoxelDimensions voxelDimensions,
+			final SharedQueue sharedQueue) throws IOException {
+
+		return createGray(p, name, dimensions, scales, zScales, offset, voxelDimensions).getVolatileSource(sharedQueue);
+	}
+
+	/**
+	 * Creates a multiscale {@link UnsignedByteType} {@link Source} for a
+	 * render stack, {@link Parameters#gray} is implied.
+	 */
+	public static Source<UnsignedByteType> getGraySource(
+			final Parameters p,
+			final String name,
+			final long[][] dimensions,
+			final double[][] scales,
+			final int[] zScales,
+			final long[] offset,
+			final VoxelDimensions voxelDimensions) throws IOException {
+
+		return createGray(p, name, dimensions, scales, zScales, offset, voxelDimensions).getSource();
+	}
+
 	private static < T > Source< T > applyTransform(
 			final Source< T > source,
 			final int channel ) throws IOException
@@ -1,17 +1,31 @@
 package bdv.render;
 
 import java.awt.image.BufferedImage;
-import java.io.InputStreamReader;
-import java.net.URL;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
+
+import javax.imageio.ImageIO;
 
 import org.janelia.alignment.ArgbRenderer;
+import org.janelia.alignment.ByteRenderer;
 import org.janelia.alignment.RenderParameters;
 import org.janelia.alignment.util.ImageProcessorCache;
 
+import ij.ImagePlus;
+import ij.io.Opener;
+import ij.process.ImageProcessor;
+
 import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
 
 public final class Rest {
 
@@ -24,7 +38,11 @@ public final class Rest {
 	public static final String renderParametersFormat = boundingBoxFormat + "/render-parameters";
 	public static final String pngTileFormat = stackFormat + "/tile/%s/png-image?scale=%s";
 	public static final String jpegTileFormat = stackFormat + "/tile/%s/jpeg-image?scale=%s";
+	public static final String tiffTileFormat = stackFormat + "/tile/%s/tiff-image?scale=%s";
 	public static final String pngMaskFormat = stackFormat + "/tile/%s/mask/png-image?scale=%s";
+	public static final String pngBoxFormat = boundingBoxFormat + "/png-image?filter=%b";
+	public static final String jpegBoxFormat = boundingBoxFormat + "/jpeg-image?filter=%b";
+	public static final String rawBoxFormat = boundingBoxFormat + "/raw-image?filter=%b";
 
 	private Rest() {}
 
@@ -33,16 +51,43 @@ public final class Rest {
 			final String baseUrl,
 			final String owner) {
 
-		final String query = String.format(stackListFormat, baseUrl, owner);
-
-		try (final InputStreamReader reader = new InputStreamReader(new URL(query).openStream())) {
-			return gson.fromJson(reader, new TypeToken<ArrayList<StackInfo>>(){}.getType());
+		final ArrayList<StackInfo> stackInfos = new ArrayList<>();
+		try {
+			streamStackInfos(gson, baseUrl, owner, stackInfos::add);
+			return stackInfos;
 		} catch (Exception e) {
 			e.printStackTrace(System.err);
 			return null;
 		}
 	}
 
+	/**
+	 * Parse the stack list of an owner while it is downloaded and pass each
+	 * stack to a consumer as soon as it is parsed, without holding the
+	 * response or a tree of it in memory.
+	 *
+	 * @param gson
+	 * @param baseUrl
+	 * @param owner
+	 * @param consumer
+	 * @throws IOException
+	 */
+	public static void streamStackInfos(
+			final Gson gson,
+			final String baseUrl,
+			final String owner,
+			final Consumer<StackInfo> consumer) throws IOException {
+
+		final String query = String.format(stackListFormat, baseUrl, owner);
+
+		try (final JsonReader reader = new JsonReader(Http.openReader(query))) {
+			reader.beginArray();
+			while (reader.hasNext())
+				consumer.accept(gson.fromJson(reader, StackInfo.class));
+			reader.endArray();
+		}
+	}
+
 	public static StackInfo getStackInfo(
 			final Gson gson,
 			final String baseUrl,
@@ -57,7 +102,7 @@ public final class Rest {
 				project,
 				stack);
 
-		try (final InputStreamReader reader = new InputStreamReader(new URL(query).openStream())) {
+		try (final Reader reader = Http.openReader(query)) {
 			return gson.fromJson(reader, new TypeToken<StackInfo>(){}.getType());
 		} catch (Exception e) {
 			e.printStackTrace(System.err);
@@ -79,7 +124,7 @@ public final class Rest {
 				project,
 				stack);
 
-		try (final InputStreamReader reader = new InputStreamReader(new URL(query).openStream())) {
+		try (final Reader reader = Http.openReader(query)) {
 			return gson.fromJson(reader, new TypeToken<Bounds>(){}.getType());
 		} catch (Exception e) {
 			e.printStackTrace(System.err);
@@ -112,7 +157,7 @@ public final class Rest {
 				stack);
 
 		double[] resolution = null;
-		try (final InputStreamReader reader = new InputStreamReader(new URL(query).openStream())) {
+		try (final Reader reader = Http.openReader(query)) {
 			resolution = gson.fromJson(reader, new TypeToken<double[]>(){}.getType());
 		} catch (Exception e) {
 			e.printStackTrace(System.err);
@@ -123,7 +168,15 @@ public final class Rest {
 		return resolution;
 	}
 
-	public static final BufferedImage renderImage(
+	/**
+	 * Fetch the render parameters of a box as JSON, e.g. to keep the server
+	 * parameters apart from the tile specs.
+	 *
+	 * @return
+	 * @throws IllegalArgumentException if the render parameters cannot be
+	 *     loaded
+	 */
+	public static String loadRenderParametersJson(
 			final String baseUrl,
 			final String owner,
 			final String project,
@@ -133,9 +186,7 @@ public final class Rest {
 			final long z,
 			final long w,
 			final long h,
-			final double scale,
-			final boolean filter,
-			final MipmapSourceRewriter rewriter) {
+			final double scale) {
 
 		final String renderParametersUrlString = String.format(
 				renderParametersFormat,
@@ -150,14 +201,318 @@ public final class Rest {
 				h,
 				scale);
 
-		final RenderParameters renderParameters = RenderParameters.loadFromUrl(renderParametersUrlString);
+		final long t = Metrics.start();
+		try (final Reader reader = Http.openReader(renderParametersUrlString)) {
+			final StringBuilder json = new StringBuilder();
+			final char[] buffer = new char[8192];
+			for (int n = reader.read(buffer); n >= 0; n = reader.read(buffer))
+				json.append(buffer, 0, n);
+			Metrics.stop(Metrics.Stage.PARAMETERS, t);
+			return json.toString();
+		} catch (final IOException e) {
+			throw new IllegalArgumentException("failed to load render parameters from " + renderParametersUrlString, e);
+		}
+	}
+
+	public static RenderParameters loadRenderParameters(
+			final String baseUrl,
+			final String owner,
+			final String project,
+			final String stack,
+			final long x,
+			final long y,
+			final long z,
+			final long w,
+			final long h,
+			final double scale) {
+
+		final String renderParametersUrlString = String.format(
+				renderParametersFormat,
+				baseUrl,
+				owner,
+				project,
+				stack,
+				z,
+				x,
+				y,
+				w,
+				h,
+				scale);
+
+		final long t = Metrics.start();
+		try (final Reader reader = Http.openReader(renderParametersUrlString)) {
+			final RenderParameters renderParameters = RenderParameters.parseJson(reader);
+			renderParameters.initializeDerivedValues();
+			Metrics.stop(Metrics.Stage.PARAMETERS, t);
+			return renderParameters;
+		} catch (final IOException e) {
+			throw new IllegalArgumentException("failed to load render parameters from " + renderParametersUrlString, e);
+		}
+	}
+
+	public static final BufferedImage renderImage(
+			final RenderParameters renderParameters,
+			final ImageProcessorCache imageProcessorCache) {
+
+		final BufferedImage image = renderParameters.openTargetImage();
+		renderImage(renderParameters, image, imageProcessorCache);
+
+		return image;
+	}
+
+	/**
+	 * Render into an existing target image, e.g. one that wraps cell storage
+	 * through {@link ArgbPixels#wrap(int[], int, int)}.
+	 *
+	 * @param renderParameters
+	 * @param targetImage
+	 * @param imageProcessorCache
+	 */
+	public static final void renderImage(
+			final RenderParameters renderParameters,
+			final BufferedImage targetImage,
+			final ImageProcessorCache imageProcessorCache) {
+
+		final long t = Metrics.start();
+		ArgbRenderer.render(renderParameters, targetImage, imageProcessorCache);
+		Metrics.stop(Metrics.Stage.RENDER, t);
+	}
+
+	/**
+	 * Render 8-bit gray pixels into an existing target image, e.g. one that
+	 * wraps cell storage through
+	 * {@link ArgbPixels#wrapGray(byte[], int, int, int)}.
+	 *
+	 * @param renderParameters
+	 * @param targetImage
+	 * @param imageProcessorCache
+	 */
+	public static final void renderGrayImage(
+			final RenderParameters renderParameters,
+			final BufferedImage targetImage,
+			final ImageProcessorCache imageProcessorCache) {
+
+		final long t = Metrics.start();
+		ByteRenderer.render(renderParameters, targetImage, imageProcessorCache);
+		Metrics.stop(Metrics.Stage.RENDER, t);
+	}
+
+	public static final BufferedImage renderImage(
+			final String baseUrl,
+			final String owner,
+			final String project,
+			final String stack,
+			final long x,
+			final long y,
+			final long z,
+			final long w,
+			final long h,
+			final double scale,
+			final boolean filter,
+			final MipmapSourceRewriter rewriter,
+			final ImageProcessorCache imageProcessorCache) {
+
+		final RenderParameters renderParameters = loadRenderParameters(
+				baseUrl,
+				owner,
+				project,
+				stack,
+				x,
+				y,
+				z,
+				w,
+				h,
+				scale);
 		renderParameters.setDoFilter(filter);
 
 		rewriter.rewrite(renderParameters);
 
-        final BufferedImage image = renderParameters.openTargetImage();
-        ArgbRenderer.render(renderParameters, image, new ImageProcessorCache());
+		return renderImage(renderParameters, imageProcessorCache);
+	}
+
+	/**
+	 * Fetch a box rendered by the render web service into the first
+	 * width * height elements of data.
+	 *
+	 * {@link RenderMode#RAW} boxes are expected to be transferred as
+	 * uncompressed big-endian ARGB integers in row-major order and are read
+	 * straight into data.
+	 *
+	 * @param baseUrl
+	 * @param owner
+	 * @param project
+	 * @param stack
+	 * @param mode
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param w
+	 * @param h
+	 * @param scale
+	 * @param filter
+	 * @param data
+	 * @param width
+	 * @param height
+	 * @throws IOException
+	 */
+	public static final void fetchBox(
+			final String baseUrl,
+			final String owner,
+			final String project,
+			final String stack,
+			final RenderMode mode,
+			final long x,
+			final long y,
+			final long z,
+			final long w,
+			final long h,
+			final double scale,
+			final boolean filter,
+			final int[] data,
+			final int width,
+			final int height) throws IOException {
+
+		fetchBox(baseUrl, owner, project, stack, mode, 0, x, y, z, w, h, scale, filter, data, width, height);
+	}
+
+	/**
+	 * Fetch a box rendered by the render web service into the first
+	 * width * height elements of data.
+	 *
+	 * Compressed boxes are transferred completely before they are decoded,
+	 * such that their size and decode time are reported per codec, see
+	 * {@link Metrics#decoded(CodecPolicy.Codec, long, long)}.
+	 *
+	 * @param baseUrl
+	 * @param owner
+	 * @param project
+	 * @param stack
+	 * @param mode
+	 * @param quality of {@link RenderMode#JPEG} boxes in (0, 1], the server
+	 *     default if 0
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param w
+	 * @param h
+	 * @param scale
+	 * @param filter
+	 * @param data
+	 * @param width
+	 * @param height
+	 * @throws IOException
+	 */
+	public static final void fetchBox(
+			final String baseUrl,
+			final String owner,
+			final String project,
+			final String stack,
+			final RenderMode mode,
+			final float quality,
+			final long x,
+			final long y,
+			final long z,
+			final long w,
+			final long h,
+			final double scale,
+			final boolean filter,
+			final int[] data,
+			final int width,
+			final int height) throws IOException {
+
+		String format;
+		switch (mode) {
+		case PNG:
+			format = pngBoxFormat;
+			break;
+		case JPEG:
+			format = jpegBoxFormat;
+			if (quality > 0)
+				format += "&quality=" + quality;
+			break;
+		case RAW:
+			format = rawBoxFormat;
+			break;
+		default:
+			throw new IllegalArgumentException("Render mode " + mode + " is not served by the render web service.");
+		}
+
+		final String boxUrlString = String.format(
+				format,
+				baseUrl,
+				owner,
+				project,
+				stack,
+				z,
+				x,
+				y,
+				w,
+				h,
+				scale,
+				filter);
+
+		final CodecPolicy.Codec codec = CodecPolicy.Codec.of(mode);
+		long t = Metrics.start();
+		try (final InputStream in = Http.openStream(boxUrlString)) {
+			if (mode == RenderMode.RAW) {
+				Metrics.stop(Metrics.Stage.FETCH, t);
+				t = Metrics.start();
+				readInts(in, data, width * height);
+				Metrics.stop(Metrics.Stage.DECODE, t);
+				Metrics.decoded(codec, 4L * width * height, t);
+			} else {
+				final byte[] bytes = readBytes(in);
+				Metrics.stop(Metrics.Stage.FETCH, t);
+				t = Metrics.start();
+				final BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+				if (image == null)
+					throw new IOException("Could not decode " + boxUrlString);
+				Metrics.stop(Metrics.Stage.DECODE, t);
+				Metrics.decoded(codec, bytes.length, t);
+				t = Metrics.start();
+				ArgbPixels.copy(image, data, width, height);
+				Metrics.stop(Metrics.Stage.TRANSFER, t);
+			}
+		}
+	}
+
+	/**
+	 * Decode a tile or mask image of the render web service, TIFF through
+	 * ImageJ and other codecs through ImageIO.
+	 *
+	 * @param bytes
+	 * @param url of the image
+	 * @return
+	 * @throws IOException if the image cannot be decoded
+	 */
+	public static ImageProcessor decodeImageProcessor(final byte[] bytes, final String url) throws IOException {
+
+		final ImagePlus imagePlus;
+		if (CodecPolicy.Codec.of(url) == CodecPolicy.Codec.RAW)
+			imagePlus = new Opener().openTiff(new ByteArrayInputStream(bytes), url);
+		else {
+			final BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+			imagePlus = image == null ? null : new ImagePlus(url, image);
+		}
+		if (imagePlus == null)
+			throw new IOException("Could not decode " + url);
+
+		return imagePlus.getProcessor();
+	}
+
+	protected static byte[] readBytes(final InputStream in) throws IOException {
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+		final byte[] buffer = new byte[1 << 14];
+		for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+			bytes.write(buffer, 0, n);
+		return bytes.toByteArray();
+	}
+
+	protected static void readInts(final InputStream in, final int[] data, final int n) throws IOException {
 
-        return image;
+		final DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in));
+		for (int i = 0; i < n; ++i)
+			data[i] = dataIn.readInt();
 	}
 }
@@ -0,0 +1,40 @@
+/**
+ *
+ */
+package bdv.render;
+
+/**
+ * Renders a box of a section into ARGB pixels.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public interface SectionRenderer {
+
+	/**
+	 * Render the box [x, x + w) x [y, y + h) of section z in world
+	 * coordinates at scale into the first width * height elements of data.
+	 * Data is expected to be cleared.
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param w
+	 * @param h
+	 * @param scale
+	 * @param data
+	 * @param width
+	 * @param height
+	 * @throws Exception
+	 */
+	public void render(
+			final long x,
+			final long y,
+			final long z,
+			final long w,
+			final long h,
+			final double scale,
+			final int[] data,
+			final int width,
+			final int height) throws Exception;
+}
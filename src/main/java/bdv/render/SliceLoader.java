@@ -3,121 +3,400 @@
  */
 package bdv.render;
 
-import java.awt.image.BufferedImage;
-import java.awt.image.PixelGrabber;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import net.imglib2.cache.img.CellLoader;
 import net.imglib2.cache.img.SingleCellArrayImg;
-import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.NativeType;
 
 /**
+ * Loads cells of {@link net.imglib2.type.numeric.ARGBType} (int[]) or 8-bit
+ * gray {@link net.imglib2.type.numeric.integer.UnsignedByteType} (byte[])
+ * storage by rendering their sections.  Gray cells are rendered straight
+ * into 8-bit by a {@link GraySectionRenderer}, other renderers render ARGB
+ * and gray cells store its luminance.  Gray cells average z-sections over a
+ * single channel.
+ *
+ * Cells may be more than one section deep.  All section renders of a deep
+ * or z-averaged cell are submitted to the section executor at once, such
+ * that the block loads in about the time of its slowest section.
+ *
+ * With a preview renderer, a cell is first loaded as a fast low quality
+ * render of the first section of each of its slices, and rendered at full
+ * quality in the background, see {@link Refinement}.
+ *
  * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
  *
  */
-public class SliceLoader implements CellLoader<ARGBType> {
+public class SliceLoader<T extends NativeType<T>> implements CellLoader<T> {
 
-	protected final String baseUrl;
-	protected final String owner;
-	protected final String project;
-	protected final String stack;
 	protected boolean average;
-	protected boolean filter;
 	protected final long[] offset;
+	protected final int scaleLevel;
 	protected final int iScale;
 	protected final double scale;
 	protected final long zScale;
-	protected MipmapSourceRewriter rewriter;
+	protected final SectionRenderer renderer;
+	protected final ExecutorService executor;
+	protected final SectionRenderer previewRenderer;
+	protected final ExecutorService refiner;
 
+	protected final ThreadLocal<Accumulator> accumulators = ThreadLocal.withInitial(Accumulator::new);
+	protected static final ThreadLocal<SectionBuffer> sectionBuffers = ThreadLocal.withInitial(SectionBuffer::new);
+
+	/**
+	 *
+	 * @param average
+	 * @param offset
+	 * @param scaleLevel
+	 * @param zScale
+	 * @param renderer
+	 * @param executor renders the sections of z-averaged cells or null
+	 * @param previewRenderer renders a fast preview of the first section of
+	 *     each cell that is {@link Refinement refined} later, or null to
+	 *     render cells at full quality right away
+	 * @param refiner runs the refinements
+	 */
 	public SliceLoader(
-			final String baseUrl,
-			final String owner,
-			final String project,
-			final String stack,
 			final boolean average,
-			final boolean filter,
 			final long[] offset,
 			final int scaleLevel,
 			final long zScale,
-			final MipmapSourceRewriter rewriter) {
+			final SectionRenderer renderer,
+			final ExecutorService executor,
+			final SectionRenderer previewRenderer,
+			final ExecutorService refiner) {
 
-		this.baseUrl = baseUrl;
-		this.owner = owner;
-		this.project = project;
-		this.stack = stack;
 		this.average = average;
-		this.filter = filter;
 		this.offset = offset;
+		this.scaleLevel = scaleLevel;
 		iScale = 1 << scaleLevel;
 		scale = 1.0 / iScale;
 		this.zScale = zScale;
-		this.rewriter = rewriter;
+		this.renderer = renderer;
+		this.executor = executor;
+		this.previewRenderer = previewRenderer;
+		this.refiner = refiner;
+	}
+
+	public SliceLoader(
+			final boolean average,
+			final long[] offset,
+			final int scaleLevel,
+			final long zScale,
+			final SectionRenderer renderer,
+			final ExecutorService executor) {
+
+		this(average, offset, scaleLevel, zScale, renderer, executor, null, null);
 	}
 
 	@Override
-	public void load(SingleCellArrayImg<ARGBType, ?> cell) throws Exception {
+	public void load(final SingleCellArrayImg<T, ?> cell) throws Exception {
+
+		final long t = Metrics.start();
+		try {
+			loadCell(cell);
+		} catch (final CancellationException e) {
+			throw e;
+		} catch (final Exception e) {
+			Metrics.cellFailed();
+			throw e;
+		}
+		Metrics.stop(Metrics.Stage.CELL, t);
+		Metrics.cellLoaded(scaleLevel);
+	}
 
-		final int[] data = (int[])cell.getStorageArray();
+	protected void loadCell(final SingleCellArrayImg<T, ?> cell) throws Exception {
+
+		final Object storage = cell.getStorageArray();
 
 		final long x = cell.min(0) * iScale + offset[0];
 		final long y = cell.min(1) * iScale + offset[1];
 		final long w = cell.dimension(0) * iScale;
 		final long h = cell.dimension(1) * iScale;
-		final long z;
-
-		if (average && zScale > 1) {
-
-			z = cell.min(2) * zScale + offset[2];
-
-			final long[] rs = new long[data.length], gs = new long[data.length], bs = new long[data.length];
-
-			for (long dz = 0; dz < zScale; ++dz) {
-				final BufferedImage image = Rest.renderImage(
-						baseUrl,
-						owner,
-						project,
-						stack,
-						x,
-						y,
-						z + dz,
-						w,
-						h,
-						scale,
-						filter,
-						rewriter);
-					final PixelGrabber pg = new PixelGrabber(image, 0, 0, (int)cell.dimension(0), (int)cell.dimension(1), data, 0, (int)cell.dimension(0));
-					pg.grabPixels();
-					for (int i = 0; i < data.length; ++i) {
-						rs[i] += (data[i] >> 16) & 0xff;
-						gs[i] += (data[i] >> 8) & 0xff;
-						bs[i] += data[i] & 0xff;
+		final int cellWidth = (int)cell.dimension(0);
+		final int cellHeight = (int)cell.dimension(1);
+		final int cellDepth = (int)cell.dimension(2);
+		final boolean averaged = average && zScale > 1;
+		final int zStep = averaged ? (int)zScale : 1;
+		final long z = cell.min(2) * zStep + offset[2];
+
+		if (previewRenderer == null) {
+			render(renderer, storage, x, y, z, w, h, cellWidth, cellHeight, cellDepth, zStep, zStep);
+			return;
+		}
+
+		/* preview of the first section of each slice now, all sections at full quality later */
+		render(previewRenderer, storage, x, y, z, w, h, cellWidth, cellHeight, cellDepth, zStep, 1);
+		Refinement.submit(
+				refiner,
+				storage,
+				refined -> render(renderer, refined, x, y, z, w, h, cellWidth, cellHeight, cellDepth, zStep, zStep));
+	}
+
+	/**
+	 * Render the slices of a cell into storage, averaging numSections
+	 * sections per slice if more than one.
+	 *
+	 * @param renderer
+	 * @param storage int[] or byte[] of cellWidth * cellHeight * cellDepth
+	 *     pixels
+	 * @param x
+	 * @param y
+	 * @param z first section
+	 * @param w
+	 * @param h
+	 * @param cellWidth
+	 * @param cellHeight
+	 * @param cellDepth number of slices
+	 * @param zStep number of sections from one slice to the next
+	 * @param numSections number of sections averaged per slice
+	 * @throws Exception
+	 */
+	protected void render(
+			final SectionRenderer renderer,
+			final Object storage,
+			final long x,
+			final long y,
+			final long z,
+			final long w,
+			final long h,
+			final int cellWidth,
+			final int cellHeight,
+			final int cellDepth,
+			final int zStep,
+			final int numSections) throws Exception {
+
+		if (cellDepth == 1 && numSections == 1) {
+			renderSection(renderer, storage, x, y, z, w, h, cellWidth, cellHeight);
+			return;
+		}
+
+		final boolean gray = storage instanceof byte[];
+		final int n = cellWidth * cellHeight;
+
+		final Accumulator accumulator = numSections > 1 ? accumulators.get() : null;
+		if (accumulator != null)
+			accumulator.reset(n * cellDepth, gray);
+
+		final LoadCancellation.Token token = LoadCancellation.current();
+		final ArrayList<Future<?>> sections = new ArrayList<>();
+		for (int slice = 0; slice < cellDepth; ++slice) {
+			final int sliceOffset = slice * n;
+			for (int dz = 0; dz < numSections; ++dz) {
+				final long zi = z + (long)slice * zStep + dz;
+				final long tSubmit = Metrics.start();
+				final Callable<Void> section = () -> {
+					Metrics.stop(Metrics.Stage.SECTION_WAIT, tSubmit);
+					final LoadCancellation.Token previous = LoadCancellation.set(token);
+					try {
+						LoadCancellation.check();
+						final long tSection = Metrics.start();
+						if (gray) {
+							if (accumulator == null)
+								renderGray(renderer, x, y, zi, w, h, scale, (byte[])storage, sliceOffset, cellWidth, cellHeight);
+							else {
+								final byte[] pixels = sectionBuffers.get().getGray(n);
+								renderGray(renderer, x, y, zi, w, h, scale, pixels, 0, cellWidth, cellHeight);
+								accumulator.addGray(pixels, sliceOffset, n);
+							}
+						} else {
+							final int[] pixels = sectionBuffers.get().get(n);
+							renderer.render(x, y, zi, w, h, scale, pixels, cellWidth, cellHeight);
+							if (accumulator == null)
+								System.arraycopy(pixels, 0, storage, sliceOffset, n);
+							else
+								accumulator.add(pixels, sliceOffset, n);
+						}
+						Metrics.stop(Metrics.Stage.SECTION, tSection);
+					} finally {
+						LoadCancellation.set(previous);
 					}
-				}
-				for (int i = 0; i < data.length; ++i) {
-					final int r = (int) (rs[i] / (double)zScale);
-					final int g = (int) (gs[i] / (double)zScale);
-					final int b = (int) (bs[i] / (double)zScale);
+					return null;
+				};
+				if (executor == null)
+					section.call();
+				else
+					sections.add(executor.submit(section));
+			}
+		}
 
-					data[i] = ((((r << 8) | g) << 8) | b) | 0xff000000;
-				}
+		try {
+			for (final Future<?> section : sections)
+				section.get();
+		} catch (final ExecutionException e) {
+			for (final Future<?> section : sections)
+				section.cancel(true);
+			/* sections still running may add to this accumulator */
+			accumulators.remove();
+			throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+		}
+		if (accumulator == null)
+			return;
+		if (gray)
+			accumulator.averageGray((byte[])storage, n * cellDepth, numSections);
+		else
+			accumulator.average((int[])storage, numSections);
+	}
+
+	protected void renderSection(
+			final SectionRenderer renderer,
+			final Object storage,
+			final long x,
+			final long y,
+			final long z,
+			final long w,
+			final long h,
+			final int cellWidth,
+			final int cellHeight) throws Exception {
+
+		final long tSection = Metrics.start();
+		if (storage instanceof byte[])
+			renderGray(renderer, x, y, z, w, h, scale, (byte[])storage, 0, cellWidth, cellHeight);
+		else
+			renderer.render(x, y, z, w, h, scale, (int[])storage, cellWidth, cellHeight);
+		Metrics.stop(Metrics.Stage.SECTION, tSection);
+	}
+
+	/**
+	 * Render a box of a section into width * height cleared gray pixels
+	 * starting at offset, straight if the renderer is a
+	 * {@link GraySectionRenderer}, or else as the luminance of its ARGB
+	 * render.
+	 */
+	protected static void renderGray(
+			final SectionRenderer renderer,
+			final long x,
+			final long y,
+			final long z,
+			final long w,
+			final long h,
+			final double scale,
+			final byte[] data,
+			final int offset,
+			final int width,
+			final int height) throws Exception {
+
+		if (renderer instanceof GraySectionRenderer)
+			((GraySectionRenderer)renderer).renderGray(x, y, z, w, h, scale, data, offset, width, height);
+		else {
+			final int n = width * height;
+			final int[] pixels = sectionBuffers.get().get(n);
+			renderer.render(x, y, z, w, h, scale, pixels, width, height);
+			ArgbPixels.toGray(pixels, data, offset, n);
+		}
+	}
+
+	/**
+	 * Reusable per thread section buffer.
+	 */
+	final static protected class SectionBuffer {
+
+		protected int[] pixels = new int[0];
+		protected byte[] grayPixels = new byte[0];
+
+		/**
+		 * Get the buffer with at least n cleared elements.
+		 *
+		 * @param n
+		 * @return
+		 */
+		protected int[] get(final int n) {
+
+			if (pixels.length < n)
+				pixels = new int[n];
+			else
+				Arrays.fill(pixels, 0, n, 0);
+
+			return pixels;
+		}
+
+		/**
+		 * Get the gray buffer with at least n cleared elements.
+		 *
+		 * @param n
+		 * @return
+		 */
+		protected byte[] getGray(final int n) {
+
+			if (grayPixels.length < n)
+				grayPixels = new byte[n];
+			else
+				Arrays.fill(grayPixels, 0, n, (byte)0);
+
+			return grayPixels;
+		}
+	}
+
+	/**
+	 * Reusable per thread z-average accumulation buffers.
+	 */
+	final static protected class Accumulator {
+
+		protected int[] rs = new int[0];
+		protected int[] gs = new int[0];
+		protected int[] bs = new int[0];
+
+		/**
+		 * Clear the first n elements of all channels or only of the first
+		 * channel for gray.
+		 */
+		protected void reset(final int n, final boolean gray) {
+
+			if (rs.length < n) {
+				rs = new int[n];
+				gs = new int[n];
+				bs = new int[n];
 			} else {
+				Arrays.fill(rs, 0, n, 0);
+				if (!gray) {
+					Arrays.fill(gs, 0, n, 0);
+					Arrays.fill(bs, 0, n, 0);
+				}
+			}
+		}
+
+		/**
+		 * Add n pixels to the channels starting at offset, e.g. at the first
+		 * pixel of one slice of a 3D cell.
+		 */
+		protected synchronized void add(final int[] pixels, final int offset, final int n) {
+
+			for (int i = 0, j = offset; i < n; ++i, ++j) {
+				final int argb = pixels[i];
+				rs[j] += (argb >> 16) & 0xff;
+				gs[j] += (argb >> 8) & 0xff;
+				bs[j] += argb & 0xff;
+			}
+		}
+
+		protected synchronized void addGray(final byte[] pixels, final int offset, final int n) {
+
+			for (int i = 0, j = offset; i < n; ++i, ++j)
+				rs[j] += pixels[i] & 0xff;
+		}
+
+		protected synchronized void averageGray(final byte[] data, final int n, final int count) {
+
+			for (int i = 0; i < n; ++i)
+				data[i] = (byte)(rs[i] / count);
+		}
+
+		protected synchronized void average(final int[] data, final int count) {
+
+			for (int i = 0; i < data.length; ++i) {
+				final int r = rs[i] / count;
+				final int g = gs[i] / count;
+				final int b = bs[i] / count;
 
-				z = cell.min(2) + offset[2];
-
-				final BufferedImage image = Rest.renderImage(
-						baseUrl,
-						owner,
-						project,
-						stack,
-						x,
-						y,
-						z,
-						w,
-						h,
-						scale,
-						filter,
-						rewriter);
-				final PixelGrabber pg = new PixelGrabber(image, 0, 0, (int)cell.dimension(0), (int)cell.dimension(1), data, 0, (int)cell.dimension(0));
-				pg.grabPixels();
+				data[i] = ((((r << 8) | g) << 8) | b) | 0xff000000;
+			}
 		}
 	}
 }
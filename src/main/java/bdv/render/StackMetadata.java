@@ -0,0 +1,328 @@
+/**
+ *
+ */
+package bdv.render;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.reflect.TypeToken;
+import com.google.gson.Gson;
+
+/**
+ * The metadata of a render stack that is needed to open it: its current
+ * version, bounds, and resolution.
+ *
+ * Metadata and the stack lists of owners are cached on disk, keyed by base
+ * URL, owner, project, and stack.  A cached entry is used right away and
+ * revalidated in the background, the fresh entry replaces the cached one
+ * for the next time.  Within one process, the entry of a stack is kept
+ * until the revalidation finds a new version.  Then the fresh entry
+ * replaces it, so the stack reopens at its current version, and
+ * {@link VersionListener listeners}, e.g. the log of the viewer, are told.
+ * Sources that are open keep the version they were opened with, see
+ * {@link #isCurrent(Parameters, int)}.  Uncached metadata is fetched
+ * with concurrent requests.  Non-interactive uses, e.g. exports, should not
+ * use the cache, see {@link Parameters#metadataCacheDir}.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class StackMetadata {
+
+	/**
+	 * Told when the revalidation of cached metadata finds that a stack
+	 * changed after it was opened.
+	 */
+	public static interface VersionListener {
+
+		public void versionChanged(String stack, int openedVersion, int currentVersion);
+	}
+
+	/**
+	 * current version of the stack, -1 if unknown
+	 */
+	public int version = -1;
+	public Bounds bounds;
+	public double[] resolution;
+
+	/**
+	 * read from the disk cache and not revalidated, not serialized
+	 */
+	public transient boolean cached = false;
+
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	private static final ExecutorService fetcher = Executors.newCachedThreadPool(
+			r -> {
+				final Thread thread = new Thread(r, "render-metadata-" + threadCount.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	private static final ConcurrentHashMap<String, StackMetadata> session = new ConcurrentHashMap<>();
+
+	private static final CopyOnWriteArrayList<VersionListener> versionListeners = new CopyOnWriteArrayList<>();
+
+	public static void addVersionListener(final VersionListener listener) {
+
+		versionListeners.add(listener);
+	}
+
+	public static void removeVersionListener(final VersionListener listener) {
+
+		versionListeners.remove(listener);
+	}
+
+	/**
+	 * Tell the version listeners about a changed stack, or standard error
+	 * if there are none.
+	 */
+	private static void versionChanged(final String stack, final int openedVersion, final int currentVersion) {
+
+		if (versionListeners.isEmpty())
+			System.err.println(
+					String.format(
+							"Stack %s changed from version %d to %d, reopen it to show the current version.",
+							stack,
+							openedVersion,
+							currentVersion));
+		else
+			for (final VersionListener listener : versionListeners)
+				listener.versionChanged(stack, openedVersion, currentVersion);
+	}
+
+	/**
+	 * Metadata from an entry of a stack list, complete stacks list their
+	 * bounds and resolution.
+	 *
+	 * @param stackInfo
+	 * @return null if the bounds are not listed
+	 */
+	public static StackMetadata fromStackInfo(final StackInfo stackInfo) {
+
+		if (stackInfo == null || stackInfo.stats == null || stackInfo.stats.stackBounds == null)
+			return null;
+
+		final StackMetadata metadata = new StackMetadata();
+		metadata.version = stackInfo.currentVersionNumber;
+		metadata.bounds = stackInfo.stats.stackBounds;
+		final StackInfo.Version version = stackInfo.currentVersion;
+		metadata.resolution = version == null || version.stackResolutionX == 0 ?
+				new double[]{1.0, 1.0, 1.0} :
+				new double[]{version.stackResolutionX, version.stackResolutionY, version.stackResolutionZ};
+
+		return metadata;
+	}
+
+	/**
+	 * Fetch the stack info, bounds, and resolution of a stack concurrently.
+	 *
+	 * @param gson
+	 * @param baseUrl
+	 * @param owner
+	 * @param project
+	 * @param stack
+	 * @return null if the bounds are not available
+	 */
+	public static StackMetadata fetch(
+			final Gson gson,
+			final String baseUrl,
+			final String owner,
+			final String project,
+			final String stack) {
+
+		final CompletableFuture<StackInfo> stackInfo =
+				CompletableFuture.supplyAsync(() -> Rest.getStackInfo(gson, baseUrl, owner, project, stack), fetcher);
+		final CompletableFuture<Bounds> bounds =
+				CompletableFuture.supplyAsync(() -> Rest.getStackBounds(gson, baseUrl, owner, project, stack), fetcher);
+		final CompletableFuture<double[]> resolution =
+				CompletableFuture.supplyAsync(() -> Rest.getStackResolution(gson, baseUrl, owner, project, stack), fetcher);
+
+		final StackMetadata metadata = new StackMetadata();
+		metadata.bounds = bounds.join();
+		metadata.resolution = resolution.join();
+		final StackInfo info = stackInfo.join();
+		if (info != null) {
+			metadata.version = info.currentVersionNumber;
+			if (metadata.bounds == null && info.stats != null)
+				metadata.bounds = info.stats.stackBounds;
+		}
+
+		return metadata.bounds == null ? null : metadata;
+	}
+
+	private static String getKey(final Parameters p) {
+
+		return String.format("%s/%s/%s/%s", p.baseUrl, p.owner, p.project, p.stack);
+	}
+
+	private static Path getOwnerPath(final Parameters p) {
+
+		if (p.metadataCacheDir == null || p.metadataCacheDir.isEmpty())
+			return null;
+
+		try {
+			return Paths.get(p.metadataCacheDir, URLEncoder.encode(p.baseUrl, "UTF-8"), p.owner);
+		} catch (final UnsupportedEncodingException e) {
+			return null;
+		}
+	}
+
+	private static Path getPath(final Parameters p) {
+
+		final Path ownerPath = getOwnerPath(p);
+		return ownerPath == null ? null : ownerPath.resolve(p.project).resolve(p.stack + ".json");
+	}
+
+	private static <T> T read(final Gson gson, final Path path, final java.lang.reflect.Type type) {
+
+		if (path == null || !Files.exists(path))
+			return null;
+
+		try (final Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			return gson.fromJson(reader, type);
+		} catch (final Exception e) {
+			System.err.println("Could not read cached metadata " + path + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static void write(final Gson gson, final Path path, final Object value) {
+
+		if (path == null || value == null)
+			return;
+
+		try {
+			Files.createDirectories(path.getParent());
+			final Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+			try (final Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				gson.toJson(value, writer);
+			}
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (final IOException e) {
+			System.err.println("Could not cache metadata " + path + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Cache the metadata of a stack, e.g. from the stack list, unless it is
+	 * known or cached already, such that it opens without waiting for the
+	 * render web service.  Like all cached metadata, it is revalidated in the
+	 * background when the stack is opened.
+	 *
+	 * @param gson
+	 * @param p
+	 * @param metadata
+	 */
+	public static void seed(final Gson gson, final Parameters p, final StackMetadata metadata) {
+
+		final Path path = getPath(p);
+		if (metadata != null && path != null && !session.containsKey(getKey(p)) && !Files.exists(path))
+			write(gson, path, metadata);
+	}
+
+	/**
+	 * Get the metadata of a stack from this process, from disk, or from the
+	 * render web service.  Metadata from disk is revalidated in the
+	 * background.
+	 *
+	 * @param gson
+	 * @param p
+	 * @return null if the stack bounds are not available
+	 */
+	public static StackMetadata get(final Gson gson, final Parameters p) {
+
+		final String key = getKey(p);
+		final StackMetadata known = session.get(key);
+		if (known != null)
+			return known;
+
+		final Path path = getPath(p);
+		final StackMetadata cached = read(gson, path, StackMetadata.class);
+		if (cached != null && cached.bounds != null) {
+			cached.cached = true;
+			final StackMetadata metadata = session.computeIfAbsent(key, k -> cached);
+			fetcher.execute(() -> {
+				final StackMetadata fresh = fetch(gson, p.baseUrl, p.owner, p.project, p.stack);
+				if (fresh == null)
+					return;
+				write(gson, path, fresh);
+				if (fresh.version != metadata.version && session.replace(key, metadata, fresh))
+					versionChanged(p.stack, metadata.version, fresh.version);
+			});
+			return metadata;
+		}
+
+		final StackMetadata fresh = fetch(gson, p.baseUrl, p.owner, p.project, p.stack);
+		if (fresh == null)
+			return null;
+
+		final StackMetadata metadata = session.computeIfAbsent(key, k -> fresh);
+		fetcher.execute(() -> write(gson, path, fresh));
+		return metadata;
+	}
+
+	/**
+	 * Whether a version of a stack is still its current version in this
+	 * process, e.g. to stop caching cells of a source that was opened at an
+	 * older version.
+	 *
+	 * @param p
+	 * @param version
+	 * @return
+	 */
+	public static boolean isCurrent(final Parameters p, final int version) {
+
+		final StackMetadata known = session.get(getKey(p));
+		return known == null || known.version == version;
+	}
+
+	/**
+	 * Start to list the stacks of an owner.  If the list is cached, the
+	 * cached list completes right away and a fresh list is fetched in the
+	 * background for the next time.
+	 *
+	 * @param gson
+	 * @param p with base URL and owner
+	 * @return completes with null if the list is not available
+	 */
+	public static CompletableFuture<List<StackInfo>> listStacks(final Gson gson, final Parameters p) {
+
+		final Path ownerPath = getOwnerPath(p);
+		final Path path = ownerPath == null ? null : ownerPath.resolve("stacks.json");
+		final String baseUrl = p.baseUrl;
+		final String owner = p.owner;
+
+		final CompletableFuture<List<StackInfo>> fresh = CompletableFuture.supplyAsync(
+				() -> {
+					final List<StackInfo> stackInfos = Rest.listStackInfos(gson, baseUrl, owner);
+					write(gson, path, stackInfos);
+					return stackInfos;
+				},
+				fetcher);
+
+		return CompletableFuture.supplyAsync(
+				() -> {
+					final List<StackInfo> cached = read(gson, path, new TypeToken<ArrayList<StackInfo>>(){}.getType());
+					return cached == null ? fresh.join() : cached;
+				},
+				fetcher);
+	}
+}
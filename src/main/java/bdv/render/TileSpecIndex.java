@@ -0,0 +1,321 @@
+/**
+ *
+ */
+package bdv.render;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.janelia.alignment.RenderParameters;
+import org.janelia.alignment.spec.TileSpec;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Section level index of parsed {@link TileSpec TileSpecs}.
+ *
+ * Tile specs are fetched once per square region of <code>regionSize</code>
+ * world pixels of a section, rewritten, and cached.  Per cell
+ * {@link RenderParameters} are then assembled locally from all cached tile
+ * specs that overlap the cell's bounding box, adjacent cells and scale levels
+ * therefore share the same metadata without further round trips.  Assembled
+ * parameters keep the server's parameters and draw overlapping tiles in the
+ * server's order.
+ *
+ * The index is bounded by the size of the JSON of the cached regions, a
+ * proxy for the memory of their parsed tile specs that grows with the
+ * number and transform complexity of tiles.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class TileSpecIndex {
+
+	final static private class RegionKey {
+
+		final long z;
+		final long x;
+		final long y;
+
+		public RegionKey(final long z, final long x, final long y) {
+
+			this.z = z;
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+
+			if (!(other instanceof RegionKey))
+				return false;
+
+			final RegionKey key = (RegionKey)other;
+			return z == key.z && x == key.x && y == key.y;
+		}
+
+		@Override
+		public int hashCode() {
+
+			return Long.hashCode(z) * 961 + Long.hashCode(y) * 31 + Long.hashCode(x);
+		}
+	}
+
+	final static private class Region {
+
+		/**
+		 * server render parameters without tile specs
+		 */
+		final JsonObject parameters;
+
+		/**
+		 * tile specs in server order
+		 */
+		final List<TileSpec> tileSpecs;
+
+		/**
+		 * length of the JSON of the region
+		 */
+		final int weight;
+
+		public Region(final JsonObject parameters, final List<TileSpec> tileSpecs, final int weight) {
+
+			this.parameters = parameters;
+			this.tileSpecs = tileSpecs;
+			this.weight = weight;
+		}
+	}
+
+	final static private Gson gson = new Gson();
+
+	protected final String baseUrl;
+	protected final String owner;
+	protected final String project;
+	protected final String stack;
+	protected final long regionSize;
+	protected final MipmapSourceRewriter rewriter;
+
+	protected final Cache<RegionKey, Region> regions;
+
+	/**
+	 *
+	 * @param baseUrl
+	 * @param owner
+	 * @param project
+	 * @param stack
+	 * @param regionSize edge length of square index regions in world pixels
+	 * @param maxMegabytes maximum size in MB of the JSON of the regions kept
+	 *     in memory
+	 * @param rewriter applied once to the tile specs of each region
+	 */
+	public TileSpecIndex(
+			final String baseUrl,
+			final String owner,
+			final String project,
+			final String stack,
+			final long regionSize,
+			final long maxMegabytes,
+			final MipmapSourceRewriter rewriter) {
+
+		this.baseUrl = baseUrl;
+		this.owner = owner;
+		this.project = project;
+		this.stack = stack;
+		this.regionSize = regionSize;
+		this.rewriter = rewriter;
+
+		regions = CacheBuilder.newBuilder()
+				.maximumWeight(maxMegabytes << 20)
+				.weigher((final RegionKey key, final Region region) -> region.weight)
+				.recordStats()
+				.build();
+	}
+
+	protected Region loadRegion(final RegionKey key) throws IOException {
+
+		final String json = Rest.loadRenderParametersJson(
+				baseUrl,
+				owner,
+				project,
+				stack,
+				key.x * regionSize,
+				key.y * regionSize,
+				key.z,
+				regionSize,
+				regionSize,
+				1.0);
+
+		final RenderParameters regionParameters = RenderParameters.parseJson(json);
+		regionParameters.initializeDerivedValues();
+		rewriter.rewrite(regionParameters);
+
+		return new Region(
+				readParameters(json),
+				new ArrayList<>(regionParameters.getTileSpecs()),
+				json.length());
+	}
+
+	/**
+	 * Read the render parameters of a JSON response without its tile specs.
+	 */
+	protected static JsonObject readParameters(final String json) throws IOException {
+
+		final JsonObject parameters = new JsonObject();
+		try (final JsonReader reader = new JsonReader(new StringReader(json))) {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				final String name = reader.nextName();
+				if (name.equals("tileSpecs"))
+					reader.skipValue();
+				else
+					parameters.add(name, gson.fromJson(reader, JsonElement.class));
+			}
+			reader.endObject();
+		}
+		return parameters;
+	}
+
+	protected Region getRegion(final long z, final long rx, final long ry) throws ExecutionException {
+
+		final RegionKey key = new RegionKey(z, rx, ry);
+		return regions.get(key, () -> loadRegion(key));
+	}
+
+	/**
+	 * Merge tile specs in server order into tile specs in server order.
+	 * Both are ordered subsequences of the server's order of all tiles of
+	 * the section, tiles that are only in <code>tileSpecs</code> are inserted
+	 * after their predecessor in <code>tileSpecs</code>.
+	 *
+	 * @param merged
+	 * @param mergedIds
+	 * @param tileSpecs
+	 */
+	protected static void merge(
+			final ArrayList<TileSpec> merged,
+			final HashSet<String> mergedIds,
+			final List<TileSpec> tileSpecs) {
+
+		int i = -1;
+		for (final TileSpec tileSpec : tileSpecs) {
+			if (mergedIds.add(tileSpec.getTileId()))
+				merged.add(++i, tileSpec);
+			else {
+				final String tileId = tileSpec.getTileId();
+				for (int j = 0; j < merged.size(); ++j) {
+					if (merged.get(j).getTileId().equals(tileId)) {
+						i = j;
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Assemble {@link RenderParameters} for a box from the cached tile specs
+	 * of all index regions that intersect with it.  The other parameters are
+	 * those of the server for the first region.
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param w
+	 * @param h
+	 * @param scale
+	 * @param filter
+	 * @return
+	 * @throws ExecutionException
+	 */
+	public RenderParameters getRenderParameters(
+			final long x,
+			final long y,
+			final long z,
+			final long w,
+			final long h,
+			final double scale,
+			final boolean filter) throws ExecutionException {
+
+		final long maxX = x + w;
+		final long maxY = y + h;
+
+		JsonObject serverParameters = null;
+		final ArrayList<TileSpec> tileSpecs = new ArrayList<>();
+		final HashSet<String> tileIds = new HashSet<>();
+		final ArrayList<TileSpec> regionTileSpecs = new ArrayList<>();
+		for (long ry = Math.floorDiv(y, regionSize); ry * regionSize < maxY; ++ry) {
+			for (long rx = Math.floorDiv(x, regionSize); rx * regionSize < maxX; ++rx) {
+				final Region region = getRegion(z, rx, ry);
+				if (serverParameters == null)
+					serverParameters = region.parameters;
+				regionTileSpecs.clear();
+				for (final TileSpec tileSpec : region.tileSpecs) {
+					if (
+							tileSpec.getMinX() < maxX &&
+							tileSpec.getMinY() < maxY &&
+							tileSpec.getMaxX() >= x &&
+							tileSpec.getMaxY() >= y)
+						regionTileSpecs.add(tileSpec);
+				}
+				merge(tileSpecs, tileIds, regionTileSpecs);
+			}
+		}
+
+		final JsonObject parameters = new JsonObject();
+		for (final Map.Entry<String, JsonElement> entry : serverParameters.entrySet())
+			parameters.add(entry.getKey(), entry.getValue());
+		parameters.addProperty("x", x);
+		parameters.addProperty("y", y);
+		parameters.addProperty("width", w);
+		parameters.addProperty("height", h);
+		parameters.addProperty("scale", scale);
+		parameters.addProperty("doFilter", filter);
+
+		final RenderParameters renderParameters;
+		try {
+			renderParameters = RenderParameters.parseJson(gson.toJson(parameters));
+		} catch (final IllegalArgumentException e) {
+			throw new ExecutionException(e);
+		}
+		renderParameters.addTileSpecs(tileSpecs);
+		renderParameters.initializeDerivedValues();
+
+		return renderParameters;
+	}
+
+	public CacheStats getStats() {
+
+		return regions.stats();
+	}
+
+	public void invalidateAll() {
+
+		regions.invalidateAll();
+	}
+
+	/**
+	 * Number of tile specs currently in the index, tiles that overlap multiple
+	 * regions are counted once per region.
+	 *
+	 * @return
+	 */
+	public long size() {
+
+		long size = 0;
+		for (final Region region : regions.asMap().values())
+			size += region.tileSpecs.size();
+
+		return size;
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ *
+ */
+package bdv.render;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Admission order, limit changes, and contention of an
+ * {@link AdaptiveLimiter}.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class AdaptiveLimiterTest {
+
+	/**
+	 * Wait until <code>n</code> threads are waiting for admission.
+	 */
+	protected static void awaitWaiters(final AdaptiveLimiter limiter, final int n) throws InterruptedException {
+
+		while (true) {
+			limiter.lock.lock();
+			try {
+				if (limiter.waiters.size() >= n)
+					return;
+			} finally {
+				limiter.lock.unlock();
+			}
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * Queue one thread per priority, one after the other, while the only
+	 * permit is held, then release it and record the order of admission.
+	 */
+	protected static List<Integer> admissionOrder(final int... priorities) throws InterruptedException {
+
+		final AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 1);
+		final List<Integer> admitted = Collections.synchronizedList(new ArrayList<>());
+		final ArrayList<Thread> threads = new ArrayList<>();
+
+		limiter.acquire(0);
+		for (int i = 0; i < priorities.length; ++i) {
+			final int id = i;
+			final Thread thread = new Thread(() -> {
+				limiter.acquire(priorities[id]);
+				admitted.add(id);
+				limiter.release();
+			});
+			thread.start();
+			threads.add(thread);
+			awaitWaiters(limiter, i + 1);
+		}
+		limiter.release();
+
+		for (final Thread thread : threads)
+			thread.join();
+
+		assertEquals(0, limiter.getInFlight());
+		return admitted;
+	}
+
+	@Test(timeout = 10000)
+	public void testPriorityOrder() throws InterruptedException {
+
+		assertEquals(Arrays.asList(4, 1, 3, 2, 0), admissionOrder(3, 1, 2, 1, 0));
+	}
+
+	@Test(timeout = 10000)
+	public void testFifoOrder() throws InterruptedException {
+
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7), admissionOrder(2, 2, 2, 2, 2, 2, 2, 2));
+	}
+
+	@Test(timeout = 10000)
+	public void testLimitIncreaseAdmits() throws InterruptedException {
+
+		final AdaptiveLimiter limiter = new AdaptiveLimiter(1, 4, 1);
+		limiter.acquire(0);
+
+		final CountDownLatch admitted = new CountDownLatch(1);
+		final Thread thread = new Thread(() -> {
+			limiter.acquire(0);
+			admitted.countDown();
+		});
+		thread.start();
+		awaitWaiters(limiter, 1);
+		assertEquals(1, admitted.getCount());
+
+		/* operations as fast as without load grow the limit, no release */
+		while (limiter.getLimit() < 2)
+			limiter.sample(1000);
+		assertTrue(admitted.await(5, TimeUnit.SECONDS));
+		assertEquals(2, limiter.getInFlight());
+
+		limiter.release();
+		limiter.release();
+		thread.join();
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	public void testLimitBounds() {
+
+		final AdaptiveLimiter limiter = new AdaptiveLimiter(2, 16, 16);
+		assertEquals(16, limiter.getLimit());
+
+		for (int i = 0; i < 100; ++i)
+			limiter.failed();
+		assertEquals(2, limiter.getLimit());
+
+		for (int i = 0; i < 1000; ++i)
+			limiter.sample(1000);
+		assertEquals(16, limiter.getLimit());
+
+		/* 10x slower than without load */
+		for (int i = 0; i < 1000; ++i)
+			limiter.sample(10000);
+		assertTrue(limiter.getLimit() < 16);
+		assertTrue(limiter.getLimit() >= 2);
+
+		/* out of range initial limits */
+		assertEquals(3, new AdaptiveLimiter(3, 8, 0).getLimit());
+		assertEquals(8, new AdaptiveLimiter(3, 8, 100).getLimit());
+		assertEquals(1, new AdaptiveLimiter(0, 0, 0).getMaxLimit());
+	}
+
+	@Test(timeout = 30000)
+	public void testContention() throws InterruptedException {
+
+		final int numThreads = 16;
+		final int iterations = 1000;
+		final AdaptiveLimiter limiter = new AdaptiveLimiter(2, 6, 4);
+		final AtomicInteger concurrent = new AtomicInteger();
+		final AtomicInteger maxConcurrent = new AtomicInteger();
+		final AtomicInteger completed = new AtomicInteger();
+
+		final ArrayList<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < numThreads; ++i) {
+			final int priority = i % 3;
+			final boolean fails = i % 4 == 0;
+			final Thread thread = new Thread(() -> {
+				for (int j = 0; j < iterations; ++j) {
+					limiter.acquire(priority);
+					try {
+						final int n = concurrent.incrementAndGet();
+						maxConcurrent.accumulateAndGet(n, Math::max);
+						Thread.yield();
+						concurrent.decrementAndGet();
+						if (fails && j % 10 == 0)
+							limiter.failed();
+						else
+							limiter.sample(1000 + 100 * n);
+					} finally {
+						limiter.release();
+					}
+					completed.incrementAndGet();
+				}
+			});
+			threads.add(thread);
+		}
+		for (final Thread thread : threads)
+			thread.start();
+		for (final Thread thread : threads)
+			thread.join();
+
+		assertEquals(numThreads * iterations, completed.get());
+		assertTrue(maxConcurrent.get() <= limiter.getMaxLimit());
+		assertEquals(0, limiter.getInFlight());
+		assertTrue(limiter.waiters.isEmpty());
+	}
+}
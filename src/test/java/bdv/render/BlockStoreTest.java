@@ -0,0 +1,129 @@
+/**
+ *
+ */
+package bdv.render;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Write/read round trips of {@link BlockStore} blocks for all data types
+ * and compressions.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class BlockStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	protected static final long[] dimensions = {10, 7, 3};
+	protected static final int[] blockSize = {4, 4, 2};
+
+	protected static int[] ints(final int n, final int seed) {
+
+		final int[] data = new int[n];
+		for (int i = 0; i < n; ++i)
+			data[i] = (i + seed) * 0x01030507 | 0xff000000;
+		return data;
+	}
+
+	protected static byte[] bytes(final int n, final int seed) {
+
+		final byte[] data = new byte[n];
+		for (int i = 0; i < n; ++i)
+			data[i] = (byte)(i * 7 + seed);
+		return data;
+	}
+
+	protected BlockStore create(final BlockStore.DataType dataType, final BlockStore.Compression compression) throws IOException {
+
+		return new BlockStore(folder.newFolder().toPath().resolve("s0"), dimensions, blockSize, dataType, compression);
+	}
+
+	protected void testInts(final BlockStore.Compression compression) throws IOException {
+
+		final BlockStore store = create(BlockStore.DataType.UINT32, compression);
+		final Path attributes = store.getBlockPath(new long[0]).resolve("attributes.json");
+		assertTrue(Files.isRegularFile(attributes));
+
+		/* inner block */
+		final long[] gridPosition = {0, 1, 0};
+		final int[] data = ints(4 * 3 * 2, 1);
+		store.write(gridPosition, new int[]{4, 3, 2}, data);
+		assertTrue(store.exists(gridPosition));
+
+		final int[] read = new int[data.length];
+		assertTrue(store.read(gridPosition, read));
+		assertArrayEquals(data, read);
+
+		/* edge block */
+		final long[] edgePosition = {2, 1, 1};
+		final int[] edge = ints(2 * 3 * 1, 2);
+		store.write(edgePosition, new int[]{2, 3, 1}, edge);
+		final int[] readEdge = new int[edge.length];
+		assertTrue(store.read(edgePosition, readEdge));
+		assertArrayEquals(edge, readEdge);
+
+		/* overwrite */
+		final int[] overwritten = ints(data.length, 3);
+		store.write(gridPosition, new int[]{4, 3, 2}, overwritten);
+		assertTrue(store.read(gridPosition, read));
+		assertArrayEquals(overwritten, read);
+
+		/* missing and mismatching blocks */
+		assertFalse(store.exists(new long[]{1, 0, 0}));
+		assertFalse(store.read(new long[]{1, 0, 0}, new int[data.length]));
+		assertFalse(store.read(gridPosition, new int[data.length + 1]));
+	}
+
+	protected void testBytes(final BlockStore.Compression compression) throws IOException {
+
+		final BlockStore store = create(BlockStore.DataType.UINT8, compression);
+
+		final long[] gridPosition = {1, 0, 1};
+		final byte[] data = bytes(4 * 4 * 1, 5);
+		store.write(gridPosition, new int[]{4, 4, 1}, data);
+
+		final byte[] read = new byte[data.length];
+		assertTrue(store.read(gridPosition, read));
+		assertArrayEquals(data, read);
+
+		assertFalse(store.read(new long[]{0, 0, 0}, new byte[data.length]));
+		assertFalse(store.read(gridPosition, new byte[data.length - 1]));
+	}
+
+	@Test
+	public void testUint32Raw() throws IOException {
+
+		testInts(BlockStore.Compression.RAW);
+	}
+
+	@Test
+	public void testUint32Gzip() throws IOException {
+
+		testInts(BlockStore.Compression.GZIP);
+	}
+
+	@Test
+	public void testUint8Raw() throws IOException {
+
+		testBytes(BlockStore.Compression.RAW);
+	}
+
+	@Test
+	public void testUint8Gzip() throws IOException {
+
+		testBytes(BlockStore.Compression.GZIP);
+	}
+}
@@ -0,0 +1,380 @@
+/**
+ *
+ */
+package bdv.render;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.cache.ref.SoftRefLoaderCache;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileIntArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * 2x2 and 2x2xr averages of {@link DownsamplingCellLoader}, odd-sized edge
+ * cells, and the fallback for missing and preview finer cells.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class DownsamplingCellLoaderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	protected static int argb(final long x, final long y, final long z) {
+
+		return ARGBType.rgba(
+				(int)((x * 37 + y) & 0xff),
+				(int)((y * 23 + z * 5) & 0xff),
+				(int)((x + y * 3 + z * 11) & 0xff),
+				(int)(255 - ((x + z) & 0x3f)));
+	}
+
+	protected static byte gray(final long x, final long y, final long z) {
+
+		return (byte)((x * 29 + y * 13 + z * 71) & 0xff);
+	}
+
+	/**
+	 * Fills finer cells from {@link #argb(long, long, long)} or
+	 * {@link #gray(long, long, long)}.
+	 */
+	protected static class PatternLoader<T extends NativeType<T>> implements CellLoader<T> {
+
+		@Override
+		public void load(final SingleCellArrayImg<T, ?> cell) {
+
+			final Object storage = cell.getStorageArray();
+			int i = 0;
+			for (long z = cell.min(2); z <= cell.max(2); ++z)
+				for (long y = cell.min(1); y <= cell.max(1); ++y)
+					for (long x = cell.min(0); x <= cell.max(0); ++x, ++i)
+						if (storage instanceof byte[])
+							((byte[])storage)[i] = gray(x, y, z);
+						else
+							((int[])storage)[i] = argb(x, y, z);
+		}
+	}
+
+	/**
+	 * Fills cells with a constant and counts its loads.
+	 */
+	protected static class FallbackLoader<T extends NativeType<T>> implements CellLoader<T> {
+
+		final AtomicInteger loads = new AtomicInteger();
+
+		@Override
+		public void load(final SingleCellArrayImg<T, ?> cell) {
+
+			loads.incrementAndGet();
+			final Object storage = cell.getStorageArray();
+			if (storage instanceof byte[])
+				Arrays.fill((byte[])storage, (byte)42);
+			else
+				Arrays.fill((int[])storage, 42);
+		}
+	}
+
+	protected static CachedCellImg<ARGBType, VolatileIntArray> createArgb(final CellGrid grid, final CellLoader<ARGBType> loader) {
+
+		final Cache<Long, Cell<VolatileIntArray>> cache =
+				new SoftRefLoaderCache<Long, Cell<VolatileIntArray>>().withLoader(
+						LoadedCellCacheLoader.get(grid, loader, new ARGBType(), AccessFlags.setOf(AccessFlags.VOLATILE)));
+		return new CachedCellImg<>(grid, new ARGBType(), cache, new VolatileIntArray(1, true));
+	}
+
+	protected static CachedCellImg<UnsignedByteType, VolatileByteArray> createGray(final CellGrid grid, final CellLoader<UnsignedByteType> loader) {
+
+		final Cache<Long, Cell<VolatileByteArray>> cache =
+				new SoftRefLoaderCache<Long, Cell<VolatileByteArray>>().withLoader(
+						LoadedCellCacheLoader.get(grid, loader, new UnsignedByteType(), AccessFlags.setOf(AccessFlags.VOLATILE)));
+		return new CachedCellImg<>(grid, new UnsignedByteType(), cache, new VolatileByteArray(1, true));
+	}
+
+	protected static void loadAll(final CachedCellImg<?, ?> img) throws Exception {
+
+		final long n = Arrays.stream(img.getCellGrid().getGridDimensions()).reduce(1, (a, b) -> a * b);
+		for (long i = 0; i < n; ++i)
+			img.getCache().get(i);
+	}
+
+	protected static long index(final CellGrid grid, final long... gridPosition) {
+
+		return IntervalIndexer.positionToIndex(gridPosition, grid.getGridDimensions());
+	}
+
+	/**
+	 * Expected average of the finer voxels that a coarser cell covers.
+	 */
+	protected static Object expected(
+			final long[] finerDimensions,
+			final CellGrid grid,
+			final long[] gridPosition,
+			final int zRatio,
+			final boolean gray) {
+
+		final long[] min = new long[3];
+		final int[] dims = new int[3];
+		grid.getCellDimensions(gridPosition, min, dims);
+		final int[] ratios = {2, 2, zRatio};
+
+		final int n = dims[0] * dims[1] * dims[2];
+		final int[] data = new int[n];
+		final byte[] bytes = new byte[n];
+		int i = 0;
+		for (long z = min[2]; z < min[2] + dims[2]; ++z) {
+			for (long y = min[1]; y < min[1] + dims[1]; ++y) {
+				for (long x = min[0]; x < min[0] + dims[0]; ++x, ++i) {
+					final int[] sums = new int[4];
+					int count = 0;
+					for (long fz = z * ratios[2]; fz < Math.min(finerDimensions[2], (z + 1) * ratios[2]); ++fz) {
+						for (long fy = y * ratios[1]; fy < Math.min(finerDimensions[1], (y + 1) * ratios[1]); ++fy) {
+							for (long fx = x * ratios[0]; fx < Math.min(finerDimensions[0], (x + 1) * ratios[0]); ++fx) {
+								if (gray)
+									sums[0] += gray(fx, fy, fz) & 0xff;
+								else {
+									final int argb = argb(fx, fy, fz);
+									sums[0] += ARGBType.alpha(argb);
+									sums[1] += ARGBType.red(argb);
+									sums[2] += ARGBType.green(argb);
+									sums[3] += ARGBType.blue(argb);
+								}
+								++count;
+							}
+						}
+					}
+					if (gray)
+						bytes[i] = (byte)(sums[0] / count);
+					else
+						data[i] = ARGBType.rgba(sums[1] / count, sums[2] / count, sums[3] / count, sums[0] / count);
+				}
+			}
+		}
+		return gray ? bytes : data;
+	}
+
+	protected static void testArgb(
+			final long[] finerDimensions,
+			final int[] finerCellDimensions,
+			final int[] cellDimensions,
+			final int zRatio) throws Exception {
+
+		final CachedCellImg<ARGBType, VolatileIntArray> finer =
+				createArgb(new CellGrid(finerDimensions, finerCellDimensions), new PatternLoader<>());
+		loadAll(finer);
+
+		final long[] dimensions = {(finerDimensions[0] + 1) / 2, (finerDimensions[1] + 1) / 2, (finerDimensions[2] + zRatio - 1) / zRatio};
+		final CellGrid grid = new CellGrid(dimensions, cellDimensions);
+		final FallbackLoader<ARGBType> fallback = new FallbackLoader<>();
+		final CachedCellImg<ARGBType, VolatileIntArray> coarser =
+				createArgb(grid, new DownsamplingCellLoader<>(finer, null, zRatio, fallback));
+
+		final long[] gridDimensions = grid.getGridDimensions();
+		final long[] gridPosition = new long[3];
+		for (gridPosition[2] = 0; gridPosition[2] < gridDimensions[2]; ++gridPosition[2])
+			for (gridPosition[1] = 0; gridPosition[1] < gridDimensions[1]; ++gridPosition[1])
+				for (gridPosition[0] = 0; gridPosition[0] < gridDimensions[0]; ++gridPosition[0])
+					assertArrayEquals(
+							(int[])expected(finerDimensions, grid, gridPosition, zRatio, false),
+							coarser.getCache().get(index(grid, gridPosition)).getData().getCurrentStorageArray());
+
+		assertEquals(0, fallback.loads.get());
+	}
+
+	protected static void testGray(
+			final long[] finerDimensions,
+			final int[] finerCellDimensions,
+			final int[] cellDimensions,
+			final int zRatio) throws Exception {
+
+		final CachedCellImg<UnsignedByteType, VolatileByteArray> finer =
+				createGray(new CellGrid(finerDimensions, finerCellDimensions), new PatternLoader<>());
+		loadAll(finer);
+
+		final long[] dimensions = {(finerDimensions[0] + 1) / 2, (finerDimensions[1] + 1) / 2, (finerDimensions[2] + zRatio - 1) / zRatio};
+		final CellGrid grid = new CellGrid(dimensions, cellDimensions);
+		final FallbackLoader<UnsignedByteType> fallback = new FallbackLoader<>();
+		final CachedCellImg<UnsignedByteType, VolatileByteArray> coarser =
+				createGray(grid, new DownsamplingCellLoader<>(finer, null, zRatio, fallback));
+
+		final long[] gridDimensions = grid.getGridDimensions();
+		final long[] gridPosition = new long[3];
+		for (gridPosition[2] = 0; gridPosition[2] < gridDimensions[2]; ++gridPosition[2])
+			for (gridPosition[1] = 0; gridPosition[1] < gridDimensions[1]; ++gridPosition[1])
+				for (gridPosition[0] = 0; gridPosition[0] < gridDimensions[0]; ++gridPosition[0])
+					assertArrayEquals(
+							(byte[])expected(finerDimensions, grid, gridPosition, zRatio, true),
+							coarser.getCache().get(index(grid, gridPosition)).getData().getCurrentStorageArray());
+
+		assertEquals(0, fallback.loads.get());
+	}
+
+	@Test
+	public void test2x2() throws Exception {
+
+		testArgb(new long[]{16, 16, 2}, new int[]{8, 8, 1}, new int[]{4, 4, 1}, 1);
+		testGray(new long[]{16, 16, 2}, new int[]{8, 8, 1}, new int[]{4, 4, 1}, 1);
+	}
+
+	@Test
+	public void test2x2xr() throws Exception {
+
+		testArgb(new long[]{8, 8, 6}, new int[]{4, 4, 2}, new int[]{4, 4, 1}, 3);
+		testGray(new long[]{8, 8, 6}, new int[]{4, 4, 3}, new int[]{4, 4, 2}, 3);
+	}
+
+	@Test
+	public void testOddEdgeCells() throws Exception {
+
+		/* finer edge cells are 3x1, the last coarser column and row average 1x2, 2x1, and 1x1 finer voxels */
+		testArgb(new long[]{7, 5, 1}, new int[]{4, 4, 1}, new int[]{2, 2, 1}, 1);
+		testGray(new long[]{7, 5, 1}, new int[]{4, 4, 1}, new int[]{2, 2, 1}, 1);
+
+		/* coarser edge cells are 1 wide, the last section averages one finer section */
+		testArgb(new long[]{6, 6, 5}, new int[]{4, 4, 2}, new int[]{2, 2, 1}, 2);
+		testGray(new long[]{6, 6, 5}, new int[]{4, 4, 2}, new int[]{2, 2, 1}, 2);
+	}
+
+	@Test
+	public void testAccumulate() {
+
+		/* finer cell (2, 0, 0) of 2x2 voxels at (4, 2) in a 4x3 cell at (1, 0) */
+		final byte[] finer = {10, 20, 30, 41};
+		final int[][] sums = new int[1][4 * 3];
+		final int[] counts = new int[4 * 3];
+		DownsamplingCellLoader.accumulate(
+				finer,
+				new long[]{4, 2, 0},
+				new int[]{2, 2, 1},
+				new FinalInterval(new long[]{1, 0, 0}, new long[]{4, 2, 0}),
+				new int[]{2, 2, 1},
+				new long[]{2, 0, 0},
+				new long[]{9, 5, 0},
+				sums,
+				counts);
+
+		/* all four voxels fall into cell voxel (1, 1) */
+		final int i = 1 * 4 + 1;
+		assertEquals(4, counts[i]);
+		assertEquals(101, sums[0][i]);
+		assertEquals(4, Arrays.stream(counts).sum());
+	}
+
+	@Test
+	public void testMissingFinerCell() throws Exception {
+
+		final CellGrid finerGrid = new CellGrid(new long[]{8, 8, 1}, new int[]{4, 4, 1});
+		final CachedCellImg<ARGBType, VolatileIntArray> finer = createArgb(finerGrid, new PatternLoader<>());
+		finer.getCache().get(index(finerGrid, 0, 0, 0));
+
+		final CellGrid grid = new CellGrid(new long[]{4, 4, 1}, new int[]{2, 2, 1});
+		final FallbackLoader<ARGBType> fallback = new FallbackLoader<>();
+		final CachedCellImg<ARGBType, VolatileIntArray> coarser =
+				createArgb(grid, new DownsamplingCellLoader<>(finer, null, 1, fallback));
+
+		/* covers finer cell (0, 0, 0) only */
+		assertArrayEquals(
+				(int[])expected(finerGrid.getImgDimensions(), grid, new long[]{0, 0, 0}, 1, false),
+				coarser.getCache().get(index(grid, 0, 0, 0)).getData().getCurrentStorageArray());
+		assertEquals(0, fallback.loads.get());
+
+		/* covers finer cell (1, 0, 0) that is not loaded, which must stay so */
+		final int[] data = coarser.getCache().get(index(grid, 1, 0, 0)).getData().getCurrentStorageArray();
+		assertEquals(1, fallback.loads.get());
+		for (final int value : data)
+			assertEquals(42, value);
+		assertNull(finer.getCache().getIfPresent(index(finerGrid, 1, 0, 0)));
+	}
+
+	@Test
+	public void testPreviewFinerCell() throws Exception {
+
+		final CellGrid finerGrid = new CellGrid(new long[]{8, 8, 1}, new int[]{4, 4, 1});
+		final CachedCellImg<UnsignedByteType, VolatileByteArray> finer = createGray(finerGrid, new PatternLoader<>());
+		loadAll(finer);
+
+		/* a failed refinement keeps the preview of finer cell (1, 0, 0) pending */
+		final Cell<VolatileByteArray> preview = finer.getCache().get(index(finerGrid, 1, 0, 0));
+		final byte[] previewStorage = preview.getData().getCurrentStorageArray();
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final CompletableFuture<Void> refinement = Refinement.submit(
+					executor,
+					previewStorage,
+					refined -> {
+						throw new Exception("refinement failed on purpose");
+					});
+			Refinement.take();
+			try {
+				refinement.join();
+				fail("refinement should fail");
+			} catch (final CompletionException e) {}
+		} finally {
+			executor.shutdown();
+		}
+		assertTrue(Refinement.isPending(previewStorage));
+
+		final CellGrid grid = new CellGrid(new long[]{4, 4, 1}, new int[]{2, 2, 1});
+
+		/* without a store, the coarser cell falls back */
+		final FallbackLoader<UnsignedByteType> fallback = new FallbackLoader<>();
+		final CachedCellImg<UnsignedByteType, VolatileByteArray> coarser =
+				createGray(grid, new DownsamplingCellLoader<>(finer, null, 1, fallback));
+		final byte[] data = coarser.getCache().get(index(grid, 1, 0, 0)).getData().getCurrentStorageArray();
+		assertEquals(1, fallback.loads.get());
+		for (final byte value : data)
+			assertEquals(42, value);
+
+		/* with the full quality block in the store, it is downsampled from the store */
+		final BlockStore store = new BlockStore(
+				folder.getRoot().toPath().resolve("s0"),
+				finerGrid.getImgDimensions(),
+				new int[]{4, 4, 1},
+				BlockStore.DataType.UINT8,
+				BlockStore.Compression.RAW);
+		final byte[] block = new byte[4 * 4];
+		for (int y = 0, i = 0; y < 4; ++y)
+			for (int x = 0; x < 4; ++x, ++i)
+				block[i] = gray(4 + x, y, 0);
+		store.write(new long[]{1, 0, 0}, new int[]{4, 4, 1}, block);
+
+		final FallbackLoader<UnsignedByteType> storeFallback = new FallbackLoader<>();
+		final CachedCellImg<UnsignedByteType, VolatileByteArray> stored =
+				createGray(grid, new DownsamplingCellLoader<>(finer, store, 1, storeFallback));
+		assertArrayEquals(
+				(byte[])expected(finerGrid.getImgDimensions(), grid, new long[]{1, 0, 0}, 1, true),
+				stored.getCache().get(index(grid, 1, 0, 0)).getData().getCurrentStorageArray());
+		assertEquals(0, storeFallback.loads.get());
+
+		/* keep the preview reachable until here */
+		assertTrue(Refinement.isPending(preview.getData().getCurrentStorageArray()));
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ *
+ */
+package bdv.render;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import bdv.render.bench.StubRenderWs;
+
+/**
+ * Concurrent renders of a {@link LocalSectionRenderer} that all miss the
+ * same tiles while there are fewer render permits than threads.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class LocalSectionRendererTest {
+
+	protected StubRenderWs ws;
+	protected ExecutorService executor;
+
+	@Before
+	public void start() throws Exception {
+
+		ws = new StubRenderWs(256, 32, 4, 4, 3, 4);
+		ws.start();
+		executor = Executors.newFixedThreadPool(16);
+	}
+
+	@After
+	public void stop() {
+
+		executor.shutdownNow();
+		ws.stop();
+	}
+
+	protected void testSameTile(final int numThreads, final int numPermits, final boolean gray) throws Exception {
+
+		final AdaptiveLimiter renderPermits = new AdaptiveLimiter(numPermits, numPermits, numPermits);
+		final LocalSectionRenderer renderer = new LocalSectionRenderer(
+				new TileSpecIndex(
+						ws.getBaseUrl(),
+						StubRenderWs.owner,
+						StubRenderWs.project,
+						StubRenderWs.stack,
+						1024,
+						64,
+						new MipmapSourceRewriter() {}),
+				RenderSource.getImageProcessorCache(64),
+				false,
+				renderPermits);
+
+		/* all threads miss the same tiles of one section */
+		final long z = gray ? 2 : 1;
+		final double scale = 0.5;
+		final int width = 64;
+		final int height = 64;
+
+		final ArrayList<Callable<Object>> renders = new ArrayList<>();
+		for (int i = 0; i < numThreads; ++i) {
+			renders.add(() -> {
+				if (gray) {
+					final byte[] data = new byte[width * height];
+					renderer.renderGray(200, 200, z, 128, 128, scale, data, 0, width, height);
+					return data;
+				} else {
+					final int[] data = new int[width * height];
+					renderer.render(200, 200, z, 128, 128, scale, data, width, height);
+					return data;
+				}
+			});
+		}
+
+		final ArrayList<Future<Object>> futures = new ArrayList<>();
+		for (final Callable<Object> render : renders)
+			futures.add(executor.submit(render));
+
+		/* a deadlock between permit holders and tile loaders times out here */
+		for (final Future<Object> future : futures) {
+			final Object data = future.get(30, TimeUnit.SECONDS);
+			boolean drawn = false;
+			if (gray)
+				for (final byte value : (byte[])data)
+					drawn |= value != 0;
+			else
+				for (final int value : (int[])data)
+					drawn |= value != 0;
+			assertTrue(drawn);
+		}
+
+		assertEquals(0, renderPermits.getInFlight());
+	}
+
+	@Test(timeout = 60000)
+	public void testSameTileArgb() throws Exception {
+
+		ws.setLatency(50);
+		testSameTile(16, 2, false);
+	}
+
+	@Test(timeout = 60000)
+	public void testSameTileGray() throws Exception {
+
+		ws.setLatency(50);
+		testSameTile(16, 1, true);
+	}
+}
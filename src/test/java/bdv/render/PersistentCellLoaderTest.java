@@ -0,0 +1,170 @@
+/**
+ *
+ */
+package bdv.render;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileIntArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+/**
+ * Hits and misses of a {@link PersistentCellLoader}.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class PersistentCellLoaderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	protected static final long[] dimensions = {8, 6, 2};
+	protected static final int[] blockSize = {4, 4, 1};
+	protected static final CellGrid grid = new CellGrid(dimensions, blockSize);
+
+	/**
+	 * Fills cells with a value and counts its loads.
+	 */
+	protected static class ConstantLoader<T extends NativeType<T>> implements CellLoader<T> {
+
+		final int value;
+		final AtomicInteger loads = new AtomicInteger();
+
+		public ConstantLoader(final int value) {
+
+			this.value = value;
+		}
+
+		@Override
+		public void load(final SingleCellArrayImg<T, ?> cell) {
+
+			loads.incrementAndGet();
+			final Object storage = cell.getStorageArray();
+			if (storage instanceof byte[])
+				Arrays.fill((byte[])storage, (byte)value);
+			else
+				Arrays.fill((int[])storage, value);
+		}
+	}
+
+	@Test
+	public void testArgbHitAndMiss() throws Exception {
+
+		final BlockStore store = new BlockStore(
+				folder.getRoot().toPath().resolve("s0"),
+				dimensions,
+				blockSize,
+				BlockStore.DataType.UINT32,
+				BlockStore.Compression.GZIP);
+
+		final ConstantLoader<ARGBType> delegate = new ConstantLoader<>(0xff102030);
+		final CacheLoader<Long, Cell<VolatileIntArray>> loader =
+				LoadedCellCacheLoader.get(
+						grid,
+						new PersistentCellLoader<>(delegate, store, blockSize, true),
+						new ARGBType(),
+						AccessFlags.setOf(AccessFlags.VOLATILE));
+
+		/* hit */
+		final int[] stored = new int[4 * 4];
+		for (int i = 0; i < stored.length; ++i)
+			stored[i] = 0xff000000 | i;
+		store.write(new long[]{0, 0, 0}, blockSize, stored);
+		assertArrayEquals(stored, loader.get(0L).getData().getCurrentStorageArray());
+		assertEquals(0, delegate.loads.get());
+
+		/* miss, edge cell 4x2x1 at grid position (1, 1, 1) */
+		final long index = 1 + 2 * (1 + 2 * 1);
+		final int[] loaded = loader.get(index).getData().getCurrentStorageArray();
+		assertEquals(1, delegate.loads.get());
+		assertEquals(4 * 2, loaded.length);
+		for (final int value : loaded)
+			assertEquals(0xff102030, value);
+
+		PersistentCellLoader.flush();
+		final int[] written = new int[4 * 2];
+		assertTrue(store.read(new long[]{1, 1, 1}, written));
+		assertArrayEquals(loaded, written);
+
+		/* now a hit */
+		loader.get(index);
+		assertEquals(1, delegate.loads.get());
+	}
+
+	@Test
+	public void testGrayHitAndMiss() throws Exception {
+
+		final BlockStore store = new BlockStore(
+				folder.getRoot().toPath().resolve("s0"),
+				dimensions,
+				blockSize,
+				BlockStore.DataType.UINT8,
+				BlockStore.Compression.RAW);
+
+		final ConstantLoader<UnsignedByteType> delegate = new ConstantLoader<>(200);
+		final CacheLoader<Long, Cell<VolatileByteArray>> loader =
+				LoadedCellCacheLoader.get(
+						grid,
+						new PersistentCellLoader<>(delegate, store, blockSize, true),
+						new UnsignedByteType(),
+						AccessFlags.setOf(AccessFlags.VOLATILE));
+
+		final byte[] loaded = loader.get(1L).getData().getCurrentStorageArray();
+		assertEquals(1, delegate.loads.get());
+		for (final byte value : loaded)
+			assertEquals((byte)200, value);
+
+		PersistentCellLoader.flush();
+		final byte[] written = new byte[loaded.length];
+		assertTrue(store.read(new long[]{1, 0, 0}, written));
+		assertArrayEquals(loaded, written);
+
+		loader.get(1L);
+		assertEquals(1, delegate.loads.get());
+	}
+
+	@Test
+	public void testNotCurrent() throws Exception {
+
+		final BlockStore store = new BlockStore(
+				folder.getRoot().toPath().resolve("s0"),
+				dimensions,
+				blockSize,
+				BlockStore.DataType.UINT32,
+				BlockStore.Compression.RAW);
+
+		final ConstantLoader<ARGBType> delegate = new ConstantLoader<>(0xff405060);
+		final CacheLoader<Long, Cell<VolatileIntArray>> loader =
+				LoadedCellCacheLoader.get(
+						grid,
+						new PersistentCellLoader<>(delegate, store, blockSize, true, () -> false),
+						new ARGBType(),
+						AccessFlags.setOf(AccessFlags.VOLATILE));
+
+		loader.get(0L);
+		PersistentCellLoader.flush();
+		assertEquals(1, delegate.loads.get());
+		assertFalse(store.exists(new long[]{0, 0, 0}));
+	}
+}
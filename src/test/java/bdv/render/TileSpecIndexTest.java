@@ -0,0 +1,128 @@
+/**
+ *
+ */
+package bdv.render;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.janelia.alignment.RenderParameters;
+import org.janelia.alignment.spec.TileSpec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import bdv.render.bench.StubRenderWs;
+
+/**
+ * {@link RenderParameters} assembled by a {@link TileSpecIndex} from a
+ * {@link StubRenderWs} against those of the service.
+ *
+ * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
+ *
+ */
+public class TileSpecIndexTest {
+
+	/* 256px tiles, 32px overlap, tile columns and rows start every 224px */
+	protected StubRenderWs ws;
+	protected TileSpecIndex index;
+
+	@Before
+	public void start() throws Exception {
+
+		ws = new StubRenderWs(256, 32, 8, 8, 3, 4);
+		ws.start();
+		index = new TileSpecIndex(
+				ws.getBaseUrl(),
+				StubRenderWs.owner,
+				StubRenderWs.project,
+				StubRenderWs.stack,
+				512,
+				64,
+				new MipmapSourceRewriter() {});
+	}
+
+	@After
+	public void stop() {
+
+		ws.stop();
+	}
+
+	protected static List<String> getTileIds(final RenderParameters renderParameters) {
+
+		final ArrayList<String> tileIds = new ArrayList<>();
+		for (final TileSpec tileSpec : renderParameters.getTileSpecs())
+			tileIds.add(tileSpec.getTileId());
+		return tileIds;
+	}
+
+	protected void testBox(final long x, final long y, final long z, final long w, final long h, final double scale) throws Exception {
+
+		final RenderParameters assembled = index.getRenderParameters(x, y, z, w, h, scale, false);
+		final RenderParameters direct = Rest.loadRenderParameters(
+				ws.getBaseUrl(),
+				StubRenderWs.owner,
+				StubRenderWs.project,
+				StubRenderWs.stack,
+				x,
+				y,
+				z,
+				w,
+				h,
+				scale);
+
+		final List<String> tileIds = getTileIds(assembled);
+		assertEquals(tileIds.size(), new HashSet<>(tileIds).size());
+		assertEquals(getTileIds(direct), tileIds);
+
+		assertEquals(direct.getX(), assembled.getX(), 0);
+		assertEquals(direct.getY(), assembled.getY(), 0);
+		assertEquals(direct.getWidth(), assembled.getWidth());
+		assertEquals(direct.getHeight(), assembled.getHeight());
+		assertEquals(direct.getScale(), assembled.getScale(), 0);
+	}
+
+	@Test
+	public void testSingleRegion() throws Exception {
+
+		testBox(100, 50, 1, 300, 200, 1.0);
+	}
+
+	@Test
+	public void testAcrossRegions() throws Exception {
+
+		/* four regions, tiles of columns 1 and 2 and rows 1 and 2 are in two or four of them */
+		testBox(300, 100, 1, 400, 500, 0.5);
+		testBox(0, 0, 2, 1100, 1100, 0.25);
+
+		/* the stack bounds */
+		testBox(0, 0, 0, ws.getWidth(), ws.getHeight(), 0.125);
+	}
+
+	@Test
+	public void testRegionReuse() throws Exception {
+
+		index.getRenderParameters(0, 0, 1, 1024, 1024, 1.0, false);
+		final long requestCount = ws.getRequestCount();
+		assertEquals(4, index.getStats().missCount());
+
+		/* boxes within the same regions and other scales are assembled locally */
+		index.getRenderParameters(300, 100, 1, 400, 500, 0.5, false);
+		index.getRenderParameters(900, 900, 1, 100, 100, 1.0, true);
+		assertEquals(requestCount, ws.getRequestCount());
+		assertEquals(4, index.getStats().missCount());
+		assertTrue(index.getStats().hitCount() >= 5);
+
+		/* tiles on region boundaries are kept once per region */
+		final HashSet<String> tileIds = new HashSet<>(getTileIds(index.getRenderParameters(0, 0, 1, 1024, 1024, 1.0, false)));
+		assertTrue(index.size() > tileIds.size());
+
+		index.invalidateAll();
+		index.getRenderParameters(300, 100, 1, 400, 500, 0.5, false);
+		assertEquals(requestCount + 4, ws.getRequestCount());
+	}
+}